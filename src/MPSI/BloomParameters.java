@@ -0,0 +1,266 @@
+package MPSI;
+import java.math.BigInteger;
+import java.util.ArrayList;
+
+import paillierp.BatchExecutor;
+import paillierp.PaillierThreshold;
+
+/** Chooses the number of bits SIZE and the number of hash functions K of the bloomfilters of a protocol.
+ * Every bit of a bloomfilter costs an encryption, additions, decryption shares and bytes on the network,
+ * depending on the protocol, and for {@link Protocol#NEW_MPSI} every hash function costs the server an addition per
+ * element. Among all pairs (SIZE, K) reaching the target false positive rate, the optimizer picks the one with the
+ * lowest estimated cost of the protocol, instead of the smallest bloomfilter.
+ * <p>
+ * The costs of the operations default to relative weights and can be measured with
+ * {@link #measureCosts(PaillierThreshold, int)}. The chosen parameters can be validated on generated data with
+ * {@link #checkFalsePositiveRate(int)}.
+ */
+public class BloomParameters {
+
+	/** Protocols whose costs are estimated
+	 */
+	public enum Protocol {
+		/** The clients encrypt their bloomfilters, the server adds the K entries of each of its elements */
+		NEW_MPSI,
+		/** All parties encrypt their bloomfilters, and every entry is added up and decrypted */
+		MIYAJI_NISHIDA
+	}
+
+	/** Largest number of hash functions considered */
+	public static final int MAX_K = 64;
+
+	private Protocol protocol;
+	private double fpr;
+	private int set_size;
+	private int num_parties;
+	private int dec_threshold;
+
+	// Costs in nanoseconds, see measureCosts
+	private double encryption_cost = 1000;
+	private double addition_cost = 10;
+	private double share_cost = 1000;
+	private double byte_cost = 8;
+	private int ciphertext_bytes = 256;
+
+	private int size;
+	private int k;
+
+	/** Constructs the optimizer for a protocol. All parties take part in the decryption.
+	 * @param protocol Protocol using the bloomfilters
+	 * @param fpr Target probability that an element which is not in a bloomfilter is found
+	 * @param set_size Largest number of elements inserted into a bloomfilter
+	 * @param num_parties Number of parties, including the server
+	 */
+	public BloomParameters(Protocol protocol, double fpr, int set_size, int num_parties)
+	{
+		this(protocol, fpr, set_size, num_parties, num_parties-1);
+	}
+
+	/** Constructs the optimizer for a protocol
+	 * @param protocol Protocol using the bloomfilters
+	 * @param fpr Target probability that an element which is not in a bloomfilter is found
+	 * @param set_size Largest number of elements inserted into a bloomfilter
+	 * @param num_parties Number of parties, including the server
+	 * @param dec_threshold Number of parties computing the decryption shares
+	 */
+	public BloomParameters(Protocol protocol, double fpr, int set_size, int num_parties, int dec_threshold)
+	{
+		if(fpr <= 0 || fpr >= 1)
+			throw new IllegalArgumentException("The false positive rate must be between 0 and 1");
+		if(set_size < 1)
+			throw new IllegalArgumentException("The set size must be at least 1");
+		if(num_parties < 2 || dec_threshold < 1)
+			throw new IllegalArgumentException("At least 2 parties and a decryption threshold of 1 are required");
+
+		this.protocol = protocol;
+		this.fpr = fpr;
+		this.set_size = set_size;
+		this.num_parties = num_parties;
+		this.dec_threshold = dec_threshold;
+		optimize();
+	}
+
+	/** Sets the costs of the operations and chooses the parameters again
+	 * @param encryption Cost of an encryption
+	 * @param addition Cost of a homomorphic addition
+	 * @param share Cost of computing a decryption share
+	 * @param byte_cost Cost of sending a byte
+	 * @param ciphertext_bytes Number of bytes of a ciphertext
+	 */
+	public void setCosts(double encryption, double addition, double share, double byte_cost, int ciphertext_bytes)
+	{
+		this.encryption_cost = encryption;
+		this.addition_cost = addition;
+		this.share_cost = share;
+		this.byte_cost = byte_cost;
+		this.ciphertext_bytes = ciphertext_bytes;
+		optimize();
+	}
+
+	/** Takes the costs of the operations from another optimizer, e.g. one whose costs were measured once for a key
+	 * size, and chooses the parameters again
+	 * @param costs Optimizer whose costs are taken
+	 */
+	public void setCosts(BloomParameters costs)
+	{
+		setCosts(costs.encryption_cost, costs.addition_cost, costs.share_cost, costs.byte_cost, costs.ciphertext_bytes);
+	}
+
+	/** Measures the costs of the operations in nanoseconds with the given cryptosystem and chooses the parameters
+	 * again. The cost of a byte is kept.
+	 * @param paillier Cryptosystem set up for encryption and decryption
+	 * @param samples Number of operations timed of each kind
+	 */
+	public void measureCosts(PaillierThreshold paillier, int samples)
+	{
+		BigInteger plaintexts[] = new BigInteger[samples];
+		for(int i=0; i<samples; i++)
+			plaintexts[i] = BigInteger.valueOf(i % 2);
+
+		long start = System.nanoTime();
+		BigInteger ciphertexts[] = BatchExecutor.getDefault().encryptAll(paillier, plaintexts);
+		long encrypted = System.nanoTime();
+		BigInteger sum = ciphertexts[0];
+		for(int i=1; i<samples; i++)
+			sum = paillier.add(sum, ciphertexts[i]);
+		long added = System.nanoTime();
+		BatchExecutor.getDefault().partialDecryptAll(paillier, ciphertexts);
+		long decrypted = System.nanoTime();
+
+		setCosts((double)(encrypted-start)/samples, (double)(added-encrypted)/Math.max(1, samples-1),
+				(double)(decrypted-added)/samples, byte_cost, sum.toByteArray().length);
+	}
+
+	/** Gets the chosen number of bits
+	 * @return SIZE of the bloomfilters
+	 */
+	public int getSize()
+	{
+		return size;
+	}
+
+	/** Gets the chosen number of hash functions
+	 * @return K of the bloomfilters
+	 */
+	public int getK()
+	{
+		return k;
+	}
+
+	/** Gets the estimated cost of the protocol with the chosen parameters
+	 * @return Cost in the unit of the operation costs
+	 */
+	public double getCost()
+	{
+		return cost(size, k);
+	}
+
+	/** Creates an empty bloomfilter with the chosen parameters
+	 * @return The bloomfilter
+	 */
+	public Bloomfilter newBloomfilter()
+	{
+		return new Bloomfilter(size, k);
+	}
+
+	/** Computes the false positive rate of a bloomfilter with set_size elements
+	 * @param size Number of bits
+	 * @param k Number of hash functions
+	 * @param set_size Number of inserted elements
+	 * @return Probability that an element which was not inserted is found
+	 */
+	public static double falsePositiveRate(int size, int k, int set_size)
+	{
+		// Probability that a bit is set is 1 - (1-1/size)^(k*set_size)
+		double set = -Math.expm1((double)k*set_size*Math.log1p(-1.0/size));
+		return Math.pow(set, k);
+	}
+
+	/** Computes the smallest number of bits reaching the target false positive rate with k hash functions
+	 * @param k Number of hash functions
+	 * @return Number of bits
+	 */
+	private int minSize(int k)
+	{
+		// (1 - e^(-k*m/size))^k <= fpr, which slightly underestimates the rate, so step up until it is reached
+		double estimate = -k*(double)set_size/Math.log1p(-Math.pow(fpr, 1.0/k));
+		if(estimate >= Integer.MAX_VALUE)
+			return Integer.MAX_VALUE;
+		int res = Math.max(1, (int)Math.ceil(estimate));
+		while(res < Integer.MAX_VALUE && falsePositiveRate(res, k, set_size) > fpr)
+			res++;
+		return res;
+	}
+
+	/** Estimates the cost of the protocol
+	 * @param size Number of bits
+	 * @param k Number of hash functions
+	 * @return Cost in the unit of the operation costs
+	 */
+	private double cost(int size, int k)
+	{
+		double encryptions, additions, shares, bytes;
+		if(protocol == Protocol.NEW_MPSI)
+		{
+			int clients = num_parties-1;
+			// The server sums the entries of the clients once per touched position, then k entries per element
+			double touched = -size*Math.expm1(-(double)k*set_size/size);
+			encryptions = (double)clients*size;
+			additions = touched*(clients-1) + (double)set_size*(k-1);
+			shares = (double)dec_threshold*set_size;
+			bytes = (double)clients*size*ciphertext_bytes;
+		}
+		else
+		{
+			// Every party sends its bloomfilter, and the quorum decrypts the sum of all bloomfilters for every party
+			encryptions = (double)num_parties*size;
+			additions = (double)(num_parties-1)*size;
+			shares = (double)dec_threshold*size;
+			bytes = (double)(num_parties + dec_threshold*(num_parties-1))*size*ciphertext_bytes;
+		}
+		return encryptions*encryption_cost + additions*addition_cost + shares*share_cost + bytes*byte_cost;
+	}
+
+	/**
+	 * Chooses the cheapest pair of SIZE and K reaching the target false positive rate
+	 */
+	private void optimize()
+	{
+		double best = Double.POSITIVE_INFINITY;
+		for(int i=1; i<=MAX_K; i++)
+		{
+			int s = minSize(i);
+			double c = cost(s, i);
+			if(c < best)
+			{
+				best = c;
+				size = s;
+				k = i;
+			}
+		}
+	}
+
+	/** Checks the false positive rate of the chosen parameters on generated data. A bloomfilter is filled with
+	 * set_size random elements, and the fraction of other random elements that are found is measured. The rate can
+	 * only be measured with about 1/fpr trials or more, so very small targets should be checked with a larger fpr.
+	 * @param trials Number of elements checked
+	 * @return Measured false positive rate
+	 */
+	public double checkFalsePositiveRate(int trials)
+	{
+		Bloomfilter bloomfilter = newBloomfilter();
+		ArrayList<String> members = new DatasetGenerator(1, set_size, 0, 10).getSets().get(0);
+		for(int i=0; i<members.size(); i++)
+			bloomfilter.insert(members.get(i));
+
+		// Random elements of the same length differ from the members with overwhelming probability
+		ArrayList<String> others = new DatasetGenerator(1, trials, 0, 10).getSets().get(0);
+		int found = 0;
+		for(int i=0; i<others.size(); i++)
+		{
+			if(bloomfilter.check(others.get(i)))
+				found++;
+		}
+		return (double)found/trials;
+	}
+}
@@ -1,11 +1,15 @@
 package MPSI;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 
+import paillierp.BatchExecutor;
 import paillierp.PaillierThreshold;
 
-/** Class to represent bloomfilters given number of bits SIZE and number of hash functions K
+/** Class to represent bloomfilters given number of bits SIZE and number of hash functions K.
+ * An element is hashed once into a 128-bit digest h1, h2, from which the K positions h1 + i*h2 mod SIZE are derived
+ * (Kirsch-Mitzenmacher double hashing). The digest is kept in the bloomfilter, so hashing is not thread-safe.
  * @author Michael
  *
  */
@@ -13,7 +17,11 @@ public class Bloomfilter {
 	public int SIZE;
 	public int K;
 	
+	/** Seed of the hash function, the same for all parties */
+	public static final long SEED = 0;
+	
 	private BitSet hashes;
+	private Murmur3 digest = new Murmur3(SEED);
 	
 	/** Constructs a new bloomfilter given the parameters
 	 * @param size number of bits in the bit array
@@ -32,17 +40,54 @@ public class Bloomfilter {
 	 */
 	public ArrayList<BigInteger> invertEncrypt(PaillierThreshold paillier)
 	{
-		ArrayList<BigInteger> result = new ArrayList<BigInteger>();
+		BigInteger plaintexts[] = new BigInteger[SIZE];
 		
 		for(int i = 0; i < SIZE; i++)
 		{
 			if(getBit(i))
-				result.add(paillier.encrypt(BigInteger.ZERO));
+				plaintexts[i] = BigInteger.ZERO;
 			else
-				result.add(paillier.encrypt(BigInteger.ONE));
+				plaintexts[i] = BigInteger.ONE;
 		}
 		
-		return result;
+		return new ArrayList<BigInteger>(Arrays.asList(BatchExecutor.getDefault().encryptAll(paillier, plaintexts)));
+	}
+	
+	/** Encrypts the inversion of an empty bloomfilter, which is an encryption of one for every bit.
+	 * This does not depend on the inserted elements and can be computed offline.
+	 * @param paillier PaillierThreshold object needed for encryption
+	 * @return a list of SIZE encryptions of one
+	 */
+	public ArrayList<BigInteger> encryptOnes(PaillierThreshold paillier)
+	{
+		BigInteger plaintexts[] = new BigInteger[SIZE];
+		Arrays.fill(plaintexts, BigInteger.ONE);
+		
+		return new ArrayList<BigInteger>(Arrays.asList(BatchExecutor.getDefault().encryptAll(paillier, plaintexts)));
+	}
+	
+	/** Encrypts the bloomfilter by encrypting the inversion of each bit in the bloomfilter, starting from
+	 * precomputed encryptions of one. Only the bits that are set get a fresh encryption of zero, so the
+	 * work depends on the number of inserted elements instead of on SIZE.
+	 * The precomputed list is consumed and must not be used again.
+	 * @param paillier PaillierThreshold object needed for encryption
+	 * @param ones Encryptions of one for every bit, as returned by {@link #encryptOnes(PaillierThreshold)}
+	 * @return a list of the inverted encrypted entries
+	 */
+	public ArrayList<BigInteger> invertEncrypt(PaillierThreshold paillier, ArrayList<BigInteger> ones)
+	{
+		if(ones.size() != SIZE)
+			throw new IllegalArgumentException("Expected " + SIZE + " precomputed encryptions, got " + ones.size());
+		
+		BigInteger zeros[] = new BigInteger[hashes.cardinality()];
+		Arrays.fill(zeros, BigInteger.ZERO);
+		zeros = BatchExecutor.getDefault().encryptAll(paillier, zeros);
+		
+		int j = 0;
+		for(int i = hashes.nextSetBit(0); i >= 0; i = hashes.nextSetBit(i+1))
+			ones.set(i, zeros[j++]);
+		
+		return ones;
 	}
 	
 	/** Encrypts the bloomfilter by encrypting each bit in the bloomfilter
@@ -51,17 +96,32 @@ public class Bloomfilter {
 	 */
 	public ArrayList<BigInteger> encrypt(PaillierThreshold paillier)
 	{
-		ArrayList<BigInteger> result = new ArrayList<BigInteger>();
+		BigInteger plaintexts[] = new BigInteger[SIZE];
 		
 		for(int i = 0; i < SIZE; i++)
 		{
 			if(getBit(i))
-				result.add(paillier.encrypt(BigInteger.ONE));
+				plaintexts[i] = BigInteger.ONE;
 			else
-				result.add(paillier.encrypt(BigInteger.ZERO));
+				plaintexts[i] = BigInteger.ZERO;
 		}
 		
-		return result;
+		return new ArrayList<BigInteger>(Arrays.asList(BatchExecutor.getDefault().encryptAll(paillier, plaintexts)));
+	}
+	
+	/** Encrypts the bloomfilter with several bits packed into the slots of each plaintext
+	 * @param paillier PaillierThreshold object needed for encryption
+	 * @param packing Slot layout of the plaintexts
+	 * @return a list of the encrypted packed entries, packing.numPlaintexts(SIZE) in total
+	 */
+	public ArrayList<BigInteger> encryptPacked(PaillierThreshold paillier, PackedEncoding packing)
+	{
+		BigInteger plaintexts[] = new BigInteger[packing.numPlaintexts(SIZE)];
+		
+		for(int j = 0; j < plaintexts.length; j++)
+			plaintexts[j] = packing.pack(this, j*packing.SLOTS);
+		
+		return new ArrayList<BigInteger>(Arrays.asList(BatchExecutor.getDefault().encryptAll(paillier, plaintexts)));
 	}
 	
 	/** Initializes the entries in the bit array
@@ -84,15 +144,14 @@ public class Bloomfilter {
 	 */
 	public boolean check(String element)
 	{
-		boolean inSet = true;
-		
-		for(int i = 0; i < K && inSet; i++)
+		digest.hash(element);
+		for(int i = 0; i < K; i++)
 		{
-			if(!getBit(hash(element, i)))
-				inSet = false;
+			if(!getBit(position(i)))
+				return false;
 		}
 		
-		return inSet;
+		return true;
 	}
 	
 	/** Inserts an element into the bloomfilter
@@ -100,21 +159,66 @@ public class Bloomfilter {
 	 */
 	public void insert(String element)
 	{
+		digest.hash(element);
 		for(int i = 0; i < K; i++)
-	         hashes.set(hash(element, i));
+			hashes.set(position(i));
+	}
+	
+	/** Hashes the element with all K hash functions at once
+	 * @param element Element to hash
+	 * @param out Array of at least K entries receiving the hashes, integers between 0 and SIZE-1
+	 */
+	public void hashes(String element, int out[])
+	{
+		digest.hash(element);
+		for(int i = 0; i < K; i++)
+			out[i] = position(i);
 	}
 	
 	/** Hashes the element with the ith hash function.
-	 * Hashing is based on the hashCode() of the element
-	 * with i preprended to it.
+	 * Use {@link #hashes(String, int[])} for all hash functions, which hashes the element only once.
 	 * @param element Element to hash
 	 * @param i Index of the hash function
 	 * @return ith hash of the element, an integer between 0 and SIZE-1.
 	 */
 	public int hash(String element, int i)
 	{
-		element = i + element;
-		return Math.abs((int)(element.hashCode()%SIZE));
+		digest.hash(element);
+		return position(i);
+	}
+	
+	/** Derives the ith position from the digest of the last hashed element
+	 * @param i Index of the hash function
+	 * @return h1 + i*h2 mod SIZE
+	 */
+	protected int position(int i)
+	{
+		return (int)Long.remainderUnsigned(digest(i), SIZE);
+	}
+	
+	/** Derives the ith hash from the digest of the last hashed element
+	 * @param i Index of the hash function
+	 * @return h1 + i*h2, to be reduced to a position
+	 */
+	protected long digest(int i)
+	{
+		return digest.h1 + i*digest.h2;
+	}
+	
+	/** Creates an empty bloomfilter with the same parameters, which maps elements to the same positions
+	 * @return The empty bloomfilter
+	 */
+	public Bloomfilter newEmpty()
+	{
+		return new Bloomfilter(SIZE, K);
+	}
+	
+	/** Sets the entry of the bit array at the given index to 1
+	 * @param index Index in bit array
+	 */
+	public void setBit(int index)
+	{
+		hashes.set(index);
 	}
 	
 	/** Gets the entry of the bit array at the given index
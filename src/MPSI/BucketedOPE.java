@@ -0,0 +1,229 @@
+package MPSI;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import paillierp.BatchExecutor;
+import paillierp.PaillierThreshold;
+
+/** Oblivious polynomial evaluation with the elements hashed into bins. Every bin has its own polynomial whose roots
+ * are the elements of the bin, padded with random roots to a fixed load so that the polynomials do not reveal how the
+ * elements are spread. An element is only evaluated with the polynomial of its bin, which takes load+1 instead of
+ * m+1 coefficients. All parties must use the same number of bins and load, so that their polynomials can be added
+ * coefficient by coefficient.
+ * <p>
+ * The coefficients are kept in one array, bin after bin, each bin in ascending order by degree.
+ */
+public class BucketedOPE extends OPE {
+
+	/** Default number of elements per bin, see {@link #defaultBins(int)} */
+	public static final int DEFAULT_BIN_ELEMENTS = 16;
+
+	/** Binary logarithm of the probability that any bin overflows, see {@link #binLoad(int, int)} */
+	public static final int OVERFLOW_BITS = 40;
+	
+	/** Seed of the hash assigning elements to bins, the same for all parties */
+	public static final long BIN_SEED = 1;
+
+	private int bins;
+	private int load;
+	private Random rand;
+
+	/** Construct the OPE with the given number of bins
+	 * @param modulus Modulus of the coefficients
+	 * @param bins Number of bins
+	 * @param load Number of roots of every bin polynomial, see {@link #binLoad(int, int)}
+	 */
+	public BucketedOPE(BigInteger modulus, int bins, int load)
+	{
+		super(modulus);
+		if(bins < 1)
+			throw new IllegalArgumentException("There must be at least one bin");
+		if(load < 1)
+			throw new IllegalArgumentException("The bin load must be at least 1");
+
+		this.bins = bins;
+		this.load = load;
+		this.rand = new Random();
+	}
+
+	/** Gets the number of bins for a set size, such that a bin holds about {@link #DEFAULT_BIN_ELEMENTS} elements
+	 * @param set_size Largest number of elements of a party
+	 * @return Number of bins
+	 */
+	public static int defaultBins(int set_size)
+	{
+		return Math.max(1, set_size/DEFAULT_BIN_ELEMENTS);
+	}
+
+	/** Computes the smallest load such that hashing set_size elements into the bins overflows any bin with
+	 * probability at most 2^-{@link #OVERFLOW_BITS}. The load of a bin is binomially distributed.
+	 * @param set_size Largest number of elements of a party
+	 * @param bins Number of bins
+	 * @return Number of roots of every bin polynomial
+	 */
+	public static int binLoad(int set_size, int bins)
+	{
+		if(bins == 1 || set_size == 0)
+			return Math.max(1, set_size);
+
+		// Logarithms of the probabilities that a bin holds exactly k elements
+		double p = 1.0/bins;
+		double log_pmf[] = new double[set_size+1];
+		log_pmf[0] = set_size*Math.log1p(-p);
+		for(int k=0; k<set_size; k++)
+			log_pmf[k+1] = log_pmf[k] + Math.log((double)(set_size-k)/(k+1)) + Math.log(p/(1-p));
+
+		// Walk down the tail until a bin holding at least k elements is too likely
+		double bound = Math.pow(2, -OVERFLOW_BITS)/bins;
+		double tail = 0;
+		for(int k=set_size; k>0; k--)
+		{
+			tail += Math.exp(log_pmf[k]);
+			if(tail > bound)
+				return k;
+		}
+		return 1;
+	}
+
+	/** Gets the number of bins
+	 * @return Number of bins
+	 */
+	public int getBins()
+	{
+		return bins;
+	}
+
+	/** Gets the number of roots of every bin polynomial
+	 * @return Load of the bins
+	 */
+	public int getLoad()
+	{
+		return load;
+	}
+
+	/** Hashes an element into a bin. The bin is the same for all parties. The bins are taken from a Murmur3 digest
+	 * rather than from hashCode(), whose remainders are far from uniform, e.g. modulo 31 they only depend on the last
+	 * character, so that the loads of {@link #binLoad(int, int)} hold.
+	 * @param element Element to hash
+	 * @return Index of the bin
+	 */
+	public int bin(String element)
+	{
+		Murmur3 digest = new Murmur3(BIN_SEED);
+		digest.hash(element);
+		return (int)Long.remainderUnsigned(digest.h1, bins);
+	}
+
+	/** Generates the polynomials of all bins by interpolation. Each element of the dataset is a root of the
+	 * polynomial of its bin.
+	 * @param dataset
+	 */
+	@Override
+	public void interpolate(ArrayList<String> dataset)
+	{
+		DEGREE = load;
+
+		final ArrayList<ArrayList<String>> binned = new ArrayList<ArrayList<String>>();
+		for(int b=0; b<bins; b++)
+			binned.add(new ArrayList<String>());
+		for(int i=0; i<dataset.size(); i++)
+			binned.get(bin(dataset.get(i))).add(dataset.get(i));
+
+		coefficients = new BigInteger[bins*(load+1)];
+		BatchExecutor.getDefault().run(bins, new BatchExecutor.Range() {
+			public void run(int from, int to)
+			{
+				for(int b=from; b<to; b++)
+					interpolateBin(b, binned.get(b));
+			}
+		});
+	}
+
+	/** Generates the polynomial of one bin, padded with random roots
+	 * @param bin Index of the bin
+	 * @param elements Elements of the dataset in the bin
+	 */
+	private void interpolateBin(int bin, ArrayList<String> elements)
+	{
+		if(elements.size() > load)
+			throw new IllegalStateException("Bin " + bin + " holds " + elements.size() + " elements, more than the load of " + load);
+
+		BigInteger roots[] = new BigInteger[load];
+		for(int i=0; i<elements.size(); i++)
+			roots[i] = hash(elements.get(i));
+		for(int i=elements.size(); i<load; i++)
+		{
+			BigInteger dummy;
+			do {
+				dummy = new BigInteger(modulus.bitLength(), rand);
+			} while(dummy.compareTo(modulus) >= 0);
+			roots[i] = dummy;
+		}
+
+		BigInteger coef[] = Polynomial.fromRoots(roots, modulus).coefficients();
+		System.arraycopy(coef, 0, coefficients, bin*(load+1), load+1);
+	}
+
+	/** Regenerates and encrypts the polynomial of a single bin, e.g. after an element of the bin was added to or
+	 * removed from the dataset. The other bins are left untouched.
+	 * @param dataset Updated dataset
+	 * @param bin Index of the bin
+	 * @param paillier PaillierThreshold object needed for encryption
+	 * @return The encrypted coefficients of the bin in ascending order by degree
+	 */
+	public BigInteger[] updateBin(ArrayList<String> dataset, int bin, PaillierThreshold paillier)
+	{
+		ArrayList<String> elements = new ArrayList<String>();
+		for(int i=0; i<dataset.size(); i++)
+		{
+			if(bin(dataset.get(i)) == bin)
+				elements.add(dataset.get(i));
+		}
+		interpolateBin(bin, elements);
+
+		int from = bin*(load+1);
+		BigInteger enc[] = BatchExecutor.getDefault().encryptAll(paillier, Arrays.copyOfRange(coefficients, from, from+load+1));
+		System.arraycopy(enc, 0, coefficients, from, enc.length);
+		return enc;
+	}
+
+	/** Computes an evaluation of each element in the dataset with the polynomial of its bin.
+	 * The bin polynomials are evaluated with Horner's rule, also when fixed-base tables are enabled.
+	 * @param paillier PaillierThreshold object needed for encryption
+	 * @param coef Array of the coefficients of all bins
+	 * @param dataset Dataset containing the elements
+	 * @param randomBits Number of bits for randomization
+	 * @return Array of evaluations for each element
+	 */
+	@Override
+	public BigInteger[] evaluate(final PaillierThreshold paillier, final BigInteger coef[], ArrayList<String> dataset, int randomBits)
+	{
+		if(coef.length != bins*(load+1))
+			throw new IllegalArgumentException("Expected " + bins*(load+1) + " coefficients, got " + coef.length);
+
+		final int size = load+1;
+		final BigInteger roots[] = new BigInteger[dataset.size()];
+		final int bin[] = new int[dataset.size()];
+		BigInteger r[] = new BigInteger[dataset.size()];
+		for(int i=0; i<dataset.size(); i++)
+		{
+			roots[i] = hash(dataset.get(i));
+			bin[i] = bin(dataset.get(i));
+			r[i] = new BigInteger(randomBits, rand);
+		}
+
+		final BigInteger result[] = new BigInteger[dataset.size()];
+		BatchExecutor.getDefault().run(result.length, new BatchExecutor.Range() {
+			public void run(int from, int to)
+			{
+				for(int i=from; i<to; i++)
+					result[i] = horner(paillier, coef, bin[i]*size, (bin[i]+1)*size, roots[i]);
+			}
+		});
+
+		// Randomize the results
+		return BatchExecutor.getDefault().scalarMultiplyAll(paillier, result, r);
+	}
+}
@@ -11,6 +11,11 @@ public abstract class GenericMPSI {
 	protected KeyGenerator keys;
 	protected Network network;
 	protected Performance performance;
+	protected int dec_threshold;
+	
+	private Quorum.Policy quorum_policy = Quorum.Policy.FIRST_W;
+	private int quorum_subset[];
+	private int quorum_block_size = Quorum.DEFAULT_BLOCK_SIZE;
 	
 	/** Constructs a generic MPSI protocol
 	 * @param datasets List containing the dataset of each party
@@ -21,12 +26,87 @@ public abstract class GenericMPSI {
 	 * @param dec_threshold Least number of parties required for shared decryption
 	 */
 	public GenericMPSI(ArrayList<ArrayList<String>> datasets, Network network, Performance performance, int prime_bits, int num_parties, int dec_threshold)
+	{
+		this(datasets, network, performance, prime_bits, num_parties, dec_threshold, 1);
+	}
+	
+	/** Constructs a generic MPSI protocol over the Damgard-Jurik cryptosystem of the given degree
+	 * @param datasets List containing the dataset of each party
+	 * @param network Network measurement
+	 * @param performance Performance measurement
+	 * @param prime_bits Specifies the number of bits required for the prime factor of n
+	 * @param num_parties Number of parties
+	 * @param dec_threshold Least number of parties required for shared decryption
+	 * @param degree Degree s of the cryptosystem; 1 is plain Paillier
+	 */
+	public GenericMPSI(ArrayList<ArrayList<String>> datasets, Network network, Performance performance, int prime_bits, int num_parties, int dec_threshold, int degree)
 	{
 		this.datasets = datasets;
 		this.num_parties = num_parties;
 		this.network = network;
 		this.performance = performance;
-		keys = new KeyGenerator(prime_bits, num_parties, dec_threshold);
+		this.dec_threshold = dec_threshold;
+		keys = new KeyGenerator(prime_bits, num_parties, dec_threshold, degree);
+	}
+	
+	/** Sets the policy for choosing the parties that compute decryption shares. {@link Quorum.Policy#FIRST_W} by default.
+	 * Without a subset set by {@link #setQuorumSubset(int[])}, {@link Quorum.Policy#FIXED_SUBSET} uses the last
+	 * dec_threshold decrypting parties.
+	 * @param policy The policy
+	 */
+	public void setQuorumPolicy(Quorum.Policy policy)
+	{
+		this.quorum_policy = policy;
+	}
+	
+	/** Sets the parties that compute decryption shares and selects {@link Quorum.Policy#FIXED_SUBSET}
+	 * @param parties Indices of at least dec_threshold decrypting parties, as used for the datasets
+	 */
+	public void setQuorumSubset(int parties[])
+	{
+		this.quorum_subset = parties.clone();
+		this.quorum_policy = Quorum.Policy.FIXED_SUBSET;
+	}
+	
+	/** Sets the number of ciphertexts per block for {@link Quorum.Policy#ROUND_ROBIN}
+	 * @param block_size Number of ciphertexts per block
+	 */
+	public void setQuorumBlockSize(int block_size)
+	{
+		this.quorum_block_size = block_size;
+	}
+	
+	/** Creates the quorum of the decrypting parties. The key IDs are public, so every party can fix the quorum
+	 * whose decryption shares it combines before any share arrives.
+	 * @param first Index of the first decrypting party
+	 * @param count Number of decrypting parties, which are the candidates 0 to count-1 of the quorum
+	 * @return The quorum
+	 */
+	protected Quorum newQuorum(int first, int count)
+	{
+		int ids[] = new int[count];
+		for(int i=0; i<count; i++)
+			ids[i] = keys.getPrivate(first+i).getID();
+		
+		int members[] = new int[count];
+		if(quorum_policy == Quorum.Policy.FIXED_SUBSET && quorum_subset != null)
+		{
+			members = new int[quorum_subset.length];
+			for(int i=0; i<members.length; i++)
+				members[i] = quorum_subset[i]-first;
+		}
+		else if(quorum_policy == Quorum.Policy.FIXED_SUBSET)
+		{
+			for(int i=0; i<count; i++)
+				members[i] = count-1-i;
+		}
+		else
+		{
+			for(int i=0; i<count; i++)
+				members[i] = i;
+		}
+		
+		return new Quorum(quorum_policy, members, ids, dec_threshold, quorum_block_size);
 	}
 	
 	/**
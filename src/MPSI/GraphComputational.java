@@ -43,11 +43,13 @@ public class GraphComputational extends ApplicationFrame {
 			for(int i=0; i<stats[j].communicational_server.size(); i++)
 			{
 				String key = "" + stats[j].computational_setup_server.get(i).key;
-				long val = stats[j].computational_setup_server.get(i).value + stats[j].computational_interactive_server.get(i).value;
+				long val = stats[j].computational_setup_server.get(i).value + stats[j].computational_interactive_server.get(i).value
+						+ stats[j].computational_offline_server.get(i).value;
 				dataset.addValue(val, names[j]+" Server", key);
 				
 				key = "" + stats[j].computational_setup_client.get(i).key;
-				val = stats[j].computational_setup_client.get(i).value + stats[j].computational_interactive_client.get(i).value;
+				val = stats[j].computational_setup_client.get(i).value + stats[j].computational_interactive_client.get(i).value
+						+ stats[j].computational_offline_client.get(i).value;
 				dataset.addValue(val, names[j]+" Client", key);
 			}
 		}
@@ -2,6 +2,7 @@ package MPSI;
 import java.math.BigInteger;
 import java.util.ArrayList;
 
+import paillierp.BatchExecutor;
 import paillierp.PaillierThreshold;
 import paillierp.PartialDecryption;
 import paillierp.key.PaillierPrivateThresholdKey;
@@ -17,6 +18,10 @@ public class HazayVenkitaClient extends GenericParty {
 	private BigInteger modulus;
 	private BigInteger evaluations_enc[];
 	private PartialDecryption evaluations_shares[];
+	private Quorum quorum;
+	private int member;
+	private int bins = 0;
+	private int load;
 	
 	/** Initializes the HazayVenkita client
 	 * @param id Id of this client
@@ -30,7 +35,36 @@ public class HazayVenkitaClient extends GenericParty {
 		paillier = new PaillierThreshold(private_key.getPublicKey());
 		paillier.setDecryptEncrypt(private_key);
 	
-		this.modulus = private_key.getPublicKey().getN();
+		this.modulus = private_key.getPublicKey().getNS();
+	}
+	
+	/** Sets the quorum of clients computing the decryption shares
+	 * @param quorum Quorum over the clients
+	 * @param member Index of this client in the quorum
+	 */
+	public void setQuorum(Quorum quorum, int member)
+	{
+		this.quorum = quorum;
+		this.member = member;
+	}
+	
+	/** Checks whether this client computes decryption shares. The other clients skip the second stage.
+	 * @param count Number of evaluations
+	 * @return True if this client is part of the quorum of any evaluation
+	 */
+	public boolean isDecrypting(int count)
+	{
+		return quorum == null || quorum.isActive(member, count);
+	}
+	
+	/** Hashes the elements into bins, each with its own polynomial, see {@link BucketedOPE}
+	 * @param bins Number of bins, 0 for a single polynomial over the whole dataset
+	 * @param load Number of roots of every bin polynomial, the same for all parties
+	 */
+	public void setBins(int bins, int load)
+	{
+		this.bins = bins;
+		this.load = load;
 	}
 	
 	/**
@@ -38,7 +72,7 @@ public class HazayVenkitaClient extends GenericParty {
 	 */
 	public void initialize()
 	{
-		p = new OPE(modulus);
+		p = bins > 0 ? new BucketedOPE(modulus, bins, load) : new OPE(modulus);
 		p.interpolate(dataset);
 	}
 	
@@ -71,12 +105,8 @@ public class HazayVenkitaClient extends GenericParty {
 	 */
 	public void stage2()
 	{
-		evaluations_shares = new PartialDecryption[evaluations_enc.length];
-		
-		for(int i=0; i<evaluations_shares.length; i++)
-		{
-			evaluations_shares[i] = paillier.decrypt(evaluations_enc[i]);
-		}
+		BigInteger evaluations[] = quorum == null ? evaluations_enc : quorum.select(evaluations_enc, member);
+		evaluations_shares = BatchExecutor.getDefault().partialDecryptAll(paillier, evaluations);
 	}
 	
 	/** Send the decryption shares of the evaluations
@@ -11,6 +11,8 @@ public class HazayVenkitaMPSI extends GenericMPSI {
 	private HazayVenkitaServer server;
 	private List<HazayVenkitaClient> clients;
 	private int random_bits;
+	private boolean fixed_base = false;
+	private int bins = 0;
 	
 	/** Initializes the NewMPSI protocol
 	 * @param datasets List of datasets for each party
@@ -22,11 +24,60 @@ public class HazayVenkitaMPSI extends GenericMPSI {
 	 */
 	public HazayVenkitaMPSI(ArrayList<ArrayList<String>> datasets, Network network, Performance performance, int prime_bits, int num_parties, int random_bits)
 	{
-		super(datasets, network, performance, prime_bits, num_parties, num_parties-1);
+		this(datasets, network, performance, prime_bits, num_parties, random_bits, num_parties-1);
+	}
+	
+	/** Initializes the HazayVenkita protocol with a decryption threshold below the number of clients
+	 * @param datasets List of datasets for each party
+	 * @param network Network measurement
+	 * @param performance Performance measurement
+	 * @param prime_bits Specifies the number of bits required for the prime factor of n
+	 * @param num_parties Number of parties
+	 * @param random_bits Number of bits for randomization
+	 * @param dec_threshold Number of clients computing the decryption shares, at most num_parties-1
+	 */
+	public HazayVenkitaMPSI(ArrayList<ArrayList<String>> datasets, Network network, Performance performance, int prime_bits, int num_parties, int random_bits, int dec_threshold)
+	{
+		this(datasets, network, performance, prime_bits, num_parties, random_bits, dec_threshold, 1);
+	}
+	
+	/** Initializes the HazayVenkita protocol over the Damgard-Jurik cryptosystem of the given degree
+	 * @param datasets List of datasets for each party
+	 * @param network Network measurement
+	 * @param performance Performance measurement
+	 * @param prime_bits Specifies the number of bits required for the prime factor of n
+	 * @param num_parties Number of parties
+	 * @param random_bits Number of bits for randomization
+	 * @param dec_threshold Number of clients computing the decryption shares, at most num_parties-1
+	 * @param degree Degree s of the Damgard-Jurik cryptosystem; 1 is plain Paillier
+	 */
+	public HazayVenkitaMPSI(ArrayList<ArrayList<String>> datasets, Network network, Performance performance, int prime_bits, int num_parties, int random_bits, int dec_threshold, int degree)
+	{
+		super(datasets, network, performance, prime_bits, num_parties, dec_threshold, degree);
 		
 		this.random_bits = random_bits;
 	}
 	
+	/** Enables or disables evaluating the combined polynomial at the server with a fixed-base table per
+	 * encrypted coefficient, see {@link OPE#setFixedBase(boolean)}
+	 * @param fixed_base True to evaluate with fixed-base tables
+	 */
+	public void setFixedBase(boolean fixed_base)
+	{
+		this.fixed_base = fixed_base;
+	}
+	
+	/** Hashes the elements of all parties into bins, each with its own polynomial padded to a common load, so that
+	 * the server evaluates each of its elements only with the polynomial of its bin, see {@link BucketedOPE}
+	 * @param bins Number of bins, 0 for a single polynomial over the whole dataset
+	 */
+	public void setBins(int bins)
+	{
+		if(bins < 0)
+			throw new IllegalArgumentException("The number of bins must not be negative");
+		this.bins = bins;
+	}
+	
 	/**
 	 * Initializes the protocol. Creates the server and the clients. For each client the initialization step is performed.
 	 */
@@ -34,11 +85,27 @@ public class HazayVenkitaMPSI extends GenericMPSI {
 	public void initialize() 
 	{
 		server = new HazayVenkitaServer(num_parties-1, datasets.get(num_parties-1), keys.getPrivate(0), random_bits);
+		Quorum quorum = newQuorum(1, num_parties-1);
+		// The load of the bins must cover the largest dataset
+		int load = 0;
+		if(bins > 0)
+		{
+			int max_size = 0;
+			for(int i=0; i<datasets.size(); i++)
+				max_size = Math.max(max_size, datasets.get(i).size());
+			load = BucketedOPE.binLoad(max_size, bins);
+		}
+		
+		server.setQuorum(quorum);
+		server.setBins(bins, load);
+		server.setFixedBase(fixed_base);
 		
 		clients = new ArrayList<HazayVenkitaClient>();
 		for(int i=1; i<num_parties; i++)
 		{
 			HazayVenkitaClient c = new HazayVenkitaClient(i, datasets.get(i), keys.getPrivate(i));
+			c.setQuorum(quorum, i-1);
+			c.setBins(bins, load);
 			clients.add(c);
 			
 			performance.start(i);
@@ -75,25 +142,36 @@ public class HazayVenkitaMPSI extends GenericMPSI {
 		server.stage1();
 		performance.stop(0);
 		
-		// The server sends the evaluations to the client
+		// The server sends the evaluations to the clients of the quorum
 		for(int i=0; i<num_clients; i++)
 		{
+			if(!clients.get(i).isDecrypting(server.sendEvaluationsEnc().length))
+				continue;
+			
 			clients.get(i).receiveEvaluationsEnc(server.sendEvaluationsEnc());
 			network.send(0, i+1, server.sendEvaluationsEnc());
 		}
 		
-		// The client performs its second stage, which is to compute the decryption shares of the evaluations
+		// The clients of the quorum perform their second stage, which is to compute the decryption shares of the evaluations
 		for(int i=0; i<num_clients; i++)
 		{
+			if(!clients.get(i).isDecrypting(server.sendEvaluationsEnc().length))
+				continue;
+			
 			performance.start(i+1);
 			clients.get(i).stage2();
 			performance.stop(i+1);
 		}
 		
-		// The clients send the decryption shares of the evaluations back to the server
+		// The clients send the decryption shares of the evaluations back to the server, which combines them on receipt
 		for(int i=0; i<num_clients; i++)
 		{
+			if(clients.get(i).sendEvaluationsShares() == null)
+				continue;
+			
+			performance.start(0);
 			server.receiveEvaluationsShares(clients.get(i).sendEvaluationsShares(), i);
+			performance.stop(0);
 			network.send(i+1, 0, clients.get(i).sendEvaluationsShares());
 		}
 		
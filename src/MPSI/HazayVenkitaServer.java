@@ -2,7 +2,9 @@ package MPSI;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 
+import paillierp.BatchExecutor;
 import paillierp.PaillierThreshold;
 import paillierp.PartialDecryption;
 import paillierp.key.PaillierPrivateThresholdKey;
@@ -20,9 +22,11 @@ public class HazayVenkitaServer extends GenericParty {
 	private BigInteger coefficients[][];
 	private BigInteger combined_coef[];
 	private OPE ope;
+	private boolean fixed_base = false;
 	private int random_bits;
 	private BigInteger evaluations_enc[];
-	private PartialDecryption evaluations_shares[][];
+	private Quorum quorum;
+	private Quorum.Combiner evaluations_shares;
 	private BigInteger evaluations[];
 
 	/** Initializes the HazayVenkita server
@@ -39,11 +43,10 @@ public class HazayVenkitaServer extends GenericParty {
 		this.numClients = numClients;
 		paillier = new PaillierThreshold(private_key.getPublicKey());
 		paillier.setDecryptEncrypt(private_key);
-		this.modulus = private_key.getPublicKey().getN();
+		this.modulus = private_key.getPublicKey().getNS();
 		coefficients = new BigInteger[numClients][];
 		ope = new OPE(modulus);
 		this.random_bits = random_bits;
-		evaluations_shares = new PartialDecryption[numClients][];
 	}
 	
 	public void initialize()
@@ -51,6 +54,31 @@ public class HazayVenkitaServer extends GenericParty {
 		return;
 	}
 	
+	/** Evaluates each element only with the polynomial of its bin, see {@link BucketedOPE}
+	 * @param bins Number of bins, 0 for a single polynomial over the whole dataset
+	 * @param load Number of roots of every bin polynomial, the same for all parties
+	 */
+	public void setBins(int bins, int load)
+	{
+		ope = bins > 0 ? new BucketedOPE(modulus, bins, load) : new OPE(modulus);
+	}
+	
+	/** Enables or disables evaluating the combined polynomial with fixed-base tables, see {@link OPE#setFixedBase(boolean)}
+	 * @param fixed_base True to evaluate with fixed-base tables
+	 */
+	public void setFixedBase(boolean fixed_base)
+	{
+		this.fixed_base = fixed_base;
+	}
+	
+	/** Sets the clients whose decryption shares are combined
+	 * @param quorum Quorum over the clients, indexed by client id
+	 */
+	public void setQuorum(Quorum quorum)
+	{
+		this.quorum = quorum;
+	}
+	
 	/** Receive the encrypted coefficients of the clients
 	 * @param coef Array of encrypted coefficients
 	 * @param client Id of the sending client
@@ -74,9 +102,9 @@ public class HazayVenkitaServer extends GenericParty {
 		}
 		
 		// Initialize the coefficients of the combined polynomial
-		combined_coef = new BigInteger[max];
-		for(int i=0; i<max; i++)
-			combined_coef[i] = paillier.encrypt(BigInteger.ZERO);
+		BigInteger zeros[] = new BigInteger[max];
+		Arrays.fill(zeros, BigInteger.ZERO);
+		combined_coef = BatchExecutor.getDefault().encryptAll(paillier, zeros);
 		
 		// Add each coefficient to the combined coefficient
 		for(int i=0; i<coefficients.length; i++)
@@ -87,7 +115,8 @@ public class HazayVenkitaServer extends GenericParty {
 			}
 		}
 
-		// Compute the evaluations of the combined polynomial with the elements of the server dataset
+		// Compute the evaluations of the combined polynomial, or of the polynomial of their bin, with the elements of the server dataset
+		ope.setFixedBase(fixed_base);
 		evaluations_enc = ope.evaluate(paillier, combined_coef, dataset, random_bits);
 	}
 	
@@ -99,13 +128,20 @@ public class HazayVenkitaServer extends GenericParty {
 		return evaluations_enc;
 	}
 	
-	/** Receive the decryption shares of the evaluations by the clients
+	/** Receive the decryption shares of the evaluations by the clients and fold them into the combined shares
+	 * if the client is part of the quorum
 	 * @param evaluationsShares The decryption shares
 	 * @param client Id of the sending client
 	 */
 	public void receiveEvaluationsShares(PartialDecryption[] evaluationsShares, int client)
 	{
-		this.evaluations_shares[client] = evaluationsShares;
+		if(evaluations_shares == null)
+		{
+			if(quorum == null)
+				throw new IllegalStateException("The quorum must be set before receiving decryption shares");
+			evaluations_shares = quorum.newCombiner(paillier, evaluations_enc.length);
+		}
+		evaluations_shares.add(evaluationsShares, client);
 	}
 	
 	/**
@@ -114,18 +150,10 @@ public class HazayVenkitaServer extends GenericParty {
 	public void stage2()
 	{
 		// Combining the received decryption shares of the evaluations
-		evaluations = new BigInteger[evaluations_enc.length];
-		for(int i=0; i<evaluations_shares[0].length; i++)
-		{
-			PartialDecryption shares[] = new PartialDecryption[numClients];
-			
-			for(int j=0; j<numClients; j++)
-			{
-				shares[j] = evaluations_shares[j][i];
-			}
-			
-			evaluations[i] = paillier.combineShares(shares).mod(modulus);
-		}
+		evaluations = evaluations_shares.decrypt();
+		evaluations_shares = null;
+		for(int i=0; i<evaluations.length; i++)
+			evaluations[i] = evaluations[i].mod(modulus);
 		
 		// If the decrypted evaluation is zero, then add that element to the intersection
 		for(int i=0; i<evaluations.length; i++)
@@ -3,6 +3,7 @@ import java.util.Random;
 
 import paillierp.key.KeyGen;
 import paillierp.key.PaillierPrivateThresholdKey;
+import paillierp.key.ThresholdKeyStore;
 
 /** Class for generating threshold Paillier private keys
  * @author Michael
@@ -11,15 +12,46 @@ import paillierp.key.PaillierPrivateThresholdKey;
 public class KeyGenerator {
 	private PaillierPrivateThresholdKey private_keys[];
 	
+	/** Store the keys are loaded from and saved to, or null to generate new keys every time */
+	private static ThresholdKeyStore key_store;
+	
+	/** Sets the store used by all key generators, so that repeated runs reuse the same keys
+	 * @param store Key store, or null to generate new keys every time
+	 */
+	public static synchronized void setKeyStore(ThresholdKeyStore store)
+	{
+		key_store = store;
+	}
+	
 	/** Generates threshold Paillier private keys
 	 * @param prime_bits Specifies the number of bits required for the prime factor of n
 	 * @param numKeys Number of keys to generate
 	 * @param dec_threshold Least number of decryption servers required for shared decryption
 	 */
 	public KeyGenerator(int prime_bits, int numKeys, int dec_threshold)
+	{
+		this(prime_bits, numKeys, dec_threshold, 1);
+	}
+	
+	/** Generates threshold Damgard-Jurik private keys of the given degree
+	 * @param prime_bits Specifies the number of bits required for the prime factor of n
+	 * @param numKeys Number of keys to generate
+	 * @param dec_threshold Least number of decryption servers required for shared decryption
+	 * @param degree Degree s of the cryptosystem; plaintexts are taken modulo n^s
+	 */
+	public KeyGenerator(int prime_bits, int numKeys, int dec_threshold, int degree)
 	{
 		Random rnd = new Random();
-		private_keys = KeyGen.PaillierThresholdKey(prime_bits, numKeys, dec_threshold, rnd.nextLong());
+		ThresholdKeyStore store;
+		synchronized(KeyGenerator.class)
+		{
+			store = key_store;
+		}
+		
+		if(store != null)
+			private_keys = store.getOrCreate(prime_bits, numKeys, dec_threshold, degree, rnd.nextLong());
+		else
+			private_keys = KeyGen.PaillierThresholdKey(prime_bits, numKeys, dec_threshold, degree, rnd.nextLong());
 	}
 	
 	/** Gets the private key at the given index
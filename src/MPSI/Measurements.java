@@ -1,5 +1,9 @@
 package MPSI;
 import java.util.ArrayList;
+import java.util.HashMap;
+
+import paillierp.PaillierThreshold;
+import paillierp.key.PaillierPrivateThresholdKey;
 
 /** Class for performing the measurements for the three protocols with varying parameters
  * @author Michael
@@ -18,6 +22,19 @@ public class Measurements {
 	private int default_num_parties;
 	private ProtocolStats stats[][];
 	private int prime_bits;
+	private ProtocolStats quorum_stats[][];
+	private Quorum.Policy quorum_policy;
+	private int quorum_threshold;
+	private boolean bucketed = false;
+	private boolean optimized_bloom = false;
+	private boolean offline_reported = false;
+	private HashMap<Integer, BloomParameters> bloom_costs = new HashMap<Integer, BloomParameters>();
+	
+	/** False positive rate of the bloomfilters, 2^(-50) */
+	public static final double BLOOM_FPR = Math.pow(2, -50);
+	
+	/** Number of operations of each kind timed when measuring the costs for the bloomfilter parameters */
+	public static final int COST_SAMPLES = 500;
 	
 	/** Initializes the measurements with the given parameters
 	 * @param min_num_parties Minimum number of parties
@@ -59,6 +76,64 @@ public class Measurements {
 		return stats;
 	}
 	
+	/** Adds a second configuration in which only a minimal quorum of parties computes the decryption shares.
+	 * Its results are kept apart from the default configuration, see {@link #getQuorumStats()}
+	 * @param policy Policy for choosing the parties of the quorum
+	 * @param dec_threshold Decryption threshold, limited to the number of clients
+	 */
+	public void setQuorumConfiguration(Quorum.Policy policy, int dec_threshold)
+	{
+		if(dec_threshold < 1)
+			throw new IllegalArgumentException("The decryption threshold must be at least 1");
+		
+		this.quorum_policy = policy;
+		this.quorum_threshold = dec_threshold;
+		
+		quorum_stats = new ProtocolStats[2][3];
+		for(int i=0; i<3; i++)
+		{
+			quorum_stats[0][i] = new ProtocolStats();
+			quorum_stats[1][i] = new ProtocolStats();
+		}
+	}
+	
+	/** Enables or disables hashing the elements into bins for the HazayVenkita protocol, see {@link BucketedOPE}.
+	 * The evaluation cost is then linear in the set size, so larger sets are measured as well
+	 * @param bucketed True to use {@link BucketedOPE#defaultBins(int)} bins
+	 */
+	public void setBucketed(boolean bucketed)
+	{
+		this.bucketed = bucketed;
+	}
+	
+	/** Enables or disables choosing the bloomfilter parameters by the estimated cost of each protocol instead of
+	 * by the size of the bloomfilter, see {@link BloomParameters}. The costs of the operations are measured once
+	 * per key size
+	 * @param optimized_bloom True to use the cost-aware parameters
+	 */
+	public void setOptimizedBloom(boolean optimized_bloom)
+	{
+		this.optimized_bloom = optimized_bloom;
+	}
+	
+	/** Enables or disables reporting the time spent before the datasets are known, e.g. by the offline stage of
+	 * the NewMPSI clients, as a series of its own. Otherwise it is added to the setup time, so that every protocol
+	 * is charged for all of its encryptions, and the offline series are zero.
+	 * @param offline_reported True to report the offline time separately
+	 */
+	public void setOfflineReported(boolean offline_reported)
+	{
+		this.offline_reported = offline_reported;
+	}
+	
+	/** Get the measurement results of the minimal quorum configuration
+	 * @return Same layout as {@link #getStats()}, or null if no quorum configuration was set
+	 */
+	public ProtocolStats[][] getQuorumStats()
+	{
+		return quorum_stats;
+	}
+	
 	/**
 	 * Starts the measurements with the different parameters specified before
 	 */
@@ -71,45 +146,10 @@ public class Measurements {
 			
 			DatasetGenerator setGen = new DatasetGenerator(num_parties, default_set_size, intersection_size, element_length);
 			ArrayList<ArrayList<String>> sets = setGen.getSets();
-			long intermediate_stats[][][];
-			long total;
-			
-			intermediate_stats = NewMPSI(sets);
-			
-			total = intermediate_stats[0][0][0] + intermediate_stats[0][0][1];
-			stats[0][0].communicational_server.add(new DataPoint(num_parties, total));
-			total = intermediate_stats[0][1][0] + intermediate_stats[0][1][1];
-			stats[0][0].communicational_client.add(new DataPoint(num_parties, total));
-			
-			stats[0][0].computational_setup_server.add(new DataPoint(num_parties, intermediate_stats[1][0][0]));
-			stats[0][0].computational_interactive_server.add(new DataPoint(num_parties, intermediate_stats[1][0][1]));
-			stats[0][0].computational_setup_client.add(new DataPoint(num_parties, intermediate_stats[1][1][0]));
-			stats[0][0].computational_interactive_client.add(new DataPoint(num_parties, intermediate_stats[1][1][1]));
-			
-			intermediate_stats = MiyajiNishidaMPSI(sets);
-			int dealer = intermediate_stats[0].length - 1;
-			
-			total = intermediate_stats[0][dealer][0] + intermediate_stats[0][dealer][1];
-			stats[0][1].communicational_server.add(new DataPoint(num_parties, total));
-			total = intermediate_stats[0][0][0] + intermediate_stats[0][0][1];
-			stats[0][1].communicational_client.add(new DataPoint(num_parties, total));
-			
-			stats[0][1].computational_setup_server.add(new DataPoint(num_parties, intermediate_stats[1][dealer][0]));
-			stats[0][1].computational_interactive_server.add(new DataPoint(num_parties, intermediate_stats[1][dealer][1]));
-			stats[0][1].computational_setup_client.add(new DataPoint(num_parties, intermediate_stats[1][0][0]));
-			stats[0][1].computational_interactive_client.add(new DataPoint(num_parties, intermediate_stats[1][0][1]));
-			
-			intermediate_stats = HazayVenkitaMPSI(sets);
-			total = intermediate_stats[0][0][0] + intermediate_stats[0][0][1];
-			stats[0][2].communicational_server.add(new DataPoint(num_parties, total));
-			total = intermediate_stats[0][1][0] + intermediate_stats[0][1][1];
-			stats[0][2].communicational_client.add(new DataPoint(num_parties, total));
-			
-			stats[0][2].computational_setup_server.add(new DataPoint(num_parties, intermediate_stats[1][0][0]));
-			stats[0][2].computational_interactive_server.add(new DataPoint(num_parties, intermediate_stats[1][0][1]));
-			stats[0][2].computational_setup_client.add(new DataPoint(num_parties, intermediate_stats[1][1][0]));
-			stats[0][2].computational_interactive_client.add(new DataPoint(num_parties, intermediate_stats[1][1][1]));
 			
+			measure(stats[0], num_parties, sets, num_parties-1, Quorum.Policy.FIRST_W);
+			if(quorum_stats != null)
+				measure(quorum_stats[0], num_parties, sets, Math.min(quorum_threshold, num_parties-1), quorum_policy);
 		}
 		
 		// Get the measurements for varying set sizes
@@ -119,48 +159,65 @@ public class Measurements {
 			
 			DatasetGenerator setGen = new DatasetGenerator(default_num_parties, set_size, intersection_size, element_length);
 			ArrayList<ArrayList<String>> sets = setGen.getSets();
-			long intermediate_stats[][][];
-			long total;
-			
-			intermediate_stats = NewMPSI(sets);
-			
-			total = intermediate_stats[0][0][0] + intermediate_stats[0][0][1];
-			stats[1][0].communicational_server.add(new DataPoint(set_size, total));
-			total = intermediate_stats[0][1][0] + intermediate_stats[0][1][1];
-			stats[1][0].communicational_client.add(new DataPoint(set_size, total));
-			
-			stats[1][0].computational_setup_server.add(new DataPoint(set_size, intermediate_stats[1][0][0]));
-			stats[1][0].computational_interactive_server.add(new DataPoint(set_size, intermediate_stats[1][0][1]));
-			stats[1][0].computational_setup_client.add(new DataPoint(set_size, intermediate_stats[1][1][0]));
-			stats[1][0].computational_interactive_client.add(new DataPoint(set_size, intermediate_stats[1][1][1]));
-			
-			intermediate_stats = MiyajiNishidaMPSI(sets);
-			int dealer = intermediate_stats[0].length - 1;
-			
-			total = intermediate_stats[0][dealer][0] + intermediate_stats[0][dealer][1];
-			stats[1][1].communicational_server.add(new DataPoint(set_size, total));
-			total = intermediate_stats[0][0][0] + intermediate_stats[0][0][1];
-			stats[1][1].communicational_client.add(new DataPoint(set_size, total));
-			
-			stats[1][1].computational_setup_server.add(new DataPoint(set_size, intermediate_stats[1][dealer][0]));
-			stats[1][1].computational_interactive_server.add(new DataPoint(set_size, intermediate_stats[1][dealer][1]));
-			stats[1][1].computational_setup_client.add(new DataPoint(set_size, intermediate_stats[1][0][0]));
-			stats[1][1].computational_interactive_client.add(new DataPoint(set_size, intermediate_stats[1][0][1]));
-			
-			intermediate_stats = HazayVenkitaMPSI(sets);
-			total = intermediate_stats[0][0][0] + intermediate_stats[0][0][1];
-			stats[1][2].communicational_server.add(new DataPoint(set_size, total));
-			total = intermediate_stats[0][1][0] + intermediate_stats[0][1][1];
-			stats[1][2].communicational_client.add(new DataPoint(set_size, total));
-			
-			stats[1][2].computational_setup_server.add(new DataPoint(set_size, intermediate_stats[1][0][0]));
-			stats[1][2].computational_interactive_server.add(new DataPoint(set_size, intermediate_stats[1][0][1]));
-			stats[1][2].computational_setup_client.add(new DataPoint(set_size, intermediate_stats[1][1][0]));
-			stats[1][2].computational_interactive_client.add(new DataPoint(set_size, intermediate_stats[1][1][1]));
 			
+			measure(stats[1], set_size, sets, default_num_parties-1, Quorum.Policy.FIRST_W);
+			if(quorum_stats != null)
+				measure(quorum_stats[1], set_size, sets, Math.min(quorum_threshold, default_num_parties-1), quorum_policy);
 		}
 	}
 	
+	/** Executes the three protocols on the same sets and adds their results as data points
+	 * @param stats Statistics of the three protocols
+	 * @param key Key of the data points
+	 * @param sets List of sets for each party
+	 * @param dec_threshold Decryption threshold
+	 * @param policy Policy for choosing the parties computing the decryption shares
+	 */
+	private void measure(ProtocolStats stats[], long key, ArrayList<ArrayList<String>> sets, int dec_threshold, Quorum.Policy policy)
+	{
+		long intermediate_stats[][][];
+		
+		intermediate_stats = NewMPSI(sets, dec_threshold, policy);
+		addStats(stats[0], key, intermediate_stats, 0, 1);
+		
+		intermediate_stats = MiyajiNishidaMPSI(sets, dec_threshold, policy);
+		int dealer = intermediate_stats[0].length - 1;
+		addStats(stats[1], key, intermediate_stats, dealer, 0);
+		
+		intermediate_stats = HazayVenkitaMPSI(sets, dec_threshold, policy);
+		addStats(stats[2], key, intermediate_stats, 0, 1);
+	}
+	
+	/** Adds the network and performance results of one execution as data points
+	 * @param stats Statistics of the protocol
+	 * @param key Key of the data points
+	 * @param intermediate_stats Network and performance measurement results
+	 * @param server Index of the server
+	 * @param client Index of the client that is reported
+	 */
+	private void addStats(ProtocolStats stats, long key, long intermediate_stats[][][], int server, int client)
+	{
+		long total;
+		
+		total = intermediate_stats[0][server][0] + intermediate_stats[0][server][1];
+		stats.communicational_server.add(new DataPoint(key, total));
+		total = intermediate_stats[0][client][0] + intermediate_stats[0][client][1];
+		stats.communicational_client.add(new DataPoint(key, total));
+		
+		// The offline time is part of the setup unless it is reported separately
+		long offline_server = intermediate_stats[1][server][2];
+		long offline_client = intermediate_stats[1][client][2];
+		long setup_server = intermediate_stats[1][server][0] + (offline_reported ? 0 : offline_server);
+		long setup_client = intermediate_stats[1][client][0] + (offline_reported ? 0 : offline_client);
+		
+		stats.computational_setup_server.add(new DataPoint(key, setup_server));
+		stats.computational_interactive_server.add(new DataPoint(key, intermediate_stats[1][server][1]));
+		stats.computational_offline_server.add(new DataPoint(key, offline_reported ? offline_server : 0));
+		stats.computational_setup_client.add(new DataPoint(key, setup_client));
+		stats.computational_interactive_client.add(new DataPoint(key, intermediate_stats[1][client][1]));
+		stats.computational_offline_client.add(new DataPoint(key, offline_reported ? offline_client : 0));
+	}
+	
 	/** Get optimal bloomfilter size and number of hashes given the number of elements in the set.
 	 * The false positive rate is set to 2^(-50)
 	 * @param set_size Number of elements in the set
@@ -169,27 +226,80 @@ public class Measurements {
 	public int[] bloomError(int set_size)
 	{
 		int params[] = new int[2];
-		double FPR = 8.881784197 * 0.0000000000000001; // 2^(-50)
+		double FPR = BLOOM_FPR;
 		params[0] = (int) Math.ceil((set_size * Math.log(FPR)) / Math.log(1 / Math.pow(2, Math.log(2))));
-		params[1] = (int) Math.round((params[0] / set_size) * Math.log(2));
+		params[1] = (int) Math.round(((double) params[0] / set_size) * Math.log(2));
 		return params;
 	}
 	
+	/** Get the bloomfilter size and number of hash functions for a protocol. These are the parameters of
+	 * {@link #bloomError(int)}, or the cheapest ones for the protocol if enabled by {@link #setOptimizedBloom(boolean)}
+	 * @param protocol Protocol using the bloomfilters
+	 * @param set_size Number of elements in the set
+	 * @param num_parties Number of parties
+	 * @param dec_threshold Decryption threshold
+	 * @return A list with the first element being the number of bits and the second element being the number of hash functions
+	 */
+	private int[] bloomParameters(BloomParameters.Protocol protocol, int set_size, int num_parties, int dec_threshold)
+	{
+		if(!optimized_bloom)
+			return bloomError(set_size);
+		
+		BloomParameters params = new BloomParameters(protocol, BLOOM_FPR, set_size, num_parties, dec_threshold);
+		params.setCosts(measuredCosts());
+		return new int[] {params.getSize(), params.getK()};
+	}
+	
+	/** Get the costs of the operations of the cryptosystem with the current key size, measured on the first call
+	 * for every key size
+	 * @return An optimizer holding the measured costs
+	 */
+	private BloomParameters measuredCosts()
+	{
+		BloomParameters costs = bloom_costs.get(prime_bits);
+		if(costs == null)
+		{
+			// The costs only depend on the key size, so any threshold key of that size will do
+			PaillierPrivateThresholdKey private_key = new KeyGenerator(prime_bits, 2, 2).getPrivate(0);
+			PaillierThreshold paillier = new PaillierThreshold(private_key.getPublicKey());
+			paillier.setDecryptEncrypt(private_key);
+			
+			costs = new BloomParameters(BloomParameters.Protocol.NEW_MPSI, BLOOM_FPR, 1, 2);
+			// The first measurement warms up the JIT
+			costs.measureCosts(paillier, COST_SAMPLES);
+			costs.measureCosts(paillier, COST_SAMPLES);
+			bloom_costs.put(prime_bits, costs);
+		}
+		return costs;
+	}
+	
 	/** Execute the NewMPSI protocol
 	 * @param sets List of sets for each party
 	 * @return Network and performance measurement results
 	 */
 	public long[][][] NewMPSI(ArrayList<ArrayList<String>> sets)
+	{
+		return NewMPSI(sets, sets.size()-1, Quorum.Policy.FIRST_W);
+	}
+	
+	/** Execute the NewMPSI protocol with a given decryption quorum
+	 * @param sets List of sets for each party
+	 * @param dec_threshold Decryption threshold
+	 * @param policy Policy for choosing the clients computing the decryption shares
+	 * @return Network and performance measurement results
+	 */
+	public long[][][] NewMPSI(ArrayList<ArrayList<String>> sets, int dec_threshold, Quorum.Policy policy)
 	{
 		int num_parties = sets.size();
-		int bloom_params[] = bloomError(sets.get(0).size());
+		int bloom_params[] = bloomParameters(BloomParameters.Protocol.NEW_MPSI, sets.get(0).size(), num_parties, dec_threshold);
 		int bloom_size = bloom_params[0];
 		int bloom_k = bloom_params[1];
 		int random_exponent = 100;
 		
 		Network network = new Network(num_parties);
 		Performance performance = new Performance(num_parties);
-		NewMPSI test = new NewMPSI(sets, network, performance, prime_bits, num_parties, bloom_size, bloom_k, random_exponent);
+		NewMPSI test = new NewMPSI(sets, network, performance, prime_bits, num_parties, bloom_size, bloom_k, random_exponent, dec_threshold);
+		test.setQuorumPolicy(policy);
 		
 		test.initialize();
 		test.execute();
@@ -207,9 +317,20 @@ public class Measurements {
 	 * @return Network and performance measurement results
 	 */
 	public long[][][] MiyajiNishidaMPSI(ArrayList<ArrayList<String>> sets)
+	{
+		return MiyajiNishidaMPSI(sets, sets.size()-1, Quorum.Policy.FIRST_W);
+	}
+	
+	/** Execute the MiyajiNishidaMPSI protocol with a given decryption quorum
+	 * @param sets List of sets for each party
+	 * @param dec_threshold Decryption threshold
+	 * @param policy Policy for choosing the parties computing the decryption shares
+	 * @return Network and performance measurement results
+	 */
+	public long[][][] MiyajiNishidaMPSI(ArrayList<ArrayList<String>> sets, int dec_threshold, Quorum.Policy policy)
 	{
 		int num_parties = sets.size();
-		int bloom_params[] = bloomError(sets.get(0).size());
+		int bloom_params[] = bloomParameters(BloomParameters.Protocol.MIYAJI_NISHIDA, sets.get(0).size(), num_parties, dec_threshold);
 		int bloom_size = bloom_params[0];
 		int bloom_k = bloom_params[1];
 		
@@ -219,7 +340,8 @@ public class Measurements {
 		// limit number of parties, because this protocol's complexity is not linear
 		if(num_parties <= 30)
 		{
-			MiyajiNishidaMPSI test = new MiyajiNishidaMPSI(sets, network, performance, prime_bits, num_parties, bloom_size, bloom_k);
+			MiyajiNishidaMPSI test = new MiyajiNishidaMPSI(sets, network, performance, prime_bits, num_parties, bloom_size, bloom_k, dec_threshold);
+			test.setQuorumPolicy(policy);
 			
 			test.initialize();
 			test.execute();
@@ -233,11 +355,71 @@ public class Measurements {
 		return stats;
 	}
 	
+	/** Execute the MiyajiNishidaMPSI protocol once for every topology of the share exchange
+	 * @param sets List of sets for each party
+	 * @return For each topology, in the order of {@link MiyajiNishidaMPSI.Topology#values()}, the bytes sent in the share exchange
+	 */
+	public long[] MiyajiNishidaTopologies(ArrayList<ArrayList<String>> sets)
+	{
+		int num_parties = sets.size();
+		int bloom_params[] = bloomError(sets.get(0).size());
+		MiyajiNishidaMPSI.Topology topologies[] = MiyajiNishidaMPSI.Topology.values();
+		long bytes[] = new long[topologies.length];
+		
+		for(int i=0; i<topologies.length; i++)
+		{
+			Network network = new Network(num_parties+1);
+			Performance performance = new Performance(num_parties+1);
+			MiyajiNishidaMPSI test = new MiyajiNishidaMPSI(sets, network, performance, prime_bits, num_parties, bloom_params[0], bloom_params[1]);
+			test.setTopology(topologies[i]);
+			
+			test.initialize();
+			test.execute();
+			bytes[i] = network.getChannelBytes(topologies[i].name());
+		}
+		
+		return bytes;
+	}
+	
+	/**
+	 * Prints the bytes of the MiyajiNishida share exchange for every topology and number of parties, and the cheapest topology
+	 */
+	public void topologies()
+	{
+		MiyajiNishidaMPSI.Topology topologies[] = MiyajiNishidaMPSI.Topology.values();
+		for(int num_parties = min_num_parties; num_parties <= max_num_parties; num_parties += num_parties_interval)
+		{
+			DatasetGenerator setGen = new DatasetGenerator(num_parties, default_set_size, intersection_size, element_length);
+			long bytes[] = MiyajiNishidaTopologies(setGen.getSets());
+			
+			int cheapest = 0;
+			String line = "Parties: " + num_parties;
+			for(int i=0; i<topologies.length; i++)
+			{
+				line += ", " + topologies[i] + ": " + bytes[i];
+				if(bytes[i] < bytes[cheapest])
+					cheapest = i;
+			}
+			System.out.println(line + " - cheapest: " + topologies[cheapest]);
+		}
+	}
+	
 	/** Execute the HazayVenkitaMPSI protocol
 	 * @param sets List of sets for each party
 	 * @return Network and performance measurement results
 	 */
 	public long[][][] HazayVenkitaMPSI(ArrayList<ArrayList<String>> sets)
+	{
+		return HazayVenkitaMPSI(sets, sets.size()-1, Quorum.Policy.FIRST_W);
+	}
+	
+	/** Execute the HazayVenkitaMPSI protocol with a given decryption quorum
+	 * @param sets List of sets for each party
+	 * @param dec_threshold Decryption threshold
+	 * @param policy Policy for choosing the clients computing the decryption shares
+	 * @return Network and performance measurement results
+	 */
+	public long[][][] HazayVenkitaMPSI(ArrayList<ArrayList<String>> sets, int dec_threshold, Quorum.Policy policy)
 	{
 		int num_parties = sets.size();
 		int random_exponent = 100;
@@ -245,10 +427,13 @@ public class Measurements {
 		Network network = new Network(num_parties);
 		Performance performance = new Performance(num_parties);
 		
-		// limit set size, because this protocol's complexity is not linear
-		if(sets.get(0).size() <= 3500)
+		// limit set size, because this protocol's complexity is not linear without bins
+		if(bucketed || sets.get(0).size() <= 3500)
 		{
-			HazayVenkitaMPSI test = new HazayVenkitaMPSI(sets, network, performance, prime_bits, num_parties, random_exponent);
+			HazayVenkitaMPSI test = new HazayVenkitaMPSI(sets, network, performance, prime_bits, num_parties, random_exponent, dec_threshold);
+			test.setQuorumPolicy(policy);
+			if(bucketed)
+				test.setBins(BucketedOPE.defaultBins(sets.get(0).size()));
 			
 			test.initialize();
 			test.execute();
@@ -1,7 +1,10 @@
 package MPSI;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 
+import paillierp.BatchExecutor;
+import paillierp.Montgomery;
 import paillierp.PaillierThreshold;
 import paillierp.key.PaillierPrivateThresholdKey;
 
@@ -13,27 +16,85 @@ public class MiyajiNishidaDealer {
 	
 	private int numParties;
 	private PaillierThreshold paillier;
-	private ArrayList<ArrayList<BigInteger>> EBFs;
+	private Montgomery engine;
+	private long correction[];
+	private long entries[][];
+	private long received;
 	private BigInteger EIBF[];
+	private boolean packed;
 	
 	/** Initializes the MiyajiNishida dealer
 	 * @param numParties Number of parties
 	 * @param private_key Private key of the dealer
 	 */
 	public MiyajiNishidaDealer(int numParties, PaillierPrivateThresholdKey private_key)
+	{
+		this(numParties, private_key, false);
+	}
+	
+	/** Initializes the MiyajiNishida dealer
+	 * @param numParties Number of parties
+	 * @param private_key Private key of the dealer
+	 * @param packed Whether the EBFs hold packed counters, see {@link PackedEncoding}
+	 */
+	public MiyajiNishidaDealer(int numParties, PaillierPrivateThresholdKey private_key, boolean packed)
 	{
 		this.numParties = numParties;
+		this.packed = packed;
 		paillier = new PaillierThreshold(private_key.getPublicKey());
 		paillier.setDecryptEncrypt(private_key);
-		EBFs = new ArrayList<ArrayList<BigInteger>>();
+		
+		// The products are computed in Montgomery form. Each multiplication of a loaded value contributes
+		// a factor R^-1, so every product of the EBF entries, Enc_y(0) and Enc_y(-n) starts from R^factors to cancel them
+		// Packed counters are compared with n by the parties instead, as the subtraction would borrow across slots
+		int factors = packed ? numParties+1 : numParties+2;
+		engine = new Montgomery(paillier.getPublicKey().getNSPlusOne());
+		correction = engine.newElement();
+		engine.powerOfR(factors, correction);
+		entries = new long[0][];
 	}
 	
-	/** Receive the EBF of a party
+	/** Receive the EBF of a party and add it to the EBFs received so far
 	 * @param EBF The EBF received
 	 */
 	public void receiveEBF(ArrayList<BigInteger> EBF)
 	{
-		EBFs.add(EBF);
+		receiveEBFSegment(EBF, 0);
+	}
+	
+	/** Receive consecutive entries of the EBF of a party, e.g. a segment of a {@link PartitionedBloomfilter},
+	 * and add them to the entries received so far
+	 * @param segment The entries received
+	 * @param offset Position of the first entry in the EBF
+	 */
+	public synchronized void receiveEBFSegment(final ArrayList<BigInteger> segment, final int offset)
+	{
+		// Grow the IBF to the largest position received
+		int size = entries.length;
+		if(offset + segment.size() > size)
+		{
+			entries = Arrays.copyOf(entries, offset + segment.size());
+			for(int j=size; j<entries.length; j++)
+			{
+				entries[j] = engine.newElement();
+				engine.copy(correction, entries[j]);
+			}
+		}
+		
+		// Add the EBF to the IBF, where EBF = Enc_y(BF_{m,k}(S_i)) and EIBF = Enc_y(IBF_{m,k}(U S_i))
+		BatchExecutor.getDefault().run(segment.size(), new BatchExecutor.Range() {
+			public void run(int from, int to)
+			{
+				Montgomery local = engine.copy();
+				long value[] = local.newElement();
+				for(int j=from; j<to; j++)
+				{
+					local.load(segment.get(j), value);
+					local.accumulate(entries[offset+j], value);
+				}
+			}
+		});
+		received += segment.size();
 	}
 	
 	/**
@@ -41,34 +102,41 @@ public class MiyajiNishidaDealer {
 	 */
 	public void stage1()
 	{
-		// Initialize the IBF, which is the combined EBF of all parties
-		int bloomSize = EBFs.get(0).size();
+		// The IBF is the combined EBF of all parties, added up on receipt
+		// In packed mode every entry holds several counters
+		int bloomSize = entries.length;
+		if(received != (long)numParties*bloomSize)
+			throw new IllegalStateException("Received " + received + " EBF entries, expected " + (long)numParties*bloomSize);
 		EIBF = new BigInteger[bloomSize];
-		for(int i=0; i<bloomSize; i++)
+		
+		// Computes the n-subtraction of the IBF by subtracting Enc_y(-n) from each entry
+		long encNValue[] = engine.newElement();
+		if(!packed)
 		{
-			EIBF[i] = paillier.encrypt(BigInteger.ZERO);
+			BigInteger encN = paillier.encrypt(paillier.getPublicKey().getNSPlusOne().subtract(BigInteger.valueOf(numParties)));
+			engine.load(encN, encNValue);
 		}
+		long value[] = engine.newElement();
+		
+		BigInteger zeros[] = new BigInteger[bloomSize];
+		Arrays.fill(zeros, BigInteger.ZERO);
+		zeros = BatchExecutor.getDefault().encryptAll(paillier, zeros);
 		
-		// Add all EBFs to the EIBF, where EBF = Enc_y(BF_{m,k}(S_i)) and EIBF = Enc_y(IBF_{m,k}(U S_i))
 		// Note that EIBF is not the encrypted inverted bloomfilter as in the NewMPSI protocol!
 		// It is the encrypted integrated bloomfilter
-		for(int i=0; i<EBFs.size(); i++)
-		{
-			ArrayList<BigInteger> EBF = EBFs.get(i);
-			for(int j=0; j<bloomSize; j++)
-			{
-				EIBF[j] = paillier.add(EIBF[j], EBF.get(j));
-			}
-		}
-		
-		// Computes the n-subtraction of the IBF by subtracting Enc_y(-n) from each entry
-		// in the EIBF and then rerandomizing the result
-		BigInteger encN = paillier.encrypt(paillier.getPublicKey().getNSPlusOne().subtract(BigInteger.valueOf(numParties)));
 		for(int j=0; j<bloomSize; j++)
 		{
-			EIBF[j] = paillier.add(encN, EIBF[j]);
-			EIBF[j] = paillier.randomize(EIBF[j]);
+			long entry[] = entries[j];
+			engine.load(zeros[j], value);
+			engine.accumulate(entry, value);
+			
+			// Subtract n and rerandomize the result
+			if(!packed)
+				engine.accumulate(entry, encNValue);
+			EIBF[j] = engine.toBigInteger(entry);
 		}
+		entries = new long[0][];
+		EIBF = BatchExecutor.getDefault().randomizeAll(paillier, EIBF);
 	}
 	
 	/** Send the combined EBF
@@ -1,5 +1,7 @@
 package MPSI;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 /** Class for the MiyajiNishida protocol
@@ -8,10 +10,28 @@ import java.util.List;
  */
 public class MiyajiNishidaMPSI extends GenericMPSI {
 	
+	/** Topologies for exchanging the decryption shares of the EIBF
+	 */
+	public enum Topology {
+		/** Every party sends its shares to every other party, and every party combines them */
+		ALL_TO_ALL,
+		/** Every party sends its shares to party 0, which combines them once and broadcasts the decrypted bits */
+		DESIGNATED_COMBINER,
+		/** The parties form a binary tree rooted at party 0. Every party combines its own shares with the partial
+		 * combinations of its children and forwards a single partial combination to its parent. Party 0 decrypts
+		 * and the bits are relayed back down the tree */
+		RELAY
+	}
+	
 	private MiyajiNishidaDealer dealer;
 	private List<MiyajiNishidaParty> parties;
 	private int bloom_size;
 	private int bloom_k;
+	private boolean packed = false;
+	private boolean lazy = false;
+	private boolean partitioned = false;
+	private SegmentReceiver receiver;
+	private Topology topology = Topology.ALL_TO_ALL;
 	
 	/** Initializes the MiyajiNishida protocol
 	 * @param datasets List of datasets for each party
@@ -24,17 +44,89 @@ public class MiyajiNishidaMPSI extends GenericMPSI {
 	 */
 	public MiyajiNishidaMPSI(ArrayList<ArrayList<String>> datasets, Network network, Performance performance, int prime_bits, int num_parties, int bloom_size, int bloom_k)
 	{
-		super(datasets, network, performance, prime_bits, num_parties, num_parties-1);
+		this(datasets, network, performance, prime_bits, num_parties, bloom_size, bloom_k, num_parties-1);
+	}
+	
+	/** Initializes the MiyajiNishida protocol with a given decryption threshold
+	 * @param datasets List of datasets for each party
+	 * @param network Network measurement
+	 * @param performance Performance measurement
+	 * @param prime_bits Specifies the number of bits required for the prime factor of n
+	 * @param num_parties Number of parties
+	 * @param bloom_size Bloomfilter number of bits
+	 * @param bloom_k Bloomfilter number of hashes
+	 * @param dec_threshold Number of parties computing the decryption shares, at most num_parties
+	 */
+	public MiyajiNishidaMPSI(ArrayList<ArrayList<String>> datasets, Network network, Performance performance, int prime_bits, int num_parties, int bloom_size, int bloom_k, int dec_threshold)
+	{
+		this(datasets, network, performance, prime_bits, num_parties, bloom_size, bloom_k, dec_threshold, 1);
+	}
+	
+	/** Initializes the MiyajiNishida protocol over the Damgard-Jurik cryptosystem of the given degree
+	 * @param datasets List of datasets for each party
+	 * @param network Network measurement
+	 * @param performance Performance measurement
+	 * @param prime_bits Specifies the number of bits required for the prime factor of n
+	 * @param num_parties Number of parties
+	 * @param bloom_size Bloomfilter number of bits
+	 * @param bloom_k Bloomfilter number of hashes
+	 * @param dec_threshold Number of parties computing the decryption shares, at most num_parties
+	 * @param degree Degree s of the Damgard-Jurik cryptosystem; 1 is plain Paillier
+	 */
+	public MiyajiNishidaMPSI(ArrayList<ArrayList<String>> datasets, Network network, Performance performance, int prime_bits, int num_parties, int bloom_size, int bloom_k, int dec_threshold, int degree)
+	{
+		super(datasets, network, performance, prime_bits, num_parties, dec_threshold, degree);
 		
 		this.bloom_size = bloom_size;
 		this.bloom_k = bloom_k;
 	}
 	
+	/** Enables or disables packing several bloomfilter counters into each plaintext.
+	 * Packing divides the number of encryptions, additions and decryption shares by the number of slots.
+	 * @param packed True to pack the counters, see {@link PackedEncoding}
+	 */
+	public void setPacked(boolean packed)
+	{
+		this.packed = packed;
+	}
+	
+	/** Enables or disables combining the decryption shares only for the bloomfilter entries that each party
+	 * probes with its own dataset, see {@link MiyajiNishidaParty#setLazy(boolean)}
+	 * @param lazy True to combine only the probed entries
+	 */
+	public void setLazy(boolean lazy)
+	{
+		this.lazy = lazy;
+	}
+	
+	/** Enables or disables partitioned bloomfilters. Every party encrypts the segments of its EBF on workers of their
+	 * own and sends each segment as soon as it is ready, and the dealer adds up the segments as they arrive, while
+	 * the parties are still encrypting, see {@link PartitionedBloomfilter}. Packed bloomfilters are not partitioned, as
+	 * their plaintexts do not line up with the segments.
+	 * @param partitioned True to use partitioned bloomfilters
+	 */
+	public void setPartitioned(boolean partitioned)
+	{
+		this.partitioned = partitioned;
+	}
+	
+	/** Sets the topology for exchanging the decryption shares. The bytes sent in the exchange are counted on the
+	 * network channel with the name of the topology. Lazy combining only applies to {@link Topology#ALL_TO_ALL},
+	 * where every party decrypts its own positions.
+	 * @param topology The topology, {@link Topology#ALL_TO_ALL} by default
+	 */
+	public void setTopology(Topology topology)
+	{
+		this.topology = topology;
+	}
+	
 	/** Creates a new bloomfilter
 	 * @return The bloomfilter
 	 */
 	private Bloomfilter newBloomfilter()
 	{
+		if(partitioned && !packed)
+			return new PartitionedBloomfilter(PartitionedBloomfilter.segmentSize(bloom_size, bloom_k), bloom_k);
 		return new Bloomfilter(bloom_size, bloom_k);
 	}
 	
@@ -43,16 +135,43 @@ public class MiyajiNishidaMPSI extends GenericMPSI {
 	 */
 	@Override
 	public void initialize() {
-		dealer = new MiyajiNishidaDealer(num_parties, keys.getPrivate(0));
+		dealer = new MiyajiNishidaDealer(num_parties, keys.getPrivate(0), packed);
+		
+		// Every counter of the integrated bloomfilter is at most the number of parties
+		PackedEncoding packing = null;
+		if(packed)
+			packing = new PackedEncoding(num_parties, keys.getPrivate(0).getNS());
+		
+		// Only the parties of the quorum compute and send decryption shares
+		Quorum quorum = newQuorum(0, num_parties);
+		
+		// Partitioned EBFs are received segment by segment on the thread of the dealer, as the parties encrypt them
+		receiver = null;
+		Bloomfilter layout = newBloomfilter();
+		if(layout instanceof PartitionedBloomfilter)
+		{
+			receiver = new SegmentReceiver((PartitionedBloomfilter)layout, num_parties, network, performance) {
+				protected void receive(ArrayList<BigInteger> entries, int offset)
+				{
+					dealer.receiveEBFSegment(entries, offset);
+				}
+			};
+		}
 		
 		parties = new ArrayList<MiyajiNishidaParty>();
 		for(int i=0; i<num_parties; i++)
 		{
-			MiyajiNishidaParty p = new MiyajiNishidaParty(i, datasets.get(i), num_parties, keys.getPrivate(i), newBloomfilter());
+			MiyajiNishidaParty p = new MiyajiNishidaParty(i, datasets.get(i), num_parties, keys.getPrivate(i), newBloomfilter(), packing);
+			p.setQuorum(quorum);
+			p.setLazy(lazy && topology == Topology.ALL_TO_ALL);
+			p.setCombining(topology != Topology.DESIGNATED_COMBINER || i == 0);
 			parties.add(p);
 			
 			performance.start(i);
-			p.initialize();
+			if(receiver != null)
+				p.initialize(receiver.from(i));
+			else
+				p.initialize();
 			performance.stop_init(i);
 		}
 	}
@@ -63,11 +182,21 @@ public class MiyajiNishidaMPSI extends GenericMPSI {
 	@Override
 	public void execute()
 	{	
-		// Each party sends its EBF to the dealer
-		for(int i=0; i<num_parties; i++)
+		// Each party sends its EBF to the dealer, which adds them up on receipt
+		if(receiver != null)
 		{
-			dealer.receiveEBF(parties.get(i).sendEBF());
-			network.send(i, num_parties, parties.get(i).sendEBF());
+			// The segments of partitioned EBFs were sent while the parties encrypted them
+			receiver.await();
+		}
+		else
+		{
+			for(int i=0; i<num_parties; i++)
+			{
+				performance.start(num_parties);
+				dealer.receiveEBF(parties.get(i).sendEBF());
+				performance.stop(num_parties);
+				network.send(i, num_parties, parties.get(i).sendEBF());
+			}
 		}
 		
 		// The dealer performs its first stage, which is to compute the n-subtraction of IBF
@@ -75,9 +204,12 @@ public class MiyajiNishidaMPSI extends GenericMPSI {
 		dealer.stage1();
 		performance.stop(num_parties);
 		
-		// The dealer sends the encrypted IBF to all parties
+		// The dealer sends the encrypted IBF to the parties of the quorum
 		for(int i=0; i<num_parties; i++)
 		{
+			if(!parties.get(i).isDecrypting())
+				continue;
+			
 			parties.get(i).receiveCombined(dealer.sendCombined());
 			network.send(num_parties, i, dealer.sendCombined());
 		}
@@ -90,15 +222,36 @@ public class MiyajiNishidaMPSI extends GenericMPSI {
 			performance.stop(i);
 		}
 		
-		// Each party sends their decryption share to every other party
+		// The decryption shares are exchanged and combined according to the topology
+		network.setChannel(topology.name());
+		if(topology == Topology.ALL_TO_ALL)
+			exchangeAllToAll();
+		else if(topology == Topology.DESIGNATED_COMBINER)
+			exchangeDesignated();
+		else
+			exchangeRelay();
+		network.setChannel(null);
+	}
+	
+	/**
+	 * Each party sends its decryption shares to every other party, which combines them and computes the intersection
+	 */
+	private void exchangeAllToAll()
+	{
+		// Each party sends their decryption share to every other party, which combines them on receipt
 		for(int i=0; i<num_parties; i++)
 		{
+			if(parties.get(i).sendShares() == null)
+				continue;
+			
 			for(int j=0; j<num_parties; j++)
 			{
 				if(i==j)
 					continue;
 				
+				performance.start(j);
 				parties.get(j).receiveShares(parties.get(i).sendShares(), i);
+				performance.stop(j);
 				network.send(i, j, parties.get(i).sendShares());
 			}
 		}
@@ -111,6 +264,72 @@ public class MiyajiNishidaMPSI extends GenericMPSI {
 			performance.stop(i);
 		}
 	}
+	
+	/**
+	 * Each party sends its decryption shares to party 0, which combines them once and broadcasts the decrypted bits
+	 */
+	private void exchangeDesignated()
+	{
+		MiyajiNishidaParty combiner = parties.get(0);
+		for(int i=1; i<num_parties; i++)
+		{
+			if(parties.get(i).sendShares() == null)
+				continue;
+			
+			performance.start(0);
+			combiner.receiveShares(parties.get(i).sendShares(), i);
+			performance.stop(0);
+			network.send(i, 0, parties.get(i).sendShares());
+		}
+		
+		performance.start(0);
+		BitSet bits = combiner.combine();
+		combiner.receiveBits(bits);
+		performance.stop(0);
+		
+		// The other parties compute the intersection from the broadcast bits
+		for(int i=1; i<num_parties; i++)
+		{
+			network.send(0, i, bits);
+			
+			performance.start(i);
+			parties.get(i).receiveBits(bits);
+			performance.stop(i);
+		}
+	}
+	
+	/**
+	 * The decryption shares are combined up a binary tree of the parties rooted at party 0, and the decrypted
+	 * bits are relayed back down. Party i has the children 2i+1 and 2i+2.
+	 */
+	private void exchangeRelay()
+	{
+		// Children have higher indices than their parent, so every party has merged its subtree before it forwards
+		for(int i=num_parties-1; i>0; i--)
+		{
+			int parent = (i-1)/2;
+			Quorum.Combiner partial = parties.get(i).sendPartial();
+			
+			performance.start(parent);
+			parties.get(parent).receivePartial(partial, i);
+			performance.stop(parent);
+			network.send(i, parent, partial.products());
+		}
+		
+		performance.start(0);
+		BitSet bits = parties.get(0).combine();
+		parties.get(0).receiveBits(bits);
+		performance.stop(0);
+		
+		for(int i=1; i<num_parties; i++)
+		{
+			network.send((i-1)/2, i, bits);
+			
+			performance.start(i);
+			parties.get(i).receiveBits(bits);
+			performance.stop(i);
+		}
+	}
 
 	/**
 	 * Shows the computed set intersection
@@ -2,8 +2,11 @@ package MPSI;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
 
+import paillierp.BatchExecutor;
 import paillierp.PaillierThreshold;
 import paillierp.PartialDecryption;
 import paillierp.key.PaillierPrivateThresholdKey;
@@ -16,13 +19,19 @@ public class MiyajiNishidaParty extends GenericParty {
 	private PaillierThreshold paillier;
 	private ArrayList<BigInteger> EBF;
 	private BigInteger EIBF[];
-	private PartialDecryption dec_shares[][];
-	private BigInteger dec[];
+	private PartialDecryption own_shares[];
+	private Quorum quorum;
+	private Quorum.Combiner dec_shares;
 	private ArrayList<String> intersection;
 	
 	private int num_parties;
 	private Bloomfilter bloomfilter;
 	private Bloomfilter final_bloomfilter;
+	private PackedEncoding packing;
+	private int num_entries;
+	private boolean lazy = false;
+	private boolean combining = true;
+	private int probed[];
 	
 	/** Initializes the MiyajiNishida party
 	 * @param id Id of this party
@@ -32,19 +41,62 @@ public class MiyajiNishidaParty extends GenericParty {
 	 * @param bloomfilter Bloomfilter of this party
 	 */
 	public MiyajiNishidaParty(int id, ArrayList<String> dataset, int num_parties, PaillierPrivateThresholdKey private_key, Bloomfilter bloomfilter)
+	{
+		this(id, dataset, num_parties, private_key, bloomfilter, null);
+	}
+	
+	/** Initializes the MiyajiNishida party
+	 * @param id Id of this party
+	 * @param dataset Dataset of this party
+	 * @param num_parties Number of parties
+	 * @param private_key Private key of this party
+	 * @param bloomfilter Bloomfilter of this party
+	 * @param packing Slot layout for packing the bloomfilter counters, or null to encrypt every bit separately
+	 */
+	public MiyajiNishidaParty(int id, ArrayList<String> dataset, int num_parties, PaillierPrivateThresholdKey private_key, Bloomfilter bloomfilter, PackedEncoding packing)
 	{
 		super(id, dataset, private_key);
 		
 		paillier = new PaillierThreshold(private_key.getPublicKey());
 		paillier.setDecryptEncrypt(private_key);
-		dec_shares = new PartialDecryption[num_parties][bloomfilter.SIZE];
-		dec = new BigInteger[bloomfilter.SIZE];
+		
+		// With packing every ciphertext holds packing.SLOTS counters
+		this.packing = packing;
+		this.num_entries = packing == null ? bloomfilter.SIZE : packing.numPlaintexts(bloomfilter.SIZE);
 		
 		this.num_parties = num_parties;
 		this.bloomfilter = bloomfilter;
 		this.intersection = new ArrayList<String>();
 	}
 	
+	/** Sets the parties that compute decryption shares and whose shares are combined
+	 * @param quorum Quorum over all parties, indexed by party id
+	 */
+	public void setQuorum(Quorum quorum)
+	{
+		this.quorum = quorum;
+	}
+	
+	/** Enables or disables combining the decryption shares only for the entries that this party probes.
+	 * Checking the own dataset reads at most K positions per element, so the shares of all other positions
+	 * are ignored on receipt and each probed entry is combined once, however many elements hash to it.
+	 * @param lazy True to combine only the probed entries
+	 */
+	public void setLazy(boolean lazy)
+	{
+		this.lazy = lazy;
+	}
+	
+	/** Enables or disables combining decryption shares at this party. A party that does not combine only
+	 * computes and sends its own shares, and receives the bits of the final bloomfilter from a combining party.
+	 * Enabled by default.
+	 * @param combining True if this party combines the shares it computes and receives
+	 */
+	public void setCombining(boolean combining)
+	{
+		this.combining = combining;
+	}
+	
 	/**
 	 * Generates the EBF of this client, which is the encrypted bloomfilter
 	 */
@@ -56,7 +108,34 @@ public class MiyajiNishidaParty extends GenericParty {
             bloomfilter.insert(item);
         }
         
-        EBF = bloomfilter.encrypt(paillier);
+        if(packing == null)
+        	EBF = bloomfilter.encrypt(paillier);
+        else
+        	EBF = bloomfilter.encryptPacked(paillier, packing);
+        
+        if(lazy)
+        	probed = probedEntries();
+	}
+	
+	/** Generates the EBF of this party segment by segment. Every segment of the partitioned bloomfilter is
+	 * encrypted by a worker of its own and handed to the listener as soon as it is ready, instead of being kept
+	 * for {@link #sendEBF()}. Packed bloomfilters are not partitioned.
+	 * @param listener Receiver of the EBF segments, e.g. a sender to the dealer
+	 */
+	public void initialize(PartitionedBloomfilter.SegmentListener listener)
+	{
+		if(!(bloomfilter instanceof PartitionedBloomfilter) || packing != null)
+			throw new IllegalStateException("The bloomfilter of party " + id + " is not partitioned");
+		
+		Iterator<String> itemIter = dataset.iterator();
+		while (itemIter.hasNext())
+			bloomfilter.insert(itemIter.next());
+		
+		((PartitionedBloomfilter)bloomfilter).encryptSegments(paillier, listener);
+		EBF = null;
+		
+		if(lazy)
+			probed = probedEntries();
 	}
 	
 	/** Sends the EBF
@@ -75,15 +154,57 @@ public class MiyajiNishidaParty extends GenericParty {
 		EIBF = combined;
 	}
 	
+	/** Checks whether this party computes decryption shares. The other parties neither need the EIBF nor send shares.
+	 * @return True if this party is part of the quorum of any entry
+	 */
+	public boolean isDecrypting()
+	{
+		return quorum.isActive(id, num_entries);
+	}
+	
 	/**
-	 * First stage of the party. Computes the decryption shares of the received EIBF.
+	 * First stage of the party. Computes the decryption shares of the entries of the received EIBF that this party decrypts.
 	 */
 	public void stage1()
 	{
-		for(int i=0; i<bloomfilter.SIZE; i++)
+		if(!isDecrypting())
+			return;
+		
+		own_shares = BatchExecutor.getDefault().partialDecryptAll(paillier, quorum.select(Arrays.copyOf(EIBF, num_entries), id));
+		if(combining)
+			combiner().add(own_shares, id);
+	}
+	
+	/** Computes the entries of the EIBF read when checking the dataset of this party. With packing an entry
+	 * is the plaintext holding the position.
+	 * @return The distinct entries in ascending order
+	 */
+	private int[] probedEntries()
+	{
+		BitSet entries = new BitSet(num_entries);
+		int positions[] = new int[bloomfilter.K];
+		for(int j=0; j<dataset.size(); j++)
+		{
+			bloomfilter.hashes(dataset.get(j), positions);
+			for(int k=0; k<bloomfilter.K; k++)
+				entries.set(packing == null ? positions[k] : positions[k]/packing.SLOTS);
+		}
+		return entries.stream().toArray();
+	}
+	
+	/** Returns the combiner of the decryption shares, creating it for the first shares. In lazy mode it only
+	 * combines the probed entries.
+	 * @return The combiner
+	 */
+	private Quorum.Combiner combiner()
+	{
+		if(dec_shares == null)
 		{
-			dec_shares[id][i] = paillier.decrypt(EIBF[i]);
+			if(quorum == null)
+				throw new IllegalStateException("The quorum must be set before combining decryption shares");
+			dec_shares = quorum.newCombiner(paillier, num_entries, probed);
 		}
+		return dec_shares;
 	}
 	
 	/** Send decryption shares of this party
@@ -91,16 +212,33 @@ public class MiyajiNishidaParty extends GenericParty {
 	 */
 	public PartialDecryption[] sendShares()
 	{
-		return dec_shares[id];
+		return own_shares;
+	}
+	
+	/** Sends the shares combined by this party, to be merged by the next party of a relay
+	 * @return The partial combination of the shares received so far
+	 */
+	public Quorum.Combiner sendPartial()
+	{
+		return combiner();
+	}
+	
+	/** Receives the shares combined by another party of a relay and merges them with the own combination
+	 * @param partial The partial combination of the sender
+	 * @param party Id of the sender party
+	 */
+	public void receivePartial(Quorum.Combiner partial, int party)
+	{
+		combiner().merge(partial);
 	}
 	
-	/** Receive decryption shares of other parties
-	 * @param share Array of decryption shares
+	/** Receive decryption shares of another party of the quorum and fold them into the combined shares
+	 * @param share Array of decryption shares of the entries the sender decrypts
 	 * @param party Id of the sender party
 	 */
 	public void receiveShares(PartialDecryption share[], int party)
 	{
-		dec_shares[party] = share;
+		combiner().add(share, party);
 	}
 	
 	/**
@@ -108,31 +246,55 @@ public class MiyajiNishidaParty extends GenericParty {
 	 */
 	public void stage2()
 	{	
-		// Combining the received decryption shares
-		for(int i=0; i<bloomfilter.SIZE; i++)
+		receiveBits(combine());
+	}
+	
+	/** Decrypts the combined decryption shares into the bits of the final bloomfilter. The positions that were
+	 * not combined in lazy mode are never read when checking the own dataset and are left at 0.
+	 * @return The bits of the final decrypted integrated bloomfilter
+	 */
+	public BitSet combine()
+	{
+		// The received decryption shares were combined on receipt
+		BigInteger combined[] = combiner().decrypt();
+		dec_shares = null;
+		own_shares = null;
+		
+		BitSet bits = new BitSet(bloomfilter.SIZE);
+		int counters[] = packing == null ? null : new int[bloomfilter.SIZE];
+		for(int i=0; i<combined.length; i++)
 		{
-			PartialDecryption shares[] = new PartialDecryption[num_parties];
-			
-			for(int j=0; j<num_parties; j++)
+			int entry = probed == null ? i : probed[i];
+			if(packing == null)
 			{
-				shares[j] = dec_shares[j][i];
+				// Decrypted value of 0 corresponds to a 1 in the bloomfilter for set intersection
+				if(combined[i].compareTo(BigInteger.ZERO) == 0)
+					bits.set(entry);
 			}
-			
-			dec[i] = paillier.combineShares(shares);
-		}
-		
-		// Decrypted value of 0 corresponds to a 1 in the bloomfilter for set intersection
-		for(int i=0; i<bloomfilter.SIZE; i++)
-		{
-			if(dec[i].compareTo(BigInteger.ZERO) == 0)
-				dec[i] = BigInteger.ONE;
 			else
-				dec[i] = BigInteger.ZERO;
+			{
+				// The packed counters were not n-subtracted, a counter equal to n corresponds to a 1
+				int from = entry*packing.SLOTS;
+				packing.unpack(combined[i], counters, from);
+				for(int j=from; j<Math.min(from+packing.SLOTS, bloomfilter.SIZE); j++)
+				{
+					if(counters[j] == num_parties)
+						bits.set(j);
+				}
+			}
 		}
-		
+		return bits;
+	}
+	
+	/** Receives the bits of the final bloomfilter and computes the intersection
+	 * @param bits The bits of the final decrypted integrated bloomfilter
+	 */
+	public void receiveBits(BitSet bits)
+	{
 		// Compute the final decrypted integrated bloomfilter
-		final_bloomfilter = new Bloomfilter(bloomfilter.SIZE, bloomfilter.K);
-		final_bloomfilter.initialize(dec);
+		final_bloomfilter = bloomfilter.newEmpty();
+		for(int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i+1))
+			final_bloomfilter.setBit(i);
 		
 		// Add elements from the dataset that are contained in the bloomfilter to the intersection
 		for(int j=0; j<dataset.size(); j++)
@@ -0,0 +1,148 @@
+package MPSI;
+
+/** 128-bit MurmurHash3 (the x64 variant) of the UTF-8 encoding of strings. The string is encoded while it is hashed,
+ * so hashing does not allocate. The digest is kept in {@link #h1} and {@link #h2} until the next string is hashed,
+ * which makes an instance not thread-safe.
+ */
+public class Murmur3 {
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private long seed;
+
+	/** First half of the digest of the last string */
+	public long h1;
+	/** Second half of the digest of the last string */
+	public long h2;
+
+	// Bytes of the current block, little-endian, and their number
+	private long k1;
+	private long k2;
+	private int pending;
+	private int length;
+
+	/** Constructs a hash function
+	 * @param seed Seed of the hash function
+	 */
+	public Murmur3(long seed)
+	{
+		this.seed = seed;
+	}
+
+	/** Hashes the UTF-8 encoding of a string into {@link #h1} and {@link #h2}. Unpaired surrogates are encoded as '?',
+	 * like {@link String#getBytes(java.nio.charset.Charset)} does.
+	 * @param element String to hash
+	 */
+	public void hash(String element)
+	{
+		h1 = seed;
+		h2 = seed;
+		k1 = 0;
+		k2 = 0;
+		pending = 0;
+		length = 0;
+
+		int n = element.length();
+		for(int i=0; i<n; i++)
+		{
+			char c = element.charAt(i);
+			if(c < 0x80)
+				put(c);
+			else if(c < 0x800)
+			{
+				put(0xC0 | (c >>> 6));
+				put(0x80 | (c & 0x3F));
+			}
+			else if(!Character.isSurrogate(c))
+			{
+				put(0xE0 | (c >>> 12));
+				put(0x80 | ((c >>> 6) & 0x3F));
+				put(0x80 | (c & 0x3F));
+			}
+			else if(Character.isHighSurrogate(c) && i+1 < n && Character.isLowSurrogate(element.charAt(i+1)))
+			{
+				int cp = Character.toCodePoint(c, element.charAt(++i));
+				put(0xF0 | (cp >>> 18));
+				put(0x80 | ((cp >>> 12) & 0x3F));
+				put(0x80 | ((cp >>> 6) & 0x3F));
+				put(0x80 | (cp & 0x3F));
+			}
+			else
+				put('?');
+		}
+		finish();
+	}
+
+	/** Appends a byte to the current block, mixing the block into the state once it is full
+	 * @param b The byte
+	 */
+	private void put(int b)
+	{
+		long v = b & 0xFFL;
+		if(pending < 8)
+			k1 |= v << (8*pending);
+		else
+			k2 |= v << (8*(pending-8));
+		length++;
+
+		if(++pending == 16)
+		{
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1*5 + 0x52dce729;
+
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2*5 + 0x38495ab5;
+
+			k1 = 0;
+			k2 = 0;
+			pending = 0;
+		}
+	}
+
+	/** Mixes the remaining bytes and finalizes the digest
+	 */
+	private void finish()
+	{
+		if(pending > 8)
+			h2 ^= mixK2(k2);
+		if(pending > 0)
+			h1 ^= mixK1(k1);
+
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+	}
+
+	private static long mixK1(long k)
+	{
+		k *= C1;
+		k = Long.rotateLeft(k, 31);
+		return k * C2;
+	}
+
+	private static long mixK2(long k)
+	{
+		k *= C2;
+		k = Long.rotateLeft(k, 33);
+		return k * C1;
+	}
+
+	private static long fmix(long k)
+	{
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
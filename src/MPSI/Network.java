@@ -1,4 +1,5 @@
 package MPSI;
+import java.util.HashMap;
 
 /** Class for measuring the network communication
  * @author Michael
@@ -7,6 +8,8 @@ package MPSI;
 public class Network {
 
 	private long sent[][];
+	private String channel;
+	private HashMap<String, Long> channels;
 	
 	/** Constructs counting array for holding the sent bytes
 	 * @param num_parties Number of parties
@@ -14,6 +17,26 @@ public class Network {
 	public Network(int num_parties)
 	{
 		sent = new long[num_parties][num_parties];
+		channels = new HashMap<String, Long>();
+	}
+	
+	/** Sets the channel that the following messages are counted for in addition to the per party totals,
+	 * e.g. the topology used for a round of the protocol
+	 * @param channel Name of the channel, or null to stop counting for a channel
+	 */
+	public void setChannel(String channel)
+	{
+		this.channel = channel;
+	}
+	
+	/** Get the total bytes sent on a channel
+	 * @param channel Name of the channel
+	 * @return Amount of bytes sent on that channel by all parties
+	 */
+	public long getChannelBytes(String channel)
+	{
+		Long bytes = channels.get(channel);
+		return bytes == null ? 0 : bytes;
 	}
 	
 	/** Adds the amount of bytes needed to send the given object from the sender to the receiver
@@ -25,6 +48,8 @@ public class Network {
 	{
 		long size = Sizeof.sizeof(obj);
 		sent[from][to] += size;
+		if(channel != null)
+			channels.put(channel, getChannelBytes(channel) + size);
 	}
 	
 	/** Get the total sent bytes for the given client
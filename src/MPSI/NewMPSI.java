@@ -1,4 +1,5 @@
 package MPSI;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -13,6 +14,9 @@ public class NewMPSI extends GenericMPSI {
 	private int bloom_size;
 	private int bloom_k;
 	private int random_exponent;
+	private boolean offline;
+	private boolean partitioned = false;
+	private SegmentReceiver receiver;
 	
 	/** Initializes the NewMPSI protocol
 	 * @param datasets List of datasets for each party
@@ -26,11 +30,64 @@ public class NewMPSI extends GenericMPSI {
 	 */
 	public NewMPSI(ArrayList<ArrayList<String>> datasets, Network network, Performance performance, int prime_bits, int num_parties, int bloom_size, int bloom_k, int random_exponent)
 	{
-		super(datasets, network, performance, prime_bits, num_parties, num_parties-1);
+		this(datasets, network, performance, prime_bits, num_parties, bloom_size, bloom_k, random_exponent, num_parties-1);
+	}
+	
+	/** Initializes the NewMPSI protocol with a decryption threshold below the number of clients
+	 * @param datasets List of datasets for each party
+	 * @param network Network measurement
+	 * @param performance Performance measurement
+	 * @param prime_bits Specifies the number of bits required for the prime factor of n
+	 * @param num_parties Number of parties
+	 * @param bloom_size Bloomfilter number of bits
+	 * @param bloom_k Bloomfilter number of hashes
+	 * @param random_exponent Number of bits for the random exponent when randomizing
+	 * @param dec_threshold Number of clients computing the decryption shares, at most num_parties-1
+	 */
+	public NewMPSI(ArrayList<ArrayList<String>> datasets, Network network, Performance performance, int prime_bits, int num_parties, int bloom_size, int bloom_k, int random_exponent, int dec_threshold)
+	{
+		this(datasets, network, performance, prime_bits, num_parties, bloom_size, bloom_k, random_exponent, dec_threshold, 1);
+	}
+	
+	/** Initializes the NewMPSI protocol over the Damgard-Jurik cryptosystem of the given degree
+	 * @param datasets List of datasets for each party
+	 * @param network Network measurement
+	 * @param performance Performance measurement
+	 * @param prime_bits Specifies the number of bits required for the prime factor of n
+	 * @param num_parties Number of parties
+	 * @param bloom_size Bloomfilter number of bits
+	 * @param bloom_k Bloomfilter number of hashes
+	 * @param random_exponent Number of bits for the random exponent when randomizing
+	 * @param dec_threshold Number of clients computing the decryption shares, at most num_parties-1
+	 * @param degree Degree s of the Damgard-Jurik cryptosystem; 1 is plain Paillier
+	 */
+	public NewMPSI(ArrayList<ArrayList<String>> datasets, Network network, Performance performance, int prime_bits, int num_parties, int bloom_size, int bloom_k, int random_exponent, int dec_threshold, int degree)
+	{
+		super(datasets, network, performance, prime_bits, num_parties, dec_threshold, degree);
 		
 		this.bloom_size = bloom_size;
 		this.bloom_k = bloom_k;
 		this.random_exponent = random_exponent;
+		this.offline = true;
+	}
+	
+	/** Enables or disables the offline stage of the clients, in which the encryptions of the empty
+	 * inverted bloomfilter are computed before the datasets are known. Enabled by default.
+	 * @param offline True to precompute the encryptions offline
+	 */
+	public void setOffline(boolean offline)
+	{
+		this.offline = offline;
+	}
+	
+	/** Enables or disables partitioned bloomfilters. Every client encrypts the segments of its EIBF on workers of their
+	 * own and sends each segment as soon as it is ready, and the server adds up the segments as they arrive, while
+	 * the clients are still encrypting, see {@link PartitionedBloomfilter}
+	 * @param partitioned True to use partitioned bloomfilters
+	 */
+	public void setPartitioned(boolean partitioned)
+	{
+		this.partitioned = partitioned;
 	}
 	
 	/** Creates a new bloomfilter
@@ -38,6 +95,8 @@ public class NewMPSI extends GenericMPSI {
 	 */
 	private Bloomfilter newBloomfilter()
 	{
+		if(partitioned)
+			return new PartitionedBloomfilter(PartitionedBloomfilter.segmentSize(bloom_size, bloom_k), bloom_k);
 		return new Bloomfilter(bloom_size, bloom_k);
 	}
 	
@@ -48,16 +107,42 @@ public class NewMPSI extends GenericMPSI {
 	public void initialize() 
 	{
 		server = new NewMPSIServer(num_parties-1, datasets.get(num_parties-1), keys.getPrivate(0), newBloomfilter());
+		Quorum quorum = newQuorum(1, num_parties-1);
+		server.setQuorum(quorum);
+		
+		// Partitioned EIBFs are received segment by segment on the thread of the server, as the clients encrypt them
+		receiver = null;
+		if(partitioned)
+		{
+			receiver = new SegmentReceiver((PartitionedBloomfilter)newBloomfilter(), 0, network, performance) {
+				protected void receive(ArrayList<BigInteger> entries, int offset)
+				{
+					server.receiveEIBFSegment(entries, offset);
+				}
+			};
+		}
 		
 		clients = new ArrayList<NewMPSIClient>();
 		for(int i=1; i<num_parties; i++)
 		{
 			NewMPSIClient c = new NewMPSIClient(i, datasets.get(i), keys.getPrivate(i), newBloomfilter(), random_exponent);
+			c.setQuorum(quorum, i-1);
 			clients.add(c);
 			
+			// Offline stage of the client, before its dataset is used
+			if(offline)
+			{
+				performance.start(i);
+				c.precompute();
+				performance.stop_offline(i);
+			}
+			
 			// Initialize the client (EIBF generation)
 			performance.start(i);
-			c.initialize();
+			if(receiver != null)
+				c.initialize(receiver.from(i));
+			else
+				c.initialize();
 			performance.stop_init(i);
 		}
 	}
@@ -70,11 +155,21 @@ public class NewMPSI extends GenericMPSI {
 	{
 		int num_clients = num_parties-1;
 		
-		// The clients have computed their own EIBF and sends it to the server
-		for(int i=0; i<num_clients; i++)
+		// The clients have computed their own EIBF and sends it to the server, which adds them up on receipt
+		if(receiver != null)
+		{
+			// The segments of partitioned EIBFs were sent while the clients encrypted them
+			receiver.await();
+		}
+		else
 		{
-			server.receiveEIBF(clients.get(i).sendEIBF());
-			network.send(i+1, 0, clients.get(i).sendEIBF());
+			for(int i=0; i<num_clients; i++)
+			{
+				performance.start(0);
+				server.receiveEIBF(clients.get(i).sendEIBF());
+				performance.stop(0);
+				network.send(i+1, 0, clients.get(i).sendEIBF());
+			}
 		}
 		
 		// Server performs its first stage, which is to compute the c values
@@ -97,10 +192,12 @@ public class NewMPSI extends GenericMPSI {
 
 		}
 		
-		// The server receives the randomized c values
+		// The server receives the randomized c values and adds them to the sum on receipt
 		for(int i=0; i<num_clients; i++)
 		{
+			performance.start(0);
 			server.receiveRandomc(clients.get(i).sendRandomc(), i);
+			performance.stop(0);
 			network.send(i+1, 0, clients.get(i).sendRandomc());
 		}
 		
@@ -111,11 +208,14 @@ public class NewMPSI extends GenericMPSI {
 		server.stage2();
 		performance.stop(0);
 		
-		// The clients receive the final combined randomized c values and
+		// The clients of the quorum receive the final combined randomized c values and
 		// compute their decryption shares
 		for(int i=0; i<num_clients; i++)
 		{
 			NewMPSIClient client = clients.get(i);
+			if(!client.isDecrypting(server.sendRandomc().length))
+				continue;
+			
 			client.receiveRandomc(server.sendRandomc());
 			network.send(0, i+1, server.sendRandomc());
 			
@@ -124,10 +224,15 @@ public class NewMPSI extends GenericMPSI {
 			performance.stop(i+1);
 		}
 		
-		// The clients send the decryption shares to the server
+		// The clients send the decryption shares to the server, which combines them on receipt
 		for(int i=0; i<num_clients; i++)
 		{
+			if(clients.get(i).sendShares() == null)
+				continue;
+			
+			performance.start(0);
 			server.receiveShares(clients.get(i).sendShares(), i);
+			performance.stop(0);
 			network.send(i+1, 0, clients.get(i).sendShares());
 		}
 		
@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Random;
 
+import paillierp.BatchExecutor;
 import paillierp.PaillierThreshold;
 import paillierp.PartialDecryption;
 import paillierp.key.PaillierPrivateThresholdKey;
@@ -16,6 +17,7 @@ import paillierp.key.PaillierPrivateThresholdKey;
 public class NewMPSIClient extends GenericParty {
 	private PaillierThreshold paillier;
 	private ArrayList<BigInteger> EIBF;
+	private ArrayList<BigInteger> encrypted_ones;
 	private PartialDecryption dec_shares[];
 	private BigInteger[] c;
 	private BigInteger[] randomized_c;
@@ -23,6 +25,8 @@ public class NewMPSIClient extends GenericParty {
 	
 	private Bloomfilter bloomfilter;
 	private int random_exponent;
+	private Quorum quorum;
+	private int member;
 	
 	/** Initializes the NewMPSI client
 	 * @param id Id of this client
@@ -42,6 +46,34 @@ public class NewMPSIClient extends GenericParty {
 		this.random_exponent = random_exponent;
 	}
 	
+	/** Sets the quorum of clients computing the decryption shares
+	 * @param quorum Quorum over the clients
+	 * @param member Index of this client in the quorum
+	 */
+	public void setQuorum(Quorum quorum, int member)
+	{
+		this.quorum = quorum;
+		this.member = member;
+	}
+	
+	/** Checks whether this client computes decryption shares. The other clients skip the second stage.
+	 * @param count Number of final randomized c values
+	 * @return True if this client is part of the quorum of any c value
+	 */
+	public boolean isDecrypting(int count)
+	{
+		return quorum == null || quorum.isActive(member, count);
+	}
+	
+	/**
+	 * Offline stage of the client, which does not depend on the dataset. Encrypts the inversion of
+	 * an empty bloomfilter, so that only the bits set by the dataset have to be encrypted in initialize()
+	 */
+	public void precompute()
+	{
+		encrypted_ones = bloomfilter.encryptOnes(paillier);
+	}
+	
 	/**
 	 * Generates the EIBF of this client, which is the inverted encrypted bloomfilter
 	 */
@@ -54,8 +86,34 @@ public class NewMPSIClient extends GenericParty {
             bloomfilter.insert(item);
         }
         
-        // Invert and encrypt the bloomfilter
-        EIBF = bloomfilter.invertEncrypt(paillier);
+        // Invert and encrypt the bloomfilter, using the offline encryptions if available
+        if(encrypted_ones != null)
+        {
+        	EIBF = bloomfilter.invertEncrypt(paillier, encrypted_ones);
+        	encrypted_ones = null;
+        }
+        else
+        	EIBF = bloomfilter.invertEncrypt(paillier);
+	}
+	
+	/** Generates the EIBF of this client segment by segment. Every segment of the partitioned bloomfilter is
+	 * encrypted by a worker of its own and handed to the listener as soon as it is ready, instead of being kept
+	 * for {@link #sendEIBF()}.
+	 * @param listener Receiver of the EIBF segments, e.g. a sender to the server
+	 */
+	public void initialize(PartitionedBloomfilter.SegmentListener listener)
+	{
+		if(!(bloomfilter instanceof PartitionedBloomfilter))
+			throw new IllegalStateException("The bloomfilter of client " + id + " is not partitioned");
+		
+		Iterator<String> itemIter = dataset.iterator();
+		while (itemIter.hasNext())
+			bloomfilter.insert(itemIter.next());
+		
+		// Invert and encrypt the segments, using the offline encryptions if available
+		((PartitionedBloomfilter)bloomfilter).invertEncryptSegments(paillier, encrypted_ones, listener);
+		encrypted_ones = null;
+		EIBF = null;
 	}
 	
 	/** Sends the EIBF of the client
@@ -80,14 +138,13 @@ public class NewMPSIClient extends GenericParty {
 	public void stage1()
 	{
 		// Client initializes the ShDec0 algorithm by raising the received c values to a random exponent
+		Random rand = new Random();
+		BigInteger exp[] = new BigInteger[c.length];
 		for(int j=0; j<c.length; j++)
-		{
-			Random rand = new Random();
-	        BigInteger exp = new BigInteger(random_exponent, rand);
-			c[j] = c[j].modPow(exp, paillier.getPublicKey().getNSPlusOne());
-			c[j] = paillier.randomize(c[j]);
-		}
-		randomized_c = c;
+			exp[j] = new BigInteger(random_exponent, rand);
+		
+		BatchExecutor executor = BatchExecutor.getDefault();
+		randomized_c = executor.randomizeAll(paillier, executor.scalarMultiplyAll(paillier, c, exp));
 	}
 	
 	/** Sends the randomized c values back to the server
@@ -111,12 +168,9 @@ public class NewMPSIClient extends GenericParty {
 	 */
 	public void stage2()
 	{
-		// Finalize computation of sh_{i,j} = ShDec0(sk_i, c_j)
-		this.dec_shares = new PartialDecryption[randomized_c_server.length];
-		for(int j=0; j<randomized_c_server.length; j++)
-		{
-			dec_shares[j] = paillier.decrypt(randomized_c_server[j]);
-		}
+		// Finalize computation of sh_{i,j} = ShDec0(sk_i, c_j), for the c_j this client decrypts
+		BigInteger c[] = quorum == null ? randomized_c_server : quorum.select(randomized_c_server, member);
+		this.dec_shares = BatchExecutor.getDefault().partialDecryptAll(paillier, c);
 	}
 	
 	/** Send the decryption shares
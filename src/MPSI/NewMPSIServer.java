@@ -2,7 +2,11 @@ package MPSI;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 
+import paillierp.BatchExecutor;
+import paillierp.Montgomery;
 import paillierp.PaillierThreshold;
 import paillierp.PartialDecryption;
 import paillierp.key.PaillierPrivateThresholdKey;
@@ -17,11 +21,16 @@ public class NewMPSIServer extends GenericParty {
 	private int numClients;
 	private Bloomfilter bloomfilter;
 	private PaillierThreshold paillier;
-	private ArrayList<ArrayList<BigInteger>> EIBFs;
+	private Montgomery engine;
+	private int hashes[][];
+	private int touched[];
+	private long aggregates[][];
+	private long received;
 	private BigInteger final_c[];
 	private BigInteger final_random_c[];
-	private BigInteger randomized_c[][];
-	private PartialDecryption dec_shares[][];
+	private BigInteger sum_random_c[];
+	private Quorum quorum;
+	private Quorum.Combiner dec_shares;
 	private BigInteger dec[];
 	
 	/** Initializes the NewMPSI server
@@ -38,9 +47,7 @@ public class NewMPSIServer extends GenericParty {
 		this.numClients = numClients;
 		paillier = new PaillierThreshold(private_key.getPublicKey());
 		paillier.setDecryptEncrypt(private_key);
-		EIBFs = new ArrayList<ArrayList<BigInteger>>();
-		randomized_c = new BigInteger[dataset.size()][numClients];
-		dec_shares = new PartialDecryption[dataset.size()][numClients];
+		engine = new Montgomery(paillier.getPublicKey().getNSPlusOne());
 		dec = new BigInteger[dataset.size()];
 		this.bloomfilter = bloomfilter;
 	}
@@ -50,70 +57,110 @@ public class NewMPSIServer extends GenericParty {
 		return;
 	}
 	
-	/** Receives the EIBF sent by a client
+	/** Sets the clients whose decryption shares are combined
+	 * @param quorum Quorum over the clients, indexed by client id
+	 */
+	public void setQuorum(Quorum quorum)
+	{
+		this.quorum = quorum;
+	}
+	
+	/** Receives the EIBF sent by a client and adds it to the sums of the clients received so far
 	 * @param EIBF The EIBF received
 	 */
 	public void receiveEIBF(ArrayList<BigInteger> EIBF)
 	{
-		EIBFs.add(EIBF);
+		receiveEIBFSegment(EIBF, 0);
 	}
 	
-	/**
-	 * First stage of the server. The comments use the same latex notation as in the corresponding paper.
+	/** Receives consecutive entries of the EIBF of a client, e.g. a segment of a {@link PartitionedBloomfilter},
+	 * and adds them to the sums of the clients received so far
+	 * @param entries The entries received
+	 * @param offset Position of the first entry in the EIBF
 	 */
-	public void stage1()
+	public synchronized void receiveEIBFSegment(final ArrayList<BigInteger> entries, final int offset)
 	{
-		// Computes k hash values of each y_j in S_t
-		int hashes[][] = new int[dataset.size()][bloomfilter.K];
-		for(int i=0; i<dataset.size(); i++)
-		{
-			for(int j=0; j<bloomfilter.K; j++)
-			{
-				hashes[i][j] = bloomfilter.hash(dataset.get(i), j);
-			}
-		}
+		if(offset < 0 || offset + entries.size() > bloomfilter.SIZE)
+			throw new IllegalArgumentException("The entries do not fit in a bloomfilter of " + bloomfilter.SIZE + " bits");
+		if(aggregates == null)
+			initializeAggregates();
 		
-		// Computes all C_d^{i,j} = EIBF_i[h_d(y_j)]
-		BigInteger C_values[][][] = new BigInteger[numClients][dataset.size()][bloomfilter.K];
-		for(int i=0; i<numClients; i++)
-		{
-			for(int j=0; j<dataset.size(); j++)
+		// The sum C^{pos} = EIBF_1[pos] +H ... +H EIBF_{t-1}[pos] is only needed for the positions touched by y_j
+		int from = Arrays.binarySearch(touched, offset);
+		int to = Arrays.binarySearch(touched, offset + entries.size());
+		final int first = from < 0 ? -from-1 : from;
+		final int last = to < 0 ? -to-1 : to;
+		BatchExecutor.getDefault().run(last-first, new BatchExecutor.Range() {
+			public void run(int from, int to)
 			{
-				for(int k=0; k<bloomfilter.K; k++)
+				Montgomery local = engine.copy();
+				long value[] = local.newElement();
+				for(int i=first+from; i<first+to; i++)
 				{
-					C_values[i][j][k] = EIBFs.get(i).get(hashes[j][k]);
+					local.load(entries.get(touched[i] - offset), value);
+					local.accumulate(aggregates[i], value);
 				}
 			}
+		});
+		received += entries.size();
+	}
+	
+	/**
+	 * Computes the positions touched by the dataset of the server, and starts their sums
+	 */
+	private void initializeAggregates()
+	{
+		// Computes k hash values of each y_j in S_t
+		hashes = new int[dataset.size()][bloomfilter.K];
+		BitSet positions = new BitSet(bloomfilter.SIZE);
+		for(int i=0; i<dataset.size(); i++)
+		{
+			bloomfilter.hashes(dataset.get(i), hashes[i]);
+			for(int k=0; k<bloomfilter.K; k++)
+				positions.set(hashes[i][k]);
 		}
+		touched = positions.stream().toArray();
 		
-		// Computes c_j^i = C_1^{i,j} +H ... +H C_k^{i,j}
-		BigInteger c_values[][] = new BigInteger[numClients][dataset.size()];
-		for(int i=0; i<numClients; i++)
+		// Each Montgomery multiplication of a loaded value contributes a factor R^-1, so every sum of t-1 values
+		// starts from R^t to end up in Montgomery form
+		long correction[] = engine.newElement();
+		engine.powerOfR(numClients+1, correction);
+		aggregates = new long[touched.length][];
+		for(int i=0; i<touched.length; i++)
 		{
-			for(int j=0; j<dataset.size(); j++)
-			{
-				c_values[i][j] = C_values[i][j][0];
-				for(int k=1; k<bloomfilter.K; k++)
-				{
-					c_values[i][j] = paillier.add(c_values[i][j], C_values[i][j][k]);
-				}
-			}
+			aggregates[i] = engine.newElement();
+			engine.copy(correction, aggregates[i]);
 		}
+	}
+	
+	/**
+	 * First stage of the server. The comments use the same latex notation as in the corresponding paper.
+	 */
+	public void stage1()
+	{
+		if(received != (long)numClients*bloomfilter.SIZE)
+			throw new IllegalStateException("Received " + received + " EIBF entries, expected " + (long)numClients*bloomfilter.SIZE);
 		
-		// Computes c_j = ReRand(c_j^1 +H ... +H c_j^{t-1})
+		// Computes c_j = C^{h_1(y_j)} +H ... +H C^{h_k(y_j)}, where the sums C^{pos} were computed on receipt
 		final_c = new BigInteger[dataset.size()];
-		for(int j=0; j<dataset.size(); j++)
-		{
-			final_c[j] = c_values[0][j];
-			
-			for(int i=1; i<numClients; i++)
+		BatchExecutor.getDefault().run(final_c.length, new BatchExecutor.Range() {
+			public void run(int from, int to)
 			{
-				final_c[j] = paillier.add(final_c[j], c_values[i][j]);
+				Montgomery local = engine.copy();
+				long c_value[] = local.newElement();
+				for(int j=from; j<to; j++)
+				{
+					local.setOne(c_value);
+					for(int k=0; k<bloomfilter.K; k++)
+						local.accumulate(c_value, aggregates[Arrays.binarySearch(touched, hashes[j][k])]);
+					final_c[j] = local.decode(c_value);
+				}
 			}
-			
-			final_c[j] = paillier.randomize(final_c[j]);
-		}
+		});
+		aggregates = null;
 		
+		// c_j = ReRand(c_j)
+		final_c = BatchExecutor.getDefault().randomizeAll(paillier, final_c);
 	}
 	
 	/** Sends the final c values
@@ -124,16 +171,25 @@ public class NewMPSIServer extends GenericParty {
 		return final_c;
 	}
 	
-	/** Receive the randomized final c values of the client
+	/** Receive the randomized final c values of the client and add them to the sum of the clients received so far
 	 * @param c Randomized c values by the client
 	 * @param client Id of the client
 	 */
-	public void receiveRandomc(BigInteger[] c, int client)
+	public void receiveRandomc(final BigInteger[] c, int client)
 	{
-		for(int j=0; j<dataset.size(); j++)
+		if(sum_random_c == null)
 		{
-			randomized_c[j][client] = c[j];
+			sum_random_c = c.clone();
+			return;
 		}
+		
+		BatchExecutor.getDefault().run(c.length, new BatchExecutor.Range() {
+			public void run(int from, int to)
+			{
+				for(int j=from; j<to; j++)
+					sum_random_c[j] = paillier.add(sum_random_c[j], c[j]);
+			}
+		});
 	}
 	
 	/**
@@ -141,17 +197,9 @@ public class NewMPSIServer extends GenericParty {
 	 */
 	public void stage2()
 	{
-		// Adds together all the randomized c values by the client to compute the final c_j values that the clients will decrypt
-		final_random_c = new BigInteger[dataset.size()];
-		for(int j=0; j<dataset.size(); j++)
-		{
-			final_random_c[j] = randomized_c[j][0];
-			for(int i=1; i<numClients; i++)
-			{
-				final_random_c[j] = paillier.add(randomized_c[j][i-1], randomized_c[j][i]);
-			}
-			final_random_c[j] = paillier.randomize(final_random_c[j]);
-		}
+		// The randomized c values of all clients were added together on receipt, c_j = ReRand(c_j^1 +H ... +H c_j^{t-1})
+		final_random_c = BatchExecutor.getDefault().randomizeAll(paillier, sum_random_c);
+		sum_random_c = null;
 	}
 	
 	/** Send the final randomized c values to the clients
@@ -162,16 +210,20 @@ public class NewMPSIServer extends GenericParty {
 		return final_random_c;
 	}
 	
-	/** Receive the decryption shares of the final randomized c values
+	/** Receive the decryption shares of the final randomized c values and fold them into the combined shares
+	 * if the client is part of the quorum
 	 * @param shares Decryption shares
 	 * @param client Id of the client
 	 */
 	public void receiveShares(PartialDecryption shares[], int client)
 	{
-		for(int j=0; j<dataset.size(); j++)
+		if(dec_shares == null)
 		{
-			dec_shares[j][client] = shares[j];
+			if(quorum == null)
+				throw new IllegalStateException("The quorum must be set before receiving decryption shares");
+			dec_shares = quorum.newCombiner(paillier, dataset.size());
 		}
+		dec_shares.add(shares, client);
 	}
 	
 	/**
@@ -180,15 +232,13 @@ public class NewMPSIServer extends GenericParty {
 	public void stage3()
 	{
 		// Computes D(c_j) <- Comb(sh_{i,j}, ..., sh_{t-1,j})
-		for(int j=0; j<dataset.size(); j++)
-		{
-			dec[j] = paillier.combineShares(dec_shares[j]);
-		}
+		dec = dec_shares.decrypt();
+		dec_shares = null;
 		
 		// If D(c_j) = 0, add the corresponding y_j to the intersection
 		for(int j=0; j<dataset.size(); j++)
 		{
-			if(dec[j] == BigInteger.ZERO)
+			if(dec[j].equals(BigInteger.ZERO))
 				intersection.add(dataset.get(j));
 		}
 	}
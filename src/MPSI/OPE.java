@@ -3,6 +3,9 @@ import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Random;
 
+import paillierp.BatchExecutor;
+import paillierp.FixedBaseTable;
+import paillierp.Montgomery;
 import paillierp.PaillierThreshold;
 
 /** Class for oblivious polynomial evaluation
@@ -11,8 +14,13 @@ import paillierp.PaillierThreshold;
  */
 public class OPE {
 	public int DEGREE;
-	private BigInteger coefficients[];
-	private BigInteger modulus;
+	protected BigInteger coefficients[];
+	protected BigInteger modulus;
+	private boolean fixed_base = false;
+	
+	/** Memory in bytes of the fixed-base tables used together, see {@link #setFixedBase(boolean)}. Every element is
+	 * evaluated with one block of tables before the next block is built, so a block should stay in the cache */
+	public static final long TABLE_BLOCK = 1L << 20;
 	
 	/** Construct the OPE by setting the modulus. The coefficients of the polynomial will be modulo this modulus.
 	 * @param modulus
@@ -22,6 +30,17 @@ public class OPE {
 		this.modulus = modulus;
 	}
 	
+	/** Enables or disables evaluating with a fixed-base table per encrypted coefficient instead of Horner's rule.
+	 * The tables are built once for all elements, after which every element costs about |n^s|/w multiplications
+	 * per coefficient for a window of w bits, independent of the size of its hash. This pays off when many elements
+	 * are evaluated, especially for hashes of full size.
+	 * @param fixed_base True to evaluate with fixed-base tables, see {@link FixedBaseTable}
+	 */
+	public void setFixedBase(boolean fixed_base)
+	{
+		this.fixed_base = fixed_base;
+	}
+	
 	/** Hashes the element, which is based on the hashCode() of the element.
 	 * @param element Element to hash
 	 * @return Hash of the element, an integer between 0 and modulus-1.
@@ -38,18 +57,12 @@ public class OPE {
 	public void interpolate(ArrayList<String> dataset)
 	{
 		DEGREE = dataset.size();
-		Polynomial p = new Polynomial(BigInteger.ONE, 0, modulus);
-		
+		BigInteger roots[] = new BigInteger[DEGREE];
 		for(int i=0; i<DEGREE; i++)
-		{
-        	String item = dataset.get(i);
-        	BigInteger root = hash(item);
-        	Polynomial r = new Polynomial(root,0,modulus);
-        	Polynomial x = new Polynomial(BigInteger.ONE, 1, modulus);
-        	p = p.times(x.minus(r));
-        }
+			roots[i] = hash(dataset.get(i));
 		
-		coefficients = p.coefficients();
+		// Multiply the linear factors (x - root) along a subproduct tree
+		coefficients = Polynomial.fromRoots(roots, modulus).coefficients();
 	}
 	
 	/** Encrypt the polynomial by encrypting each coefficient
@@ -57,10 +70,7 @@ public class OPE {
 	 */
 	public void encrypt(PaillierThreshold paillier)
 	{
-		for(int i = 0; i < coefficients.length; i++)
-		{
-			coefficients[i] = paillier.encrypt(coefficients[i]);
-		}
+		coefficients = BatchExecutor.getDefault().encryptAll(paillier, coefficients);
 	}
 	
 	/** Computes an evaluation of each element in the dataset of the polynomial represented by the given coefficients
@@ -70,31 +80,123 @@ public class OPE {
 	 * @param randomBits Number of bits for randomization
 	 * @return Array of evaluations for each element
 	 */
-	public BigInteger[] evaluate(PaillierThreshold paillier, BigInteger coef[], ArrayList<String> dataset, int randomBits)
+	public BigInteger[] evaluate(final PaillierThreshold paillier, final BigInteger coef[], ArrayList<String> dataset, int randomBits)
 	{
 		Random rand = new Random();
-		BigInteger result[] = new BigInteger[dataset.size()];
-		
+		final BigInteger roots[] = new BigInteger[dataset.size()];
+		final BigInteger r[] = new BigInteger[dataset.size()];
 		for(int i=0; i<dataset.size(); i++)
-        {
-        	String item = dataset.get(i);
-        	BigInteger root = hash(item);
-        	
-        	BigInteger r = new BigInteger(randomBits, rand);
-        	
-        	// Compute the evaluation efficiently using Horner's rule
-        	int deg = coef.length-1;
-        	result[i] = coef[deg];
-        	for(int d=deg-1; d>=0; d--)
-        	{
-        		result[i] = paillier.multiply(result[i], root);
-        		result[i] = paillier.add(result[i], coef[d]);
-        	}
-        	
-        	// Randomize the result
-        	result[i] = paillier.multiply(result[i], r);
-        }
-		 
+		{
+			roots[i] = hash(dataset.get(i));
+			r[i] = new BigInteger(randomBits, rand);
+		}
+		
+		if(fixed_base)
+			return evaluateFixedBase(paillier, coef, roots, r);
+		
+		final BigInteger result[] = new BigInteger[dataset.size()];
+		BatchExecutor.getDefault().run(result.length, new BatchExecutor.Range() {
+			public void run(int from, int to)
+			{
+				for(int i=from; i<to; i++)
+					result[i] = horner(paillier, coef, 0, coef.length, roots[i]);
+			}
+		});
+		
+		// Randomize the results
+		return BatchExecutor.getDefault().scalarMultiplyAll(paillier, result, r);
+	}
+	
+	/** Evaluates an encrypted polynomial efficiently using Horner's rule
+	 * @param paillier PaillierThreshold object needed for encryption
+	 * @param coef Array containing the coefficients
+	 * @param from Index of the coefficient of degree 0
+	 * @param to Index after the coefficient of the highest degree
+	 * @param root Point at which the polynomial is evaluated
+	 * @return Encrypted evaluation
+	 */
+	protected static BigInteger horner(PaillierThreshold paillier, BigInteger coef[], int from, int to, BigInteger root)
+	{
+		BigInteger result = coef[to-1];
+		for(int d=to-2; d>=from; d--)
+		{
+			result = paillier.multiply(result, root);
+			result = paillier.add(result, coef[d]);
+		}
+		return result;
+	}
+	
+	/** Computes the randomized evaluations with a fixed-base table per encrypted coefficient.
+	 * The evaluation of an element x is the product of coef[i]^(r*x^i mod n^s), so the randomization is folded
+	 * into the plaintext exponents and the tables give every term without any squarings.
+	 * The coefficients are processed in blocks whose tables fit in {@link #TABLE_BLOCK}.
+	 * @param paillier PaillierThreshold object needed for encryption
+	 * @param coef Array of the given coefficients in ascending order by degree
+	 * @param roots Hashes of the elements
+	 * @param r Randomization of each element
+	 * @return Array of evaluations for each element
+	 */
+	private BigInteger[] evaluateFixedBase(PaillierThreshold paillier, final BigInteger coef[], final BigInteger roots[], BigInteger r[])
+	{
+		final Montgomery engine = new Montgomery(paillier.getPublicKey().getNSPlusOne());
+		final int bits = modulus.bitLength();
+		
+		// The window minimizing the multiplications, as long as a single table fits in a block
+		int w = FixedBaseTable.bestWindow(bits, roots.length);
+		while(w > 1 && 8*FixedBaseTable.size(bits, w, engine.getModulus()) > TABLE_BLOCK)
+			w--;
+		final int window = w;
+		long table_bytes = 8*FixedBaseTable.size(bits, window, engine.getModulus());
+		int block = (int)Math.max(1, Math.min(coef.length, TABLE_BLOCK/table_bytes));
+		
+		// Running products and plaintext exponents r*x^i mod n^s of each element
+		final long acc[][] = new long[roots.length][];
+		final BigInteger powers[] = new BigInteger[roots.length];
+		for(int i=0; i<roots.length; i++)
+		{
+			acc[i] = engine.newElement();
+			engine.setOne(acc[i]);
+			powers[i] = r[i].mod(modulus);
+		}
+		
+		for(int start=0; start<coef.length; start+=block)
+		{
+			final int first = start;
+			final FixedBaseTable tables[] = new FixedBaseTable[Math.min(block, coef.length-start)];
+			BatchExecutor.getDefault().run(tables.length, new BatchExecutor.Range() {
+				public void run(int from, int to)
+				{
+					Montgomery local = engine.copy();
+					for(int j=from; j<to; j++)
+						tables[j] = new FixedBaseTable(coef[first+j], bits, window, local);
+				}
+			});
+			
+			BatchExecutor.getDefault().run(roots.length, new BatchExecutor.Range() {
+				public void run(int from, int to)
+				{
+					Montgomery local = engine.copy();
+					for(int i=from; i<to; i++)
+					{
+						for(int j=0; j<tables.length; j++)
+						{
+							tables[j].multiplyPower(acc[i], powers[i], local);
+							powers[i] = powers[i].multiply(roots[i]).mod(modulus);
+						}
+					}
+				}
+			});
+		}
+		
+		final BigInteger result[] = new BigInteger[roots.length];
+		BatchExecutor.getDefault().run(result.length, new BatchExecutor.Range() {
+			public void run(int from, int to)
+			{
+				Montgomery local = engine.copy();
+				for(int i=from; i<to; i++)
+					result[i] = local.decode(acc[i]);
+			}
+		});
 		return result;
 	}
 	
@@ -0,0 +1,73 @@
+package MPSI;
+import java.math.BigInteger;
+
+/** Packs small counters into fixed-width slots of a single plaintext.
+ * Slot i of a plaintext holds the counter at bits [i*SLOT_BITS, (i+1)*SLOT_BITS). As long as no slot
+ * exceeds 2^SLOT_BITS-1, the homomorphic addition of two packed ciphertexts adds all their slots at once.
+ */
+public class PackedEncoding {
+	public int SLOT_BITS;
+	public int SLOTS;
+
+	private BigInteger slot_mask;
+
+	/** Constructs a packed encoding for counters up to the given bound
+	 * @param max_count Largest value a slot has to hold after all additions
+	 * @param plaintext_modulus Plaintext modulus n^s of the cryptosystem
+	 */
+	public PackedEncoding(int max_count, BigInteger plaintext_modulus)
+	{
+		if(max_count <= 0)
+			throw new IllegalArgumentException("max_count must be positive");
+
+		this.SLOT_BITS = BigInteger.valueOf(max_count).bitLength();
+
+		// Any value of bitLength-1 bits is below the modulus, so the packed sum never wraps around
+		this.SLOTS = (plaintext_modulus.bitLength()-1)/SLOT_BITS;
+		if(SLOTS == 0)
+			throw new IllegalArgumentException("The plaintext space is too small for a single slot");
+
+		this.slot_mask = BigInteger.ONE.shiftLeft(SLOT_BITS).subtract(BigInteger.ONE);
+	}
+
+	/** Number of packed plaintexts needed for the given number of counters
+	 * @param counters Number of counters
+	 * @return Number of plaintexts
+	 */
+	public int numPlaintexts(int counters)
+	{
+		return (counters+SLOTS-1)/SLOTS;
+	}
+
+	/** Packs the bits [from, from+SLOTS) of a bit array, one bit per slot
+	 * @param bloomfilter Bloomfilter whose bits are packed
+	 * @param from Index of the first bit
+	 * @return Plaintext holding the bits in its slots
+	 */
+	public BigInteger pack(Bloomfilter bloomfilter, int from)
+	{
+		BigInteger plaintext = BigInteger.ZERO;
+		int to = Math.min(from+SLOTS, bloomfilter.SIZE);
+
+		for(int i = from; i < to; i++)
+		{
+			if(bloomfilter.getBit(i))
+				plaintext = plaintext.setBit((i-from)*SLOT_BITS);
+		}
+
+		return plaintext;
+	}
+
+	/** Unpacks the slots of a plaintext into consecutive counters
+	 * @param plaintext Packed plaintext
+	 * @param counters Array receiving the counters
+	 * @param from Index in counters of the first slot
+	 */
+	public void unpack(BigInteger plaintext, int counters[], int from)
+	{
+		int to = Math.min(from+SLOTS, counters.length);
+
+		for(int i = from; i < to; i++)
+			counters[i] = plaintext.shiftRight((i-from)*SLOT_BITS).and(slot_mask).intValue();
+	}
+}
@@ -0,0 +1,170 @@
+package MPSI;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import paillierp.BatchExecutor;
+import paillierp.PaillierThreshold;
+
+/** Bloomfilter whose bit array is split into K segments of SEGMENT bits, where the ith hash function only maps into
+ * the ith segment. Every segment is encrypted by a worker of its own and handed to a {@link SegmentListener} as soon
+ * as it is ready, so that it can be sent and aggregated while the other segments are still encrypted. The
+ * concatenation of the segments is the whole bloomfilter, so {@link #encrypt(PaillierThreshold)},
+ * {@link #invertEncrypt(PaillierThreshold)} and {@link #check(String)} keep their meaning. For the same number of
+ * bits the false positive rate is slightly higher than that of a plain bloomfilter.
+ */
+public class PartitionedBloomfilter extends Bloomfilter {
+	public int SEGMENT;
+
+	/** Receives the encrypted segments of a bloomfilter as they are ready
+	 */
+	public interface SegmentListener {
+		/** Called once for every segment, from the worker that encrypted it. Segments are encrypted concurrently, so
+		 * this must be thread-safe.
+		 * @param segment Index of the segment
+		 * @param entries The SEGMENT encrypted entries of the segment
+		 */
+		void segmentReady(int segment, ArrayList<BigInteger> entries);
+	}
+
+	/** Constructs a new partitioned bloomfilter
+	 * @param segment number of bits of each segment
+	 * @param k number of hash functions and segments
+	 */
+	public PartitionedBloomfilter(int segment, int k)
+	{
+		super(segment*k, k);
+		this.SEGMENT = segment;
+	}
+
+	/** Gets the number of bits of each segment for a bloomfilter of about the given size
+	 * @param size number of bits of the whole bloomfilter
+	 * @param k number of hash functions
+	 * @return number of bits of each segment, rounded up
+	 */
+	public static int segmentSize(int size, int k)
+	{
+		return (size+k-1)/k;
+	}
+
+	/** Derives the ith position, which lies in the ith segment
+	 * @param i Index of the hash function
+	 * @return i*SEGMENT + (h1 + i*h2 mod SEGMENT)
+	 */
+	@Override
+	protected int position(int i)
+	{
+		return i*SEGMENT + (int)Long.remainderUnsigned(digest(i), SEGMENT);
+	}
+
+	@Override
+	public Bloomfilter newEmpty()
+	{
+		return new PartitionedBloomfilter(SEGMENT, K);
+	}
+
+	/** Gets the index of the first bit of a segment
+	 * @param segment Index of the segment
+	 * @return Index in the bit array
+	 */
+	public int segmentStart(int segment)
+	{
+		return segment*SEGMENT;
+	}
+
+	/** Encrypts the bits of one segment
+	 * @param paillier PaillierThreshold object needed for encryption
+	 * @param segment Index of the segment
+	 * @return a list of the SEGMENT encrypted entries of the segment
+	 */
+	public ArrayList<BigInteger> encryptSegment(PaillierThreshold paillier, int segment)
+	{
+		BigInteger plaintexts[] = new BigInteger[SEGMENT];
+		for(int i = 0; i < SEGMENT; i++)
+			plaintexts[i] = getBit(segmentStart(segment)+i) ? BigInteger.ONE : BigInteger.ZERO;
+
+		return new ArrayList<BigInteger>(Arrays.asList(BatchExecutor.getDefault().encryptAll(paillier, plaintexts)));
+	}
+
+	/** Encrypts the inversion of the bits of one segment
+	 * @param paillier PaillierThreshold object needed for encryption
+	 * @param segment Index of the segment
+	 * @return a list of the SEGMENT inverted encrypted entries of the segment
+	 */
+	public ArrayList<BigInteger> invertEncryptSegment(PaillierThreshold paillier, int segment)
+	{
+		BigInteger plaintexts[] = new BigInteger[SEGMENT];
+		for(int i = 0; i < SEGMENT; i++)
+			plaintexts[i] = getBit(segmentStart(segment)+i) ? BigInteger.ZERO : BigInteger.ONE;
+
+		return new ArrayList<BigInteger>(Arrays.asList(BatchExecutor.getDefault().encryptAll(paillier, plaintexts)));
+	}
+
+	/** Encrypts the inversion of the bits of one segment, starting from precomputed encryptions of one. Only the
+	 * bits of the segment that are set get a fresh encryption of zero.
+	 * @param paillier PaillierThreshold object needed for encryption
+	 * @param ones Encryptions of one for every bit, as returned by {@link #encryptOnes(PaillierThreshold)}
+	 * @param segment Index of the segment
+	 * @return a list of the SEGMENT inverted encrypted entries of the segment
+	 */
+	public ArrayList<BigInteger> invertEncryptSegment(PaillierThreshold paillier, ArrayList<BigInteger> ones, int segment)
+	{
+		if(ones.size() != SIZE)
+			throw new IllegalArgumentException("Expected " + SIZE + " precomputed encryptions, got " + ones.size());
+
+		int start = segmentStart(segment);
+		ArrayList<BigInteger> entries = new ArrayList<BigInteger>(ones.subList(start, start+SEGMENT));
+		int set = 0;
+		for(int i = 0; i < SEGMENT; i++)
+		{
+			if(getBit(start+i))
+				set++;
+		}
+
+		BigInteger zeros[] = new BigInteger[set];
+		Arrays.fill(zeros, BigInteger.ZERO);
+		zeros = BatchExecutor.getDefault().encryptAll(paillier, zeros);
+
+		int j = 0;
+		for(int i = 0; i < SEGMENT; i++)
+		{
+			if(getBit(start+i))
+				entries.set(i, zeros[j++]);
+		}
+		return entries;
+	}
+
+	/** Encrypts every segment on a worker of its own, see {@link #encryptSegment(PaillierThreshold, int)}, and hands
+	 * each segment to the listener as soon as it is encrypted. Returns when all segments have been handed over.
+	 * @param paillier PaillierThreshold object needed for encryption
+	 * @param listener Receiver of the encrypted segments
+	 */
+	public void encryptSegments(final PaillierThreshold paillier, final SegmentListener listener)
+	{
+		BatchExecutor.getDefault().runEach(K, new BatchExecutor.Range() {
+			public void run(int from, int to)
+			{
+				for(int s = from; s < to; s++)
+					listener.segmentReady(s, encryptSegment(paillier, s));
+			}
+		});
+	}
+
+	/** Encrypts the inversion of every segment on a worker of its own and hands each segment to the listener as
+	 * soon as it is encrypted. Returns when all segments have been handed over.
+	 * @param paillier PaillierThreshold object needed for encryption
+	 * @param ones Encryptions of one for every bit, as returned by {@link #encryptOnes(PaillierThreshold)}, or null
+	 * to encrypt every bit
+	 * @param listener Receiver of the inverted encrypted segments
+	 */
+	public void invertEncryptSegments(final PaillierThreshold paillier, final ArrayList<BigInteger> ones, final SegmentListener listener)
+	{
+		BatchExecutor.getDefault().runEach(K, new BatchExecutor.Range() {
+			public void run(int from, int to)
+			{
+				for(int s = from; s < to; s++)
+					listener.segmentReady(s, ones == null ? invertEncryptSegment(paillier, s) : invertEncryptSegment(paillier, ones, s));
+			}
+		});
+	}
+}
@@ -7,6 +7,7 @@ package MPSI;
 public class Performance {
 	private long execution[];
 	private long init[];
+	private long offline[];
 	private long start[];
 	
 	/** Constructs timing arrays for holding the execution time
@@ -16,6 +17,7 @@ public class Performance {
 	{
 		execution = new long[num_parties];
 		init = new long[num_parties];
+		offline = new long[num_parties];
 		start = new long[num_parties];
 	}
 	
@@ -36,6 +38,16 @@ public class Performance {
 		init[client] += ( (now-start[client])/1000000 );
 	}
 	
+	/** Stops the timer for a given client and adds the time difference to the offline time for that client,
+	 * which is spent before the dataset is known
+	 * @param client Id of the client
+	 */
+	public void stop_offline(int client)
+	{
+		long now = System.nanoTime();
+		offline[client] += ( (now-start[client])/1000000 );
+	}
+	
 	/** Stops the timer for a given client and adds the time difference to the regular execution time for that client
 	 * @param client Id of the client
 	 */
@@ -46,16 +58,17 @@ public class Performance {
 	}
 	
 	/** Gets the measurement results
-	 * @return A list of statistics for each client. For each client the total initialization and execution time.
+	 * @return A list of statistics for each client. For each client the total initialization, execution and offline time.
 	 */
 	public long[][] getStats()
 	{
-		long stats[][] = new long[execution.length][2];
+		long stats[][] = new long[execution.length][3];
 		
 		for (int i=0; i<execution.length; i++)
 		{
 			stats[i][0] = init[i];
 			stats[i][1] = execution[i];
+			stats[i][2] = offline[i];
 		}
 		
 		return stats;
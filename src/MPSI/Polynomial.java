@@ -1,7 +1,13 @@
 package MPSI;
 import java.math.BigInteger;
+import java.util.Arrays;
 
 public class Polynomial {
+    // below this degree products use the schoolbook method, above it Kronecker substitution
+    private static final int KRONECKER_THRESHOLD = 32;
+    // number of roots multiplied in place at the leaves of the subproduct tree
+    private static final int LEAF_ROOTS = 16;
+
     private BigInteger[] coef;   // coefficients p(x) = sum { coef[i] * x^i }
     private int degree;   // degree of polynomial (-1 for the zero polynomial)
     private BigInteger modulo; // finite field Z_p
@@ -29,6 +35,46 @@ public class Polynomial {
     }
     
 
+    // wraps reduced coefficients without copying them
+    private Polynomial(BigInteger[] coef, BigInteger modulo) {
+        this.coef = coef;
+        this.modulo = modulo;
+        reduce();
+    }
+
+    /**
+     * Returns the monic polynomial with the given roots, (x - r_0)(x - r_1)...(x - r_{k-1}).
+     * The roots are multiplied along a subproduct tree: blocks of a few roots are expanded
+     * with in-place linear factor updates, and the blocks are then multiplied pairwise,
+     * so that the large products are balanced and can use the subquadratic multiplication.
+     *
+     * @param  roots the roots
+     * @param  modulo the modulus of the coefficients
+     * @return the polynomial of degree {@code roots.length} with these roots
+     */
+    public static Polynomial fromRoots(BigInteger[] roots, BigInteger modulo) {
+        return fromRoots(roots, 0, roots.length, modulo);
+    }
+
+    // the product of the linear factors of roots[from..to)
+    private static Polynomial fromRoots(BigInteger[] roots, int from, int to, BigInteger modulo) {
+        if (to - from <= LEAF_ROOTS) {
+            // multiply by (x - r) in place, from the highest coefficient down
+            BigInteger[] c = new BigInteger[to - from + 1];
+            c[0] = BigInteger.ONE;
+            for (int k = 1; k <= to - from; k++) {
+                BigInteger r = roots[from + k - 1].mod(modulo);
+                c[k] = c[k-1];
+                for (int i = k - 1; i > 0; i--)
+                    c[i] = c[i-1].subtract(r.multiply(c[i])).mod(modulo);
+                c[0] = r.multiply(c[0]).negate().mod(modulo);
+            }
+            return new Polynomial(c, modulo);
+        }
+        int middle = (from + to) >>> 1;
+        return fromRoots(roots, from, middle, modulo).times(fromRoots(roots, middle, to, modulo));
+    }
+
     // pre-compute the degree of the polynomial, in case of leading zero coefficients
     // (that is, the length of the array need not relate to the degree of the polynomial)
     private void reduce() {
@@ -84,19 +130,60 @@ public class Polynomial {
 
     /**
      * Returns the product of this polynomial and the specified polynomial.
-     * Takes time proportional to the product of the degrees.
-     * (Faster algorithms are known, e.g., via FFT.)
+     * Small products are computed with the schoolbook method, reducing each coefficient once.
+     * Large products use Kronecker substitution: both polynomials are packed into single integers
+     * with one slot per coefficient, wide enough that no slot of the product overflows, so that the
+     * product comes from one {@link BigInteger#multiply(BigInteger)}, which switches to Karatsuba
+     * and Toom-Cook multiplication for large operands.
      *
      * @param  that the other polynomial
      * @return the polynomial whose value is {@code (this(x) * that(x))}
      */
     public Polynomial times(Polynomial that) {
-        Polynomial poly = new Polynomial(BigInteger.ZERO, this.degree + that.degree, modulo);
-        for (int i = 0; i <= this.degree; i++)
-            for (int j = 0; j <= that.degree; j++)
-            	poly.coef[i+j] = poly.coef[i+j].add( this.coef[i].multiply(that.coef[j]).mod(modulo) ).mod(modulo);
-        poly.reduce();
-        return poly;
+        if (this.degree < 0 || that.degree < 0) return new Polynomial(BigInteger.ZERO, 0, modulo);
+        if (Math.min(this.degree, that.degree) < KRONECKER_THRESHOLD) {
+            BigInteger[] c = new BigInteger[this.degree + that.degree + 1];
+            for (int k = 0; k < c.length; k++) {
+                BigInteger sum = BigInteger.ZERO;
+                for (int i = Math.max(0, k - that.degree); i <= Math.min(k, this.degree); i++)
+                    sum = sum.add(this.coef[i].multiply(that.coef[k-i]));
+                c[k] = sum.mod(modulo);
+            }
+            return new Polynomial(c, modulo);
+        }
+
+        // every product coefficient is a sum of at most min(d1,d2)+1 products of two values below modulo
+        int terms = Math.min(this.degree, that.degree) + 1;
+        int bits = 2 * modulo.bitLength() + BigInteger.valueOf(terms).bitLength();
+        int slot = (bits + 7) / 8;
+        BigInteger product = this.pack(slot).multiply(that.pack(slot));
+        return unpack(product, slot, this.degree + that.degree + 1, modulo);
+    }
+
+    // the integer sum { coef[i] * 2^(8*slot*i) }, with the coefficients reduced mod modulo
+    private BigInteger pack(int slot) {
+        byte[] bytes = new byte[(degree + 1) * slot];
+        for (int i = 0; i <= degree; i++) {
+            byte[] c = coef[i].mod(modulo).toByteArray();
+            // skip the sign byte of a coefficient that fills its top byte
+            int skip = c.length > slot ? c.length - slot : 0;
+            int end = bytes.length - i * slot;
+            System.arraycopy(c, skip, bytes, end - (c.length - skip), c.length - skip);
+        }
+        return new BigInteger(1, bytes);
+    }
+
+    // the polynomial with the slots of a packed integer as coefficients
+    private static Polynomial unpack(BigInteger packed, int slot, int length, BigInteger modulo) {
+        byte[] bytes = packed.toByteArray();
+        BigInteger[] c = new BigInteger[length];
+        for (int i = 0; i < length; i++) {
+            int end = bytes.length - i * slot;
+            int start = Math.max(0, end - slot);
+            if (end <= 0) c[i] = BigInteger.ZERO;
+            else c[i] = new BigInteger(1, Arrays.copyOfRange(bytes, start, end)).mod(modulo);
+        }
+        return new Polynomial(c, modulo);
     }
 
     /**
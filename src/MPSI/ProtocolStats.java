@@ -12,6 +12,8 @@ public class ProtocolStats {
 	public ArrayList<DataPoint> computational_setup_server;
 	public ArrayList<DataPoint> computational_interactive_client;
 	public ArrayList<DataPoint> computational_interactive_server;
+	public ArrayList<DataPoint> computational_offline_client;
+	public ArrayList<DataPoint> computational_offline_server;
 	public ArrayList<DataPoint> computational_combined_client;
 	public ArrayList<DataPoint> computational_combined_server;
 	public ArrayList<DataPoint> communicational_client;
@@ -23,6 +25,8 @@ public class ProtocolStats {
 		computational_setup_server = new ArrayList<DataPoint>();
 		computational_interactive_client = new ArrayList<DataPoint>();
 		computational_interactive_server = new ArrayList<DataPoint>();
+		computational_offline_client = new ArrayList<DataPoint>();
+		computational_offline_server = new ArrayList<DataPoint>();
 		computational_combined_client = new ArrayList<DataPoint>();
 		computational_combined_server = new ArrayList<DataPoint>();
 		communicational_client = new ArrayList<DataPoint>();
@@ -34,8 +38,8 @@ public class ProtocolStats {
 		for (int i=0; i < computational_setup_client.size(); i++)  
 		{
 			long key = computational_setup_client.get(i).key;
-			long val_client = computational_interactive_client.get(i).value + computational_setup_client.get(i).value;
-			long val_server = computational_interactive_server.get(i).value + computational_setup_server.get(i).value;
+			long val_client = computational_interactive_client.get(i).value + computational_setup_client.get(i).value + computational_offline_client.get(i).value;
+			long val_server = computational_interactive_server.get(i).value + computational_setup_server.get(i).value + computational_offline_server.get(i).value;
 			
 			computational_combined_client.add(new DataPoint(key, val_client));
 			computational_combined_server.add(new DataPoint(key, val_server));
@@ -45,6 +49,8 @@ public class ProtocolStats {
 		writeFile(name+"_computational_setup_server.txt", computational_setup_server);
 		writeFile(name+"_computational_interactive_client.txt", computational_interactive_client);
 		writeFile(name+"_computational_interactive_server.txt", computational_interactive_server);
+		writeFile(name+"_computational_offline_client.txt", computational_offline_client);
+		writeFile(name+"_computational_offline_server.txt", computational_offline_server);
 		writeFile(name+"_computational_combined_client.txt", computational_combined_client);
 		writeFile(name+"_computational_combined_server.txt", computational_combined_server);
 		writeFile(name+"_communicational_client.txt", communicational_client);
@@ -0,0 +1,335 @@
+package MPSI;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import paillierp.PaillierThreshold;
+import paillierp.PartialDecryption;
+import paillierp.ShareAccumulator;
+
+/** Selects which of the decrypting parties compute the decryption shares of a batch of ciphertexts.
+ * Combining needs the shares of exactly w parties, so only the parties of the quorum compute and send shares,
+ * the others skip the decryption round entirely. The parties are identified by their index among the candidates,
+ * which is the index the receiving party uses for the sender.
+ */
+public class Quorum {
+
+	/** Policies for choosing the parties of the quorum
+	 */
+	public enum Policy {
+		/** The first w candidates to respond. Parties are asked in order, so these are the first w candidates */
+		FIRST_W,
+		/** A fixed subset of the candidates chosen in advance */
+		FIXED_SUBSET,
+		/** The ciphertexts are split into blocks, and the quorum of each block starts after the last party of the
+		 * previous block, which spreads the decryption work evenly over all candidates */
+		ROUND_ROBIN
+	}
+
+	/** Default number of ciphertexts per block for {@link Policy#ROUND_ROBIN} */
+	public static final int DEFAULT_BLOCK_SIZE = 64;
+
+	private Policy policy;
+	private int members[];
+	private int ids[];
+	private int w;
+	private int block_size;
+
+	/** Constructs a quorum
+	 * @param policy Policy for choosing the parties
+	 * @param members Candidates that may be chosen, in the order they are asked. For {@link Policy#FIXED_SUBSET}
+	 * the first w of them are used
+	 * @param ids Key IDs of all candidates, indexed by candidate
+	 * @param w Threshold number of parties required for decryption
+	 * @param block_size Number of ciphertexts per block for {@link Policy#ROUND_ROBIN}
+	 */
+	public Quorum(Policy policy, int members[], int ids[], int w, int block_size)
+	{
+		if(w < 1 || members.length < w)
+			throw new IllegalArgumentException("A quorum of " + w + " parties needs at least as many candidates, got " + members.length);
+		if(block_size < 1)
+			throw new IllegalArgumentException("The block size must be at least 1");
+		for(int i=0; i<members.length; i++)
+		{
+			if(members[i] < 0 || members[i] >= ids.length)
+				throw new IllegalArgumentException("Unknown candidate " + members[i]);
+		}
+
+		this.policy = policy;
+		this.members = policy == Policy.ROUND_ROBIN ? members.clone() : Arrays.copyOf(members, w);
+		this.ids = ids.clone();
+		this.w = w;
+		this.block_size = block_size;
+	}
+
+	/** Gets the policy of this quorum
+	 * @return The policy
+	 */
+	public Policy getPolicy()
+	{
+		return policy;
+	}
+
+	/** Gets the number of blocks with their own quorum
+	 * @param count Number of ciphertexts
+	 * @return Number of blocks
+	 */
+	public int numBlocks(int count)
+	{
+		if(policy != Policy.ROUND_ROBIN)
+			return 1;
+		return (count+block_size-1)/block_size;
+	}
+
+	/** Gets the index of the first ciphertext of a block
+	 * @param block Index of the block
+	 * @param count Number of ciphertexts
+	 * @return Index of the first ciphertext
+	 */
+	private int blockStart(int block, int count)
+	{
+		return policy == Policy.ROUND_ROBIN ? Math.min(block*block_size, count) : 0;
+	}
+
+	/** Gets the index after the last ciphertext of a block
+	 * @param block Index of the block
+	 * @param count Number of ciphertexts
+	 * @return Index after the last ciphertext
+	 */
+	private int blockEnd(int block, int count)
+	{
+		return policy == Policy.ROUND_ROBIN ? Math.min((block+1)*block_size, count) : count;
+	}
+
+	/** Gets the candidates decrypting a block
+	 * @param block Index of the block
+	 * @return The w candidates
+	 */
+	public int[] members(int block)
+	{
+		int res[] = new int[w];
+		for(int j=0; j<w; j++)
+			res[j] = members[(int)(((long)block*w + j) % members.length)];
+		return res;
+	}
+
+	/** Checks whether a candidate decrypts a block
+	 * @param member Index of the candidate
+	 * @param block Index of the block
+	 * @return True if the candidate is part of the quorum of the block
+	 */
+	public boolean isMember(int member, int block)
+	{
+		int quorum[] = members(block);
+		for(int j=0; j<w; j++)
+		{
+			if(quorum[j] == member)
+				return true;
+		}
+		return false;
+	}
+
+	/** Checks whether a candidate decrypts any of the ciphertexts. Other candidates do not take part in the decryption round.
+	 * @param member Index of the candidate
+	 * @param count Number of ciphertexts
+	 * @return True if the candidate decrypts at least one block
+	 */
+	public boolean isActive(int member, int count)
+	{
+		int blocks = numBlocks(count);
+		// Round robin visits every candidate within members.length blocks
+		for(int b=0; b<Math.min(blocks, members.length); b++)
+		{
+			if(isMember(member, b))
+				return true;
+		}
+		return false;
+	}
+
+	/** Selects the ciphertexts decrypted by a candidate, the blocks it is a member of in ascending order
+	 * @param values All ciphertexts
+	 * @param member Index of the candidate
+	 * @return The selected ciphertexts
+	 */
+	public <T> T[] select(T values[], int member)
+	{
+		int blocks = numBlocks(values.length);
+		int total = 0;
+		for(int b=0; b<blocks; b++)
+		{
+			if(isMember(member, b))
+				total += blockEnd(b, values.length) - blockStart(b, values.length);
+		}
+
+		T res[] = Arrays.copyOf(values, total);
+		int pos = 0;
+		for(int b=0; b<blocks; b++)
+		{
+			if(!isMember(member, b))
+				continue;
+			int from = blockStart(b, values.length);
+			int to = blockEnd(b, values.length);
+			System.arraycopy(values, from, res, pos, to-from);
+			pos += to-from;
+		}
+		return res;
+	}
+
+	/** Creates a combiner for the shares of all ciphertexts
+	 * @param paillier Cryptosystem set up for decryption
+	 * @param count Number of ciphertexts
+	 * @return The combiner
+	 */
+	public Combiner newCombiner(PaillierThreshold paillier, int count)
+	{
+		return new Combiner(paillier, count, null);
+	}
+
+	/** Creates a combiner which only combines the shares of some of the ciphertexts
+	 * @param paillier Cryptosystem set up for decryption
+	 * @param count Number of ciphertexts
+	 * @param entries Indices of the ciphertexts to combine, in ascending order
+	 * @return The combiner
+	 */
+	public Combiner newCombiner(PaillierThreshold paillier, int count, int entries[])
+	{
+		return new Combiner(paillier, count, entries);
+	}
+
+	/** Combines the shares sent by the quorum of every block on receipt, see {@link ShareAccumulator}
+	 */
+	public class Combiner {
+		private int count;
+		private int entries[];
+		private ShareAccumulator accumulators[];
+		private int selected[][];
+
+		/** Constructs a combiner
+		 * @param paillier Cryptosystem set up for decryption
+		 * @param count Number of ciphertexts
+		 * @param entries Indices of the ciphertexts to combine in ascending order, or null for all
+		 */
+		private Combiner(PaillierThreshold paillier, int count, int entries[])
+		{
+			this.count = count;
+			this.entries = entries;
+
+			int blocks = numBlocks(count);
+			accumulators = new ShareAccumulator[blocks];
+			selected = new int[blocks][];
+			int next = 0;
+			for(int b=0; b<blocks; b++)
+			{
+				int from = blockStart(b, count);
+				int to = blockEnd(b, count);
+
+				// Offsets within the block of the entries to combine
+				int size = to-from;
+				if(entries != null)
+				{
+					int first = next;
+					while(next < entries.length && entries[next] < to)
+						next++;
+					selected[b] = new int[next-first];
+					for(int i=first; i<next; i++)
+						selected[b][i-first] = entries[i]-from;
+					size = selected[b].length;
+				}
+				if(size == 0)
+					continue;
+
+				int quorum[] = members(b);
+				int quorum_ids[] = new int[w];
+				for(int j=0; j<w; j++)
+					quorum_ids[j] = ids[quorum[j]];
+				accumulators[b] = paillier.newShareAccumulator(size, quorum_ids);
+			}
+		}
+
+		/** Adds the shares of a candidate to the combined shares
+		 * @param shares Shares of the ciphertexts selected for the candidate, see {@link Quorum#select(Object[], int)}
+		 * @param member Index of the sending candidate
+		 */
+		public void add(PartialDecryption shares[], int member)
+		{
+			int pos = 0;
+			for(int b=0; b<accumulators.length; b++)
+			{
+				if(!isMember(member, b))
+					continue;
+
+				int from = blockStart(b, count);
+				int to = blockEnd(b, count);
+				if(pos + to-from > shares.length)
+					throw new IllegalArgumentException("Too few shares from candidate " + member);
+
+				if(accumulators[b] != null)
+				{
+					PartialDecryption block[];
+					if(entries == null)
+						block = Arrays.copyOfRange(shares, pos, pos + to-from);
+					else
+					{
+						block = new PartialDecryption[selected[b].length];
+						for(int i=0; i<block.length; i++)
+							block[i] = shares[pos + selected[b][i]];
+					}
+					accumulators[b].add(block);
+				}
+				pos += to-from;
+			}
+			if(pos != shares.length)
+				throw new IllegalArgumentException("Expected " + pos + " shares from candidate " + member + ", got " + shares.length);
+		}
+
+		/** Merges the shares combined by another combiner of this quorum for the same ciphertexts, which lets a relay
+		 * forward a single partial combination instead of the shares of all parties below it
+		 * @param other Combiner holding the shares of other candidates
+		 */
+		public void merge(Combiner other)
+		{
+			if(other.count != count || !Arrays.equals(other.entries, entries))
+				throw new IllegalArgumentException("The combiners must combine the same ciphertexts");
+			for(int b=0; b<accumulators.length; b++)
+			{
+				if(accumulators[b] != null)
+					accumulators[b].merge(other.accumulators[b]);
+			}
+		}
+		
+		/** Gets the partial combinations of all blocks, which is what a relay forwards
+		 * @return The running products of all combined ciphertexts
+		 */
+		public BigInteger[] products()
+		{
+			BigInteger res[] = new BigInteger[entries == null ? count : entries.length];
+			int pos = 0;
+			for(int b=0; b<accumulators.length; b++)
+			{
+				if(accumulators[b] == null)
+					continue;
+				BigInteger block[] = accumulators[b].getProducts();
+				System.arraycopy(block, 0, res, pos, block.length);
+				pos += block.length;
+			}
+			return res;
+		}
+		
+		/** Decrypts the combined ciphertexts
+		 * @return The plaintexts of all ciphertexts, or of the selected entries in their order
+		 */
+		public BigInteger[] decrypt()
+		{
+			BigInteger res[] = new BigInteger[entries == null ? count : entries.length];
+			int pos = 0;
+			for(int b=0; b<accumulators.length; b++)
+			{
+				if(accumulators[b] == null)
+					continue;
+				BigInteger block[] = accumulators[b].decrypt();
+				System.arraycopy(block, 0, res, pos, block.length);
+				pos += block.length;
+			}
+			return res;
+		}
+	}
+}
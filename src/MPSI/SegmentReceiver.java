@@ -0,0 +1,90 @@
+package MPSI;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Delivers the encrypted segments of {@link PartitionedBloomfilter}s to a receiving party on a thread of its own,
+ * in the order in which they are ready. The receiver adds up the segments that arrived while the senders are still
+ * encrypting the others. The receiving time is measured for the receiver and the bytes are counted from the sender.
+ */
+public abstract class SegmentReceiver {
+	private PartitionedBloomfilter layout;
+	private int receiver;
+	private Network network;
+	private Performance performance;
+	private ExecutorService thread;
+	private ArrayList<Future<?>> receipts;
+
+	/** Starts the thread of the receiving party
+	 * @param layout Bloomfilter with the segment layout of the senders
+	 * @param receiver Id of the receiving party
+	 * @param network Network measurement
+	 * @param performance Performance measurement
+	 */
+	public SegmentReceiver(PartitionedBloomfilter layout, int receiver, Network network, Performance performance)
+	{
+		this.layout = layout;
+		this.receiver = receiver;
+		this.network = network;
+		this.performance = performance;
+		this.thread = Executors.newSingleThreadExecutor();
+		this.receipts = new ArrayList<Future<?>>();
+	}
+
+	/** Adds a segment to the entries received so far. Called on the thread of the receiving party only.
+	 * @param entries The entries of the segment
+	 * @param offset Position of the first entry in the bloomfilter
+	 */
+	protected abstract void receive(ArrayList<BigInteger> entries, int offset);
+
+	/** Gets a listener that sends the segments of a party to the receiver as soon as they are ready
+	 * @param sender Id of the sending party
+	 * @return The listener
+	 */
+	public PartitionedBloomfilter.SegmentListener from(final int sender)
+	{
+		return new PartitionedBloomfilter.SegmentListener() {
+			public void segmentReady(final int segment, final ArrayList<BigInteger> entries)
+			{
+				Future<?> receipt = thread.submit(new Runnable() {
+					public void run()
+					{
+						performance.start(receiver);
+						receive(entries, layout.segmentStart(segment));
+						performance.stop(receiver);
+						network.send(sender, receiver, entries);
+					}
+				});
+				synchronized(receipts)
+				{
+					receipts.add(receipt);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Waits until every segment sent so far has been received, and stops the thread of the receiving party
+	 */
+	public void await()
+	{
+		thread.shutdown();
+		synchronized(receipts)
+		{
+			try {
+				for(int i=0; i<receipts.size(); i++)
+					receipts.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while receiving the segments", e);
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof RuntimeException)
+					throw (RuntimeException)e.getCause();
+				throw new IllegalStateException("Receiving a segment failed", e.getCause());
+			}
+		}
+	}
+}
@@ -2,6 +2,7 @@ package MPSI;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.BitSet;
 
 import paillierp.PartialDecryption;
 
@@ -46,6 +47,12 @@ final public class Sizeof {
     		
     		return result;
     	}
+    	else if(obj instanceof BitSet)
+    	{
+    		// One bit per position up to the last set bit
+    		BitSet bits = (BitSet) obj;
+    		return (bits.length()+7)/8;
+    	}
     	else if(obj instanceof ArrayList<?>)
     	{
     		ArrayList<?> array = (ArrayList<?>) obj;
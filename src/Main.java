@@ -1,7 +1,10 @@
 import MPSI.*;
 
+import java.io.File;
 import java.io.IOException;
 
+import paillierp.key.ThresholdKeyStore;
+
 import org.jfree.ui.RefineryUtilities;
 
 /**
@@ -14,9 +17,19 @@ public class Main {
 		
 	public static void main(String[] args) throws IOException
 	{	
+		// Reuse the threshold keys of earlier runs instead of generating new safe primes. The store holds the
+		// private shares and the safe primes, so it is kept outside the source tree unless -Dmpsi.keystore is given
+		File key_store = new File(System.getProperty("mpsi.keystore", System.getProperty("user.home") + File.separator + ".mpsi" + File.separator + "keys"));
+		KeyGenerator.setKeyStore(new ThresholdKeyStore(key_store));
+		
 		Measurements m = new Measurements(3, 7, 1, 300, 600, 50);
+		// Also measure with only two parties computing decryption shares, taking turns per block
+		m.setQuorumConfiguration(Quorum.Policy.ROUND_ROBIN, 2);
+		// Choose the bloomfilter parameters of each protocol by the measured costs of the operations
+		m.setOptimizedBloom(true);
 		m.start();
 		ProtocolStats stats[][] = m.getStats();
+		ProtocolStats quorum_stats[][] = m.getQuorumStats();
 		
 		// Write measurement results to files
 		/*stats[0][0].writeFiles("measurement/newMPSI_party");
@@ -24,7 +37,10 @@ public class Main {
 		stats[0][2].writeFiles("measurement/H&V_party");
 		stats[1][0].writeFiles("measurement/newMPSI_set");
 		stats[1][1].writeFiles("measurement/M&N_set");
-		stats[1][2].writeFiles("measurement/H&V_set");*/
+		stats[1][2].writeFiles("measurement/H&V_set");
+		quorum_stats[0][0].writeFiles("measurement/newMPSI_quorum_party");
+		quorum_stats[0][1].writeFiles("measurement/M&N_quorum_party");
+		quorum_stats[0][2].writeFiles("measurement/H&V_quorum_party");*/
 		
 		// Graph for varying party sizes
 		GraphCommunicational g1 = new GraphCommunicational("Communicational complexity", "Number of parties", stats[0]);
@@ -48,6 +64,17 @@ public class Main {
 		RefineryUtilities.centerFrameOnScreen(g4);
 		g4.setVisible(true);
 		
+		// Graph for varying party sizes with a minimal quorum
+		GraphCommunicational g5 = new GraphCommunicational("Communicational complexity, minimal quorum", "Number of parties", quorum_stats[0]);
+		g5.setSize(800, 600);
+		RefineryUtilities.centerFrameOnScreen(g5);
+		g5.setVisible(true);
+		
+		GraphComputational g6 = new GraphComputational("Computational complexity, minimal quorum", "Number of parties", quorum_stats[0]);
+		g6.setSize(800, 600);
+		RefineryUtilities.centerFrameOnScreen(g6);
+		g6.setVisible(true);
+		
 		//m.test();
 	}
 }
\ No newline at end of file
@@ -29,6 +29,12 @@ import paillierp.zkp.MultiplicationZKP;
  * cryptosystem and is not included in this class.
  * <p>
  * Note that every ciphertext and plaintext is a {@link BigInteger}.
+ * <p>
+ * Once its keys are set, an instance may be shared by several threads:
+ * encryption, rerandomization and the homomorphic operations only read the
+ * key, and every thread draws its randomness from its own stream of the key
+ * (see {@link PaillierKey#getRnd()}).  Changing the keys with the
+ * {@code set} methods while other threads use the instance is not safe.
  * 
  * @author Sean Hall
  * @author James Garrity
@@ -125,7 +131,7 @@ public abstract class AbstractPaillier {
 	 */
 	public BigInteger encrypt(BigInteger m)
 	{  	
-		return encrypt(m, key.getRandomModNStar(), key);
+		return encrypt(m, key);
 	}
 
 	/**
@@ -148,7 +154,9 @@ public abstract class AbstractPaillier {
 	}
 	
 	/**
-	 * Produces a random encryption of {@code m}
+	 * Produces a random encryption of {@code m}.  The randomizer is taken
+	 * from the key's {@link paillierp.key.RandomnessPool RandomnessPool} if
+	 * one is attached.
 	 * 
 	 * @param m         Message to be encoded; {@code m<ns}
 	 * @param key       Public Key doing the encoding
@@ -156,7 +164,12 @@ public abstract class AbstractPaillier {
 	 *                  the public key {@code key} with random <i>r</i>
 	 */
 	public static BigInteger encrypt(BigInteger m, PaillierKey key) {
-		return encrypt(m, key.getRandomModNStar(), key.getN(), key.getNS(), key.getNSPlusOne());
+		if(!(PaillierKey.inModN(m,key.getNSPlusOne()))) {
+			throw new IllegalArgumentException("m must be less than n^s");
+		}
+		
+		// The randomizer r^(n^s) may come precomputed from the key's pool
+		return (powerOfG(m, key.getN(), key.getNS(), key.getNSPlusOne()).multiply(key.getRandomizer()).mod(key.getNSPlusOne()));
 	}
 	
 	/**
@@ -169,7 +182,15 @@ public abstract class AbstractPaillier {
 	 *                  the public key {@code key}
 	 */
 	public static BigInteger encrypt(BigInteger m, BigInteger r, PaillierKey key) {
-		return encrypt(m, r, key.getN(), key.getNS(), key.getNSPlusOne());
+		if(!(PaillierKey.inModN(m,key.getNSPlusOne()))) {
+			throw new IllegalArgumentException("m must be less than n^s");
+		}
+
+		if(!(key.inModNStar(r))) {
+			throw new IllegalArgumentException("r must be relatively prime to n and 0 <= r < n");
+		}
+		
+		return (powerOfG(m, key.getN(), key.getNS(), key.getNSPlusOne()).multiply(key.getEncryptionExponent().pow(r)).mod(key.getNSPlusOne()));
 	}
 	
 	/**
@@ -192,7 +213,95 @@ public abstract class AbstractPaillier {
 			throw new IllegalArgumentException("r must be relatively prime to n and 0 <= r < n");
 		}
 		
-		return (n.add(BigInteger.ONE).modPow(m, nSPlusOne).multiply(r.modPow(ns, nSPlusOne)).mod(nSPlusOne));
+		return (powerOfG(m, n, ns, nSPlusOne).multiply(r.modPow(ns, nSPlusOne)).mod(nSPlusOne));
+	}
+	
+	/**
+	 * Computes <i>g</i><sup>{@code m}</sup> mod <i>n</i><sup><i>s</i>+1</sup>
+	 * for our fixed <i>g</i>=<i>n</i>+1 without an exponentiation.  By the
+	 * binomial theorem,
+	 * (1+<i>n</i>)<sup><i>m</i></sup> = &Sigma;<sub><i>k</i>=0..<i>s</i></sub>
+	 * C(<i>m</i>,<i>k</i>)<i>n<sup>k</sup></i> mod <i>n</i><sup><i>s</i>+1</sup>,
+	 * as every higher term is a multiple of <i>n</i><sup><i>s</i>+1</sup>.
+	 * When <i>s</i>=1 this is simply 1+<i>mn</i> mod <i>n</i><sup>2</sup>, a
+	 * single multiplication.
+	 * 
+	 * @param m         Exponent; any non-negative integer
+	 * @param n         RSA modulus
+	 * @param ns        The value {@code n}<sup><i>s</i></sup>
+	 * @param nSPlusOne The value {@code n}<sup><i>s</i>+1</sup>
+	 * @return          The value (1+{@code n})<sup>{@code m}</sup> mod
+	 *                  {@code n}<sup><i>s</i>+1</sup>
+	 */
+	public static BigInteger powerOfG(BigInteger m, BigInteger n, BigInteger ns, BigInteger nSPlusOne) {
+		// n+1 has order n^s in Z*_{n^(s+1)}
+		BigInteger e = m.mod(ns);
+		
+		if (ns.equals(n)) {
+			// 1 + m*n < n^2 for m < n, so no reduction is needed
+			return e.multiply(n).add(BigInteger.ONE);
+		}
+		
+		BigInteger result = BigInteger.ONE;
+		BigInteger binomial = BigInteger.ONE;
+		BigInteger nk = BigInteger.ONE;
+		for (int k = 1; nk.multiply(n).compareTo(nSPlusOne) < 0; k++) {
+			nk = nk.multiply(n);
+			// C(e,k) = C(e,k-1) * (e-k+1) / k, where k is invertible mod n^(s+1)
+			binomial = binomial.multiply(e.subtract(BigInteger.valueOf(k-1))).mod(nSPlusOne);
+			binomial = binomial.multiply(BigInteger.valueOf(k).modInverse(nSPlusOne)).mod(nSPlusOne);
+			result = result.add(binomial.multiply(nk)).mod(nSPlusOne);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Computes the discrete logarithm of {@code a} to the base
+	 * <i>g</i>=<i>n</i>+1, the inverse of
+	 * {@link #powerOfG(BigInteger, BigInteger, BigInteger, BigInteger)}.
+	 * Given {@code a}=(1+<i>n</i>)<sup><i>i</i></sup> mod
+	 * <i>n</i><sup><i>s</i>+1</sup>, this returns <i>i</i> mod
+	 * <i>n<sup>s</sup></i> by the iterative extraction of
+	 * Damg&aring;rd and Jurik: <i>i</i> mod <i>n<sup>j</sup></i> is recovered
+	 * for <i>j</i>=1,...,<i>s</i> in turn from
+	 * <i>L</i>({@code a} mod <i>n</i><sup><i>j</i>+1</sup>) where
+	 * <i>L</i>(<i>x</i>)=(<i>x</i>-1)/<i>n</i>.  When <i>s</i>=1 this is just
+	 * <i>L</i>({@code a}).
+	 * 
+	 * @param a         A power of <i>n</i>+1 modulo {@code n}<sup><i>s</i>+1</sup>
+	 * @param n         RSA modulus
+	 * @param s         The degree <i>s</i> of the cryptosystem
+	 * @return          The exponent <i>i</i> mod {@code n}<sup><i>s</i></sup>
+	 */
+	public static BigInteger discreteLogOfG(BigInteger a, BigInteger n, int s) {
+		if (s == 1) {
+			return a.subtract(BigInteger.ONE).divide(n).mod(n);
+		}
+		
+		// nj[j] = n^j
+		BigInteger[] nj = new BigInteger[s+2];
+		nj[0] = BigInteger.ONE;
+		for (int j = 1; j < nj.length; j++) {
+			nj[j] = nj[j-1].multiply(n);
+		}
+		
+		BigInteger i = BigInteger.ZERO;
+		for (int j = 1; j <= s; j++) {
+			BigInteger t1 = a.mod(nj[j+1]).subtract(BigInteger.ONE).divide(n);
+			BigInteger t2 = i;
+			BigInteger kFactorial = BigInteger.ONE;
+			for (int k = 2; k <= j; k++) {
+				i = i.subtract(BigInteger.ONE);
+				t2 = t2.multiply(i).mod(nj[j]);
+				kFactorial = kFactorial.multiply(BigInteger.valueOf(k));
+				// t1 -= t2 * n^(k-1) / k!
+				t1 = t1.subtract(t2.multiply(nj[k-1]).multiply(kFactorial.modInverse(nj[j]))).mod(nj[j]);
+			}
+			i = t1;
+		}
+		
+		return i;
 	}
 	
 	/**
@@ -300,6 +409,30 @@ public abstract class AbstractPaillier {
 		return c1.modPow(cons,key.getNSPlusOne());
 	}
 
+	/**
+	 * Calculates the linear combination
+	 * <i>E</i>(&Sigma;<sub><i>i</i></sub> <i>a<sub>i</sub>m<sub>i</sub></i>)
+	 * given the encryptions <i>E</i>(<i>m<sub>i</sub></i>) and the constants
+	 * <i>a<sub>i</sub></i>, under our current public key.  The product
+	 * &prod;<sub><i>i</i></sub> <i>E</i>(<i>m<sub>i</sub></i>)<sup><i>a<sub>i</sub></i></sup>
+	 * is computed by simultaneous multi-exponentiation when that is cheaper
+	 * than one exponentiation per term.
+	 * 
+	 * @param ciphertexts   the encryptions <i>E</i>(<i>m<sub>i</sub></i>)
+	 * @param scalars       the integer multiplicands <i>a<sub>i</sub></i>;
+	 *                      may be negative
+	 * @return              the encryption of the linear combination
+	 * @see MultiExponentiation
+	 */
+	public BigInteger linearCombination(BigInteger[] ciphertexts, BigInteger[] scalars)
+	{
+		if(encryptMode==false) throw new IllegalStateException(this.notReadyForEncryption);
+		for (int i = 0; i < ciphertexts.length; i++) {
+			if(!(key.inModNSPlusOne(ciphertexts[i]))) throw new IllegalArgumentException("Each ciphertext must be less than n^(s+1)");
+		}
+		return MultiExponentiation.linearCombination(ciphertexts, scalars, key.getNSPlusOne());
+	}
+
 	/**
 	 * Calculates <i>E</i>(<code>cons*</code><i>m</i>) given <i>E</i>(<i>m</i>)
 	 * and the constant <code>cons</code>, under our current public key.  This
@@ -349,23 +482,27 @@ public abstract class AbstractPaillier {
 	public BigInteger randomize(BigInteger c, BigInteger r)
 	{
 		if(encryptMode==false) throw new IllegalStateException(this.notReadyForEncryption);
-		if(!(key.inModNSPlusOne(c))) throw new IllegalArgumentException("c must be less than n^2");
+		if(!(key.inModNSPlusOne(c))) throw new IllegalArgumentException("c must be less than n^(s+1)");
 		if(!(key.inModNStar(r))) throw new IllegalArgumentException("r must be relatively prime to n and 0<=r<n");
-		return (c.multiply(r.modPow(key.getN(),key.getNSPlusOne()))).mod(key.getNSPlusOne());
+		return (c.multiply(key.getEncryptionExponent().pow(r))).mod(key.getNSPlusOne());
 	}
 
 	/**
 	 * Randomizes a given encryption by the given variable.  Given
 	 * <i>E</i>(<i>m</i>,<i>r</i>),
-	 * it returns <i>E</i>(<i>m</i>,<i>r'</i>) for random <i>r'</i>.
+	 * it returns <i>E</i>(<i>m</i>,<i>r'</i>) for random <i>r'</i>.  The
+	 * randomizer is taken from the key's
+	 * {@link paillierp.key.RandomnessPool RandomnessPool} if one is attached.
 	 * 
 	 * @param c		the encryption <i>E</i>(<i>m</i>,<i>r</i>)
 	 * @return		the encryption <i>E</i>(<i>m</i>,<i>r'</i>) for a new
 	 * 				random <i>r'</i>
-	 * 
+	 * @see PaillierKey#getRandomizer()
 	 */
 	public BigInteger randomize(BigInteger c)
 	{
-		return this.randomize(c, key.getRandomModNStar());
+		if(encryptMode==false) throw new IllegalStateException(this.notReadyForEncryption);
+		if(!(key.inModNSPlusOne(c))) throw new IllegalArgumentException("c must be less than n^2");
+		return (c.multiply(key.getRandomizer())).mod(key.getNSPlusOne());
 	}
 }
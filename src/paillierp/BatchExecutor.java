@@ -0,0 +1,331 @@
+/**
+ * BatchExecutor.java
+ */
+package paillierp;
+
+import java.math.BigInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the same Paillier operation on every element of an array, spread
+ * over the threads of a {@link ForkJoinPool}.  An array is split into chunks
+ * of at least {@link #getChunkSize()} elements, which are the units of work
+ * stolen between threads; a batch that fits in one chunk, or an executor with
+ * a parallelism of 1, runs on the calling thread without touching the pool.
+ * <p>
+ * The batch methods only call thread-safe operations of
+ * {@link AbstractPaillier} and {@link PaillierThreshold}, so the same
+ * cryptosystem object is used by all threads.  Every thread draws its
+ * randomness from its own stream of the key.
+ * <p>
+ * A shared executor with one thread per available processor is returned by
+ * {@link #getDefault()}; it can be replaced with
+ * {@link #setDefault(BatchExecutor)} to tune the parallelism of everything
+ * using it.
+ *
+ * @see paillierp.key.PaillierKey#getRnd()
+ */
+public class BatchExecutor {
+
+	/*
+	 *
+	 * Fields
+	 *
+	 */
+
+	/** Default number of elements per chunk. */
+	public static final int DEFAULT_CHUNK_SIZE = 4;
+
+	/** The executor returned by {@link #getDefault()}. */
+	private static volatile BatchExecutor defaultExecutor = null;
+
+	/** The pool running the chunks; {@code null} for a parallelism of 1. */
+	private final ForkJoinPool pool;
+
+	/** The number of threads working on a batch. */
+	private final int parallelism;
+
+	/** The minimal number of elements per chunk. */
+	private final int chunkSize;
+
+	/*
+	 *
+	 * Constructors
+	 *
+	 */
+
+	/**
+	 * Creates an executor with one thread per available processor and the
+	 * default chunk size.
+	 */
+	public BatchExecutor() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Creates an executor with its own pool of {@code parallelism} threads.
+	 *
+	 * @param parallelism   number of threads; 1 runs every batch on the
+	 *                      calling thread
+	 * @param chunkSize     minimal number of elements handed to a thread at
+	 *                      once
+	 */
+	public BatchExecutor(int parallelism, int chunkSize) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("The parallelism must be at least 1");
+		}
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("The chunk size must be at least 1");
+		}
+		this.parallelism = parallelism;
+		this.chunkSize = chunkSize;
+		this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+	}
+
+	/*
+	 *
+	 * Methods
+	 *
+	 */
+
+	/**
+	 * Returns the shared executor, creating one with the default settings on
+	 * the first call.
+	 *
+	 * @return              the shared executor
+	 */
+	public static BatchExecutor getDefault() {
+		BatchExecutor executor = defaultExecutor;
+		if (executor == null) {
+			synchronized (BatchExecutor.class) {
+				if (defaultExecutor == null) {
+					defaultExecutor = new BatchExecutor();
+				}
+				executor = defaultExecutor;
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * Replaces the shared executor.  The previous one is shut down.
+	 *
+	 * @param executor      the new shared executor
+	 */
+	public static void setDefault(BatchExecutor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("The executor must not be null");
+		}
+		BatchExecutor previous;
+		synchronized (BatchExecutor.class) {
+			previous = defaultExecutor;
+			defaultExecutor = executor;
+		}
+		if (previous != null && previous != executor) {
+			previous.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the number of threads working on a batch.
+	 *
+	 * @return              the parallelism
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Returns the minimal number of elements handed to a thread at once.
+	 *
+	 * @return              the chunk size
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Shuts down the pool of this executor.  Batches submitted afterwards
+	 * fail.
+	 */
+	public void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Runs {@code body} on every index in [0, {@code count}), in chunks on the
+	 * threads of this executor, and returns when all chunks are done.  A
+	 * {@link RuntimeException} thrown by a chunk is rethrown here.
+	 *
+	 * @param count         the number of indices
+	 * @param body          the work for a range of indices
+	 */
+	public void run(int count, Range body) {
+		if (count <= 0) {
+			return;
+		}
+		if (pool == null || count <= chunkSize) {
+			body.run(0, count);
+			return;
+		}
+		// A few chunks per thread, so threads finishing early can steal work
+		int grain = Math.max(chunkSize, count / (4 * parallelism));
+		pool.invoke(new Chunk(body, 0, count, grain));
+	}
+
+	/**
+	 * Runs {@code body} on every index in [0, {@code count}) as a task of its
+	 * own, and returns when all tasks are done.  This suits a few independent
+	 * pieces of work which are batches themselves, as a thread finishing its
+	 * piece early helps with the batches of the others.  A
+	 * {@link RuntimeException} thrown by a task is rethrown here.
+	 *
+	 * @param count         the number of indices
+	 * @param body          the work for a single index, called with
+	 *                      [<i>i</i>, <i>i</i>+1)
+	 */
+	public void runEach(int count, Range body) {
+		if (count <= 0) {
+			return;
+		}
+		if (pool == null || count == 1) {
+			for (int i = 0; i < count; i++) {
+				body.run(i, i + 1);
+			}
+			return;
+		}
+		pool.invoke(new Chunk(body, 0, count, 1));
+	}
+
+	/**
+	 * Encrypts every plaintext with a fresh random <i>r</i>.
+	 *
+	 * @param paillier      a cryptosystem set up for encryption
+	 * @param plaintexts    the plaintexts
+	 * @return              the encryptions, in the same order
+	 */
+	public BigInteger[] encryptAll(final AbstractPaillier paillier, final BigInteger[] plaintexts) {
+		final BigInteger[] res = new BigInteger[plaintexts.length];
+		run(plaintexts.length, new Range() {
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					res[i] = paillier.encrypt(plaintexts[i]);
+				}
+			}
+		});
+		return res;
+	}
+
+	/**
+	 * Rerandomizes every ciphertext.
+	 *
+	 * @param paillier      a cryptosystem set up for encryption
+	 * @param ciphertexts   the ciphertexts
+	 * @return              encryptions of the same plaintexts with new
+	 *                      randomness, in the same order
+	 */
+	public BigInteger[] randomizeAll(final AbstractPaillier paillier, final BigInteger[] ciphertexts) {
+		final BigInteger[] res = new BigInteger[ciphertexts.length];
+		run(ciphertexts.length, new Range() {
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					res[i] = paillier.randomize(ciphertexts[i]);
+				}
+			}
+		});
+		return res;
+	}
+
+	/**
+	 * Multiplies the plaintext of every ciphertext by its own scalar.
+	 *
+	 * @param paillier      a cryptosystem set up for encryption
+	 * @param ciphertexts   the encryptions <i>E</i>(<i>m<sub>i</sub></i>)
+	 * @param scalars       the scalars <i>a<sub>i</sub></i>, one per
+	 *                      ciphertext
+	 * @return              the encryptions
+	 *                      <i>E</i>(<i>a<sub>i</sub>m<sub>i</sub></i>), in
+	 *                      the same order
+	 */
+	public BigInteger[] scalarMultiplyAll(final AbstractPaillier paillier, final BigInteger[] ciphertexts, final BigInteger[] scalars) {
+		if (ciphertexts.length != scalars.length) {
+			throw new IllegalArgumentException("There must be one scalar for every ciphertext");
+		}
+		final BigInteger[] res = new BigInteger[ciphertexts.length];
+		run(ciphertexts.length, new Range() {
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					res[i] = paillier.multiply(ciphertexts[i], scalars[i]);
+				}
+			}
+		});
+		return res;
+	}
+
+	/**
+	 * Computes the partial decryption of every ciphertext with the private
+	 * key share of {@code paillier}.
+	 *
+	 * @param paillier      a threshold cryptosystem set up for decryption
+	 * @param ciphertexts   the ciphertexts
+	 * @return              the partial decryptions, in the same order
+	 */
+	public PartialDecryption[] partialDecryptAll(final PaillierThreshold paillier, final BigInteger[] ciphertexts) {
+		final PartialDecryption[] res = new PartialDecryption[ciphertexts.length];
+		run(ciphertexts.length, new Range() {
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					res[i] = paillier.decrypt(ciphertexts[i]);
+				}
+			}
+		});
+		return res;
+	}
+
+	/**
+	 * The work of a batch for a range of indices.
+	 */
+	public interface Range {
+
+		/**
+		 * Does the work for the indices in [{@code from}, {@code to}).
+		 *
+		 * @param from      the first index
+		 * @param to        one past the last index
+		 */
+		void run(int from, int to);
+	}
+
+	/**
+	 * A range of indices which is split in halves until it is no longer
+	 * than the grain.
+	 */
+	private static class Chunk extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Range body;
+		private final int from;
+		private final int to;
+		private final int grain;
+
+		Chunk(Range body, int from, int to, int grain) {
+			this.body = body;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		protected void compute() {
+			if (to - from <= grain) {
+				body.run(from, to);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new Chunk(body, from, middle, grain), new Chunk(body, middle, to, grain));
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/**
+ * CachedExponent.java
+ */
+package paillierp;
+
+import java.math.BigInteger;
+
+/**
+ * An exponentiation <i>x</i> &#8614; <i>x<sup>e</sup></i> mod <i>N</i> with
+ * an exponent and modulus which never change for a key.  The exponent is
+ * computed once and cached, so that every call only does the
+ * exponentiation itself.  The two most frequent cases are the exponent
+ * <i>n<sup>s</sup></i> of the randomizer
+ * <i>r</i><sup><i>n<sup>s</sup></i></sup> in every encryption and
+ * rerandomization, and the exponent 2&Delta;<i>s<sub>i</sub></i> of every
+ * partial decryption.
+ * <p>
+ * When the factorization <i>N</i>=<i>p<sup>k</sup>q<sup>k</sup></i> is
+ * known, the exponent is reduced once modulo the orders
+ * <i>p</i><sup><i>k</i>-1</sup>(<i>p</i>-1) and
+ * <i>q</i><sup><i>k</i>-1</sup>(<i>q</i>-1) of the groups mod
+ * <i>p<sup>k</sup></i> and <i>q<sup>k</sup></i>, and each call does two
+ * exponentiations with half the modulus and at most half the exponent
+ * length, combined with the Chinese remainder theorem.
+ * <p>
+ * Without the factorization, which is the case for every threshold key,
+ * the cached exponent is passed to
+ * {@link BigInteger#modPow(BigInteger, BigInteger)} as it is.  The
+ * exponent is not recoded: modPow already uses a sliding window on
+ * intrinsified Montgomery multiplications, and is about three times faster
+ * than an exponentiation on the {@link Montgomery} engine, which a recoding
+ * of the fixed exponent cannot make up for.  Only the exponent arithmetic
+ * is saved then.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ *
+ * @see paillierp.key.PaillierKey#getEncryptionExponent()
+ * @see paillierp.key.PaillierPrivateThresholdKey#getDecryptionExponent()
+ */
+public final class CachedExponent {
+
+	/*
+	 *
+	 * Fields
+	 *
+	 */
+
+	/** The exponent <i>e</i>. */
+	private final BigInteger exponent;
+
+	/** The modulus <i>N</i>. */
+	private final BigInteger modulus;
+
+	/** <i>p<sup>k</sup></i>, or {@code null} without the factorization. */
+	private final BigInteger pk;
+
+	/** <i>q<sup>k</sup></i>. */
+	private final BigInteger qk;
+
+	/** <i>e</i> reduced modulo the order of the group mod <i>p<sup>k</sup></i>. */
+	private final BigInteger ep;
+
+	/** <i>e</i> reduced modulo the order of the group mod <i>q<sup>k</sup></i>. */
+	private final BigInteger eq;
+
+	/** (<i>q<sup>k</sup></i>)<sup>-1</sup> mod <i>p<sup>k</sup></i>. */
+	private final BigInteger qkInvModPk;
+
+	/*
+	 *
+	 * Constructors
+	 *
+	 */
+
+	/**
+	 * Prepares the exponentiation by {@code exponent} mod {@code modulus}.
+	 *
+	 * @param exponent      a non-negative exponent
+	 * @param modulus       a positive modulus
+	 */
+	public CachedExponent(BigInteger exponent, BigInteger modulus) {
+		if (exponent.signum() < 0) {
+			throw new IllegalArgumentException("The exponent must be non-negative");
+		}
+		if (modulus.signum() <= 0) {
+			throw new IllegalArgumentException("The modulus must be positive");
+		}
+
+		this.exponent = exponent;
+		this.modulus = modulus;
+		this.pk = null;
+		this.qk = null;
+		this.ep = null;
+		this.eq = null;
+		this.qkInvModPk = null;
+	}
+
+	/**
+	 * Prepares the exponentiation by {@code exponent} mod
+	 * (<i>pq</i>)<sup><i>k</i></sup> for the distinct primes <i>p</i> and
+	 * <i>q</i>, using the factorization to reduce the exponent.
+	 *
+	 * @param exponent      a non-negative exponent
+	 * @param p             an odd prime
+	 * @param q             an odd prime different from <i>p</i>
+	 * @param k             the power of <i>pq</i> which is the modulus;
+	 *                      at least 1
+	 */
+	public CachedExponent(BigInteger exponent, BigInteger p, BigInteger q, int k) {
+		if (exponent.signum() < 0) {
+			throw new IllegalArgumentException("The exponent must be non-negative");
+		}
+		if (k < 1) {
+			throw new IllegalArgumentException("The power k must be at least 1");
+		}
+		if (p.equals(q)) {
+			throw new IllegalArgumentException("p and q must be distinct");
+		}
+
+		this.exponent = exponent;
+		this.pk = p.pow(k);
+		this.qk = q.pow(k);
+		this.modulus = pk.multiply(qk);
+		this.ep = reduce(exponent, p, k);
+		this.eq = reduce(exponent, q, k);
+		this.qkInvModPk = qk.modInverse(pk);
+	}
+
+	/*
+	 *
+	 * Methods
+	 *
+	 */
+
+	/**
+	 * Reduces {@code exponent} modulo the order <i>p</i><sup><i>k</i>-1</sup>(<i>p</i>-1)
+	 * of the units mod <i>p<sup>k</sup></i>.  A reduced exponent less than
+	 * <i>k</i> is increased by the order, so that bases divisible by <i>p</i>
+	 * still give 0 whenever the full exponent does.
+	 *
+	 * @param exponent      the exponent
+	 * @param p             the prime
+	 * @param k             the power of the prime
+	 * @return              the reduced exponent
+	 */
+	private static BigInteger reduce(BigInteger exponent, BigInteger p, int k) {
+		if (exponent.bitLength() <= 31 && exponent.intValue() < k) {
+			return exponent;
+		}
+		BigInteger order = p.pow(k - 1).multiply(p.subtract(BigInteger.ONE));
+		BigInteger reduced = exponent.mod(order);
+		if (reduced.compareTo(BigInteger.valueOf(k)) < 0) {
+			reduced = reduced.add(order);
+		}
+		return reduced;
+	}
+
+	/**
+	 * Returns the exponent.
+	 *
+	 * @return              the exponent <i>e</i>
+	 */
+	public BigInteger getExponent() {
+		return exponent;
+	}
+
+	/**
+	 * Returns the modulus.
+	 *
+	 * @return              the modulus <i>N</i>
+	 */
+	public BigInteger getModulus() {
+		return modulus;
+	}
+
+	/**
+	 * Describes if this exponentiation uses the factorization of the modulus.
+	 *
+	 * @return              'true' if the exponentiation is done with the
+	 *                      Chinese remainder theorem
+	 */
+	public boolean usesFactors() {
+		return pk != null;
+	}
+
+	/**
+	 * Computes {@code base}<sup><i>e</i></sup> mod <i>N</i>.
+	 *
+	 * @param base          the base
+	 * @return              {@code base}<sup><i>e</i></sup> mod <i>N</i>
+	 */
+	public BigInteger pow(BigInteger base) {
+		if (pk == null) {
+			return base.modPow(exponent, modulus);
+		}
+
+		BigInteger mp = base.mod(pk).modPow(ep, pk);
+		BigInteger mq = base.mod(qk).modPow(eq, qk);
+		// Garner: x = mq + qk*((mp-mq)*qk^-1 mod pk)
+		return mp.subtract(mq).multiply(qkInvModPk).mod(pk).multiply(qk).add(mq);
+	}
+}
@@ -0,0 +1,217 @@
+/**
+ * FixedBaseTable.java
+ */
+package paillierp;
+
+import java.math.BigInteger;
+
+/**
+ * A windowed table of powers of a fixed base <i>g</i> mod <i>N</i>, for
+ * raising the same base to many different exponents.  With a window of
+ * <i>w</i> bits the table holds
+ * <i>g</i><sup><i>d</i>&middot;2<sup><i>wj</i></sup></sup> for every row
+ * <i>j</i> and digit 0&lt;<i>d</i>&lt;2<sup><i>w</i></sup>, so that
+ * <i>g<sup>e</sup></i> is the product of one entry per nonzero <i>w</i>-bit
+ * digit of <i>e</i>, without any squarings.  For ciphertexts this is a
+ * homomorphic multiplication of a fixed ciphertext by many constants, e.g. an
+ * encrypted polynomial coefficient evaluated at many points.
+ * <p>
+ * Building the table costs 2<sup><i>w</i></sup>-1 multiplications per row,
+ * and every power about one multiplication per row, so the best window
+ * depends on how often the table is used; see
+ * {@link #bestWindow(int, long)}.  The entries are kept in Montgomery form
+ * and multiplied on the {@link Montgomery} engine.
+ * <p>
+ * A table is immutable once built and may be shared between threads, as
+ * long as every thread multiplies with its own engine.
+ *
+ * @see Montgomery#copy()
+ */
+public class FixedBaseTable {
+
+	/*
+	 *
+	 * Fields
+	 *
+	 */
+
+	/** Largest window size in bits considered by {@link #bestWindow(int, long)}. */
+	public static final int MAX_WINDOW = 10;
+
+	/** The window size <i>w</i> in bits. */
+	private final int window;
+
+	/** The largest number of bits of an exponent. */
+	private final int maxBits;
+
+	/**
+	 * The powers in Montgomery form; {@code rows[j][d-1]} is
+	 * <i>g</i><sup><i>d</i>&middot;2<sup><i>wj</i></sup></sup>.
+	 */
+	private final long[][][] rows;
+
+	/*
+	 *
+	 * Constructors
+	 *
+	 */
+
+	/**
+	 * Builds the table of {@code base} for exponents of up to
+	 * {@code maxBits} bits.
+	 *
+	 * @param base          the base, less than the modulus of the engine
+	 * @param maxBits       the largest number of bits of an exponent
+	 * @param window        the window size <i>w</i> in bits, between 1 and
+	 *                      {@link #MAX_WINDOW}
+	 * @param engine        the engine of the modulus, used by the calling
+	 *                      thread only
+	 */
+	public FixedBaseTable(BigInteger base, int maxBits, int window, Montgomery engine) {
+		if (window < 1 || window > MAX_WINDOW) {
+			throw new IllegalArgumentException("The window must be between 1 and " + MAX_WINDOW + " bits");
+		}
+		if (maxBits < 1) {
+			throw new IllegalArgumentException("The exponents must have at least 1 bit");
+		}
+
+		this.window = window;
+		this.maxBits = maxBits;
+		this.rows = new long[(maxBits + window - 1) / window][(1 << window) - 1][];
+
+		long[] first = engine.newElement();
+		engine.encode(base, first);
+		for (int j = 0; j < rows.length; j++) {
+			long[][] row = rows[j];
+			row[0] = first;
+			for (int d = 1; d < row.length; d++) {
+				row[d] = engine.newElement();
+				engine.multiply(row[d - 1], first, row[d]);
+			}
+			// g^(2^(w(j+1))) = g^((2^w-1)*2^(wj)) * g^(2^(wj))
+			if (j + 1 < rows.length) {
+				first = engine.newElement();
+				engine.multiply(row[row.length - 1], row[0], first);
+			}
+		}
+	}
+
+	/*
+	 *
+	 * Methods
+	 *
+	 */
+
+	/**
+	 * Chooses the window which minimizes the multiplications for building a
+	 * table and using it {@code uses} times.
+	 *
+	 * @param bits          the largest number of bits of an exponent
+	 * @param uses          the expected number of powers computed with the
+	 *                      table
+	 * @return              the best window size in bits
+	 */
+	public static int bestWindow(int bits, long uses) {
+		int best = 1;
+		double bestCost = cost(bits, uses, 1);
+		for (int w = 2; w <= MAX_WINDOW; w++) {
+			double c = cost(bits, uses, w);
+			if (c < bestCost) {
+				best = w;
+				bestCost = c;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Estimates the multiplications for building a table and using it.
+	 *
+	 * @param bits          the largest number of bits of an exponent
+	 * @param uses          the number of powers computed with the table
+	 * @param w             the window size in bits
+	 * @return              the estimated number of multiplications
+	 */
+	public static double cost(int bits, long uses, int w) {
+		int rows = (bits + w - 1) / w;
+		// A random digit is nonzero with probability 1-2^-w
+		return (double) rows * ((1 << w) - 1) + (double) uses * rows * (1 - 1.0 / (1 << w));
+	}
+
+	/**
+	 * Returns the number of limbs held by a table, to bound the memory of
+	 * many tables.
+	 *
+	 * @param bits          the largest number of bits of an exponent
+	 * @param w             the window size in bits
+	 * @param modulus       the modulus
+	 * @return              the number of 32-bit limbs of all entries
+	 */
+	public static long size(int bits, int w, BigInteger modulus) {
+		long rows = (bits + w - 1) / w;
+		return rows * ((1 << w) - 1) * ((modulus.bitLength() + 31) / 32);
+	}
+
+	/**
+	 * Returns the largest number of bits of an exponent.
+	 *
+	 * @return              the number of bits
+	 */
+	public int getMaxBits() {
+		return maxBits;
+	}
+
+	/**
+	 * Returns the window size.
+	 *
+	 * @return              the window size <i>w</i> in bits
+	 */
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Multiplies {@code acc} by <i>g</i><sup>{@code exponent}</sup>, both in
+	 * Montgomery form.
+	 *
+	 * @param acc           accumulator in Montgomery form, overwritten by the
+	 *                      product
+	 * @param exponent      a non-negative exponent of at most
+	 *                      {@link #getMaxBits()} bits
+	 * @param engine        the engine of the modulus, used by the calling
+	 *                      thread only
+	 */
+	public void multiplyPower(long[] acc, BigInteger exponent, Montgomery engine) {
+		if (exponent.signum() < 0 || exponent.bitLength() > maxBits) {
+			throw new IllegalArgumentException("The exponent must be non-negative and have at most " + maxBits + " bits");
+		}
+
+		byte[] bytes = exponent.toByteArray();
+		for (int j = 0; j < rows.length; j++) {
+			int digit = digit(bytes, j * window, window);
+			if (digit != 0) {
+				engine.multiply(acc, rows[j][digit - 1], acc);
+			}
+		}
+	}
+
+	/**
+	 * Extracts bits from the big-endian two's complement encoding of a
+	 * non-negative integer.
+	 *
+	 * @param bytes         the encoding
+	 * @param from          the index of the lowest bit
+	 * @param count         the number of bits, at most 24
+	 * @return              the bits [{@code from}, {@code from+count})
+	 */
+	private static int digit(byte[] bytes, int from, int count) {
+		int first = from >>> 3;
+		int value = 0;
+		// Up to four bytes cover count+7 bits
+		for (int i = 3; i >= 0; i--) {
+			int index = bytes.length - 1 - (first + i);
+			value = (value << 8) | (index >= 0 ? (bytes[index] & 0xFF) : 0);
+		}
+		return (value >>> (from & 7)) & ((1 << count) - 1);
+	}
+}
@@ -0,0 +1,419 @@
+/**
+ * Montgomery.java
+ */
+package paillierp;
+
+import java.math.BigInteger;
+
+/**
+ * Modular arithmetic in Montgomery form on reusable limb buffers.  This is
+ * intended for the long chains of homomorphic additions (products of
+ * ciphertexts mod <i>n</i><sup><i>s</i>+1</sup>) done by the MPSI servers,
+ * where every {@link AbstractPaillier#add(BigInteger, BigInteger)} allocates
+ * intermediate {@link BigInteger}s and performs a full division.
+ * <p>
+ * A number <i>x</i> mod <i>N</i> is kept as an array of 32-bit limbs (stored
+ * in a {@code long[]}, least significant limb first) holding its Montgomery
+ * form <i>xR</i> mod <i>N</i>, where <i>R</i>=2<sup>32<i>k</i></sup> and
+ * <i>k</i> is the number of limbs of <i>N</i>.  Buffers are created once with
+ * {@link #newElement()} and then overwritten by {@link #multiply},
+ * {@link #accumulate}, {@link #square} and {@link #pow}, none of which
+ * allocate.  Conversion from and to {@link BigInteger} only happens in
+ * {@link #encode(BigInteger, long[])} and {@link #decode(long[])}.
+ * <p>
+ * When values are only multiplied together, the conversions can be skipped:
+ * multiplying <i>F</i> values loaded with {@link #load(BigInteger, long[])}
+ * gives their product times <i>R</i><sup>-(<i>F</i>-1)</sup>, and one more
+ * multiplication by {@link #powerOfR(int, long[]) R<sup>F</sup>} gives the
+ * plain product, which {@link #toBigInteger(long[])} returns.
+ * <p>
+ * An instance keeps scratch space and is <b>not</b> thread-safe.  Threads
+ * working on the same modulus each use their own {@link #copy()}, which shares
+ * the precomputed constants.
+ *
+ * @see AbstractPaillier#add(BigInteger, BigInteger)
+ */
+public class Montgomery {
+
+	/*
+	 *
+	 * Fields
+	 *
+	 */
+
+	/** Mask for the lower 32 bits of a long. */
+	private static final long MASK = 0xFFFFFFFFL;
+
+	/** Window size in bits used by {@link #pow}. */
+	private static final int WINDOW = 4;
+
+	/** The modulus <i>N</i>. */
+	private BigInteger modulus;
+
+	/** Number of 32-bit limbs of <i>N</i>. */
+	private int len;
+
+	/** Limbs of <i>N</i>. */
+	private long[] mod;
+
+	/** -<i>N</i><sup>-1</sup> mod 2<sup>32</sup>. */
+	private long modInv;
+
+	/** <i>R</i><sup>2</sup> mod <i>N</i>, used to enter Montgomery form. */
+	private long[] rSquare;
+
+	/** <i>R</i> mod <i>N</i>, the Montgomery form of 1. */
+	private long[] one;
+
+	/** Plain 1, used to leave Montgomery form. */
+	private long[] plainOne;
+
+	/** Scratch space for a product; {@code len}+2 limbs. */
+	private long[] t;
+
+	/** Precomputed powers for the windowed exponentiation. */
+	private long[][] table;
+
+	/*
+	 *
+	 * Constructors
+	 *
+	 */
+
+	/**
+	 * Creates an engine for the odd modulus {@code modulus}, such as
+	 * <i>n</i><sup><i>s</i>+1</sup>.
+	 *
+	 * @param modulus       an odd modulus greater than 1
+	 */
+	public Montgomery(BigInteger modulus) {
+		if (modulus.signum() <= 0 || !modulus.testBit(0) || modulus.equals(BigInteger.ONE)) {
+			throw new IllegalArgumentException("The modulus must be odd and greater than 1");
+		}
+
+		this.modulus = modulus;
+		this.len = (modulus.bitLength() + 31) / 32;
+		this.mod = new long[len];
+		toLimbs(modulus, mod);
+
+		// Newton iteration for N^-1 mod 2^32; each step doubles the correct bits
+		long inv = mod[0];
+		for (int i = 0; i < 5; i++) {
+			inv = (inv * (2 - mod[0] * inv)) & MASK;
+		}
+		this.modInv = (-inv) & MASK;
+
+		BigInteger r = BigInteger.ONE.shiftLeft(32 * len);
+		this.rSquare = new long[len];
+		toLimbs(r.multiply(r).mod(modulus), rSquare);
+		this.one = new long[len];
+		toLimbs(r.mod(modulus), one);
+		this.plainOne = new long[len];
+		plainOne[0] = 1;
+
+		allocateScratch();
+	}
+
+	/**
+	 * Creates an engine sharing the constants of {@code other}, with its own
+	 * scratch space.
+	 *
+	 * @param other         engine to share the constants with
+	 */
+	private Montgomery(Montgomery other) {
+		this.modulus = other.modulus;
+		this.len = other.len;
+		this.mod = other.mod;
+		this.modInv = other.modInv;
+		this.rSquare = other.rSquare;
+		this.one = other.one;
+		this.plainOne = other.plainOne;
+
+		allocateScratch();
+	}
+
+	/*
+	 *
+	 * Methods
+	 *
+	 */
+
+	/**
+	 * Allocates the scratch space of this instance.
+	 */
+	private void allocateScratch() {
+		this.t = new long[len + 2];
+		this.table = new long[1 << WINDOW][len];
+	}
+
+	/**
+	 * Returns an engine for the same modulus which can be used by another
+	 * thread.  The precomputed constants are shared.
+	 *
+	 * @return              a new engine for the same modulus
+	 */
+	public Montgomery copy() {
+		return new Montgomery(this);
+	}
+
+	/**
+	 * Returns the modulus of this engine.
+	 *
+	 * @return              the modulus <i>N</i>
+	 */
+	public BigInteger getModulus() {
+		return modulus;
+	}
+
+	/**
+	 * Allocates a buffer able to hold one residue mod <i>N</i>.
+	 *
+	 * @return              a buffer of the right number of limbs, set to 0
+	 */
+	public long[] newElement() {
+		return new long[len];
+	}
+
+	/**
+	 * Converts {@code x} into Montgomery form.
+	 *
+	 * @param x             a non-negative integer less than <i>N</i>
+	 * @param out           buffer receiving <code>x</code><i>R</i> mod <i>N</i>
+	 */
+	public void encode(BigInteger x, long[] out) {
+		load(x, out);
+		multiply(out, rSquare, out);
+	}
+
+	/**
+	 * Converts a value in Montgomery form back into a {@link BigInteger}.
+	 *
+	 * @param a             a value <i>xR</i> mod <i>N</i>
+	 * @return              the residue <i>x</i>
+	 */
+	public BigInteger decode(long[] a) {
+		multiply(a, plainOne, table[0]);
+		return toBigInteger(table[0]);
+	}
+
+	/**
+	 * Copies the limbs of {@code x} into {@code out} without converting it
+	 * into Montgomery form.
+	 *
+	 * @param x             a non-negative integer less than <i>N</i>
+	 * @param out           buffer receiving the limbs of {@code x}
+	 */
+	public void load(BigInteger x, long[] out) {
+		if (x.signum() < 0 || x.compareTo(modulus) >= 0) {
+			throw new IllegalArgumentException("x must be non-negative and less than the modulus");
+		}
+		toLimbs(x, out);
+	}
+
+	/**
+	 * Returns the integer whose limbs are given in {@code a}.
+	 *
+	 * @param a             limbs, least significant first
+	 * @return              the integer value of {@code a}
+	 */
+	public BigInteger toBigInteger(long[] a) {
+		byte[] b = new byte[4 * len + 1];
+		for (int i = 0; i < len; i++) {
+			int offset = b.length - 4 * (i + 1);
+			long limb = a[i];
+			b[offset] = (byte) (limb >>> 24);
+			b[offset + 1] = (byte) (limb >>> 16);
+			b[offset + 2] = (byte) (limb >>> 8);
+			b[offset + 3] = (byte) limb;
+		}
+		return new BigInteger(b);
+	}
+
+	/**
+	 * Writes <i>R</i><sup>{@code e}</sup> mod <i>N</i> into {@code out}.
+	 * Multiplying the product of {@code e} loaded values by this constant
+	 * removes the factors <i>R</i><sup>-1</sup> introduced by the Montgomery
+	 * multiplications.
+	 *
+	 * @param e             the exponent; may be negative
+	 * @param out           buffer receiving <i>R</i><sup><code>e</code></sup>
+	 *                      mod <i>N</i>
+	 */
+	public void powerOfR(int e, long[] out) {
+		BigInteger r = BigInteger.ONE.shiftLeft(32 * len);
+		toLimbs(r.modPow(BigInteger.valueOf(e), modulus), out);
+	}
+
+	/**
+	 * Sets {@code out} to the Montgomery form of 1.
+	 *
+	 * @param out           buffer receiving <i>R</i> mod <i>N</i>
+	 */
+	public void setOne(long[] out) {
+		System.arraycopy(one, 0, out, 0, len);
+	}
+
+	/**
+	 * Copies {@code a} into {@code out}.
+	 *
+	 * @param a             source buffer
+	 * @param out           destination buffer
+	 */
+	public void copy(long[] a, long[] out) {
+		System.arraycopy(a, 0, out, 0, len);
+	}
+
+	/**
+	 * Computes the Montgomery product
+	 * {@code a}&middot;{@code b}&middot;<i>R</i><sup>-1</sup> mod <i>N</i>
+	 * using the CIOS method.  {@code out} may be the same buffer as
+	 * {@code a} or {@code b}.
+	 *
+	 * @param a             first factor, less than <i>N</i>
+	 * @param b             second factor, less than <i>N</i>
+	 * @param out           buffer receiving the product
+	 */
+	public void multiply(long[] a, long[] b, long[] out) {
+		long[] t = this.t;
+		long[] mod = this.mod;
+		int len = this.len;
+
+		for (int j = 0; j < len + 2; j++) {
+			t[j] = 0;
+		}
+
+		for (int i = 0; i < len; i++) {
+			// t += a * b[i]
+			long bi = b[i];
+			long carry = 0;
+			for (int j = 0; j < len; j++) {
+				long sum = t[j] + a[j] * bi + carry;
+				t[j] = sum & MASK;
+				carry = sum >>> 32;
+			}
+			long sum = t[len] + carry;
+			t[len] = sum & MASK;
+			t[len + 1] = sum >>> 32;
+
+			// t = (t + m*N) / 2^32, where m makes the lowest limb vanish
+			long m = (t[0] * modInv) & MASK;
+			sum = t[0] + m * mod[0];
+			carry = sum >>> 32;
+			for (int j = 1; j < len; j++) {
+				sum = t[j] + m * mod[j] + carry;
+				t[j - 1] = sum & MASK;
+				carry = sum >>> 32;
+			}
+			sum = t[len] + carry;
+			t[len - 1] = sum & MASK;
+			t[len] = t[len + 1] + (sum >>> 32);
+		}
+
+		// The result is less than 2N; subtract N once if needed
+		if (t[len] != 0 || !lessThanModulus(t)) {
+			long borrow = 0;
+			for (int j = 0; j < len; j++) {
+				long diff = t[j] - mod[j] - borrow;
+				out[j] = diff & MASK;
+				borrow = (diff >>> 63);
+			}
+		} else {
+			System.arraycopy(t, 0, out, 0, len);
+		}
+	}
+
+	/**
+	 * Multiplies {@code acc} by {@code x} in place.  For ciphertexts this is
+	 * a homomorphic addition.
+	 *
+	 * @param acc           accumulator, overwritten by the product
+	 * @param x             factor
+	 */
+	public void accumulate(long[] acc, long[] x) {
+		multiply(acc, x, acc);
+	}
+
+	/**
+	 * Computes the Montgomery square of {@code a}.
+	 *
+	 * @param a             value to square
+	 * @param out           buffer receiving the square; may be {@code a}
+	 */
+	public void square(long[] a, long[] out) {
+		multiply(a, a, out);
+	}
+
+	/**
+	 * Raises the Montgomery form value {@code base} to the power
+	 * {@code exponent} with a fixed 4-bit window.  For ciphertexts this is a
+	 * homomorphic multiplication by a constant.
+	 *
+	 * @param base          value in Montgomery form
+	 * @param exponent      non-negative exponent
+	 * @param out           buffer receiving the power in Montgomery form;
+	 *                      may be {@code base}
+	 */
+	public void pow(long[] base, BigInteger exponent, long[] out) {
+		if (exponent.signum() < 0) {
+			throw new IllegalArgumentException("The exponent must be non-negative");
+		}
+
+		long[][] table = this.table;
+		System.arraycopy(one, 0, table[0], 0, len);
+		System.arraycopy(base, 0, table[1], 0, len);
+		for (int i = 2; i < table.length; i++) {
+			multiply(table[i - 1], base, table[i]);
+		}
+
+		setOne(out);
+		int bits = exponent.bitLength();
+		int top = ((bits + WINDOW - 1) / WINDOW) * WINDOW;
+		for (int i = top - WINDOW; i >= 0; i -= WINDOW) {
+			for (int j = 0; j < WINDOW; j++) {
+				multiply(out, out, out);
+			}
+			int digit = 0;
+			for (int j = WINDOW - 1; j >= 0; j--) {
+				digit = (digit << 1) | (exponent.testBit(i + j) ? 1 : 0);
+			}
+			if (digit != 0) {
+				multiply(out, table[digit], out);
+			}
+		}
+	}
+
+	/**
+	 * Checks if the lower {@code len} limbs of {@code a} are less than
+	 * <i>N</i>.
+	 *
+	 * @param a             limbs to compare
+	 * @return              'true' iff {@code a} &lt; <i>N</i>
+	 */
+	private boolean lessThanModulus(long[] a) {
+		for (int j = len - 1; j >= 0; j--) {
+			if (a[j] != mod[j]) {
+				return a[j] < mod[j];
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Writes the limbs of the non-negative {@code x} into {@code out}.
+	 *
+	 * @param x             a non-negative integer of at most
+	 *                      32&middot;{@code out.length} bits
+	 * @param out           buffer receiving the limbs
+	 */
+	private static void toLimbs(BigInteger x, long[] out) {
+		byte[] b = x.toByteArray();
+		for (int i = 0; i < out.length; i++) {
+			long limb = 0;
+			for (int j = 3; j >= 0; j--) {
+				int index = b.length - 1 - (4 * i + j);
+				limb = (limb << 8) | (index >= 0 ? (b[index] & 0xFF) : 0);
+			}
+			out[i] = limb;
+		}
+	}
+}
@@ -0,0 +1,322 @@
+/**
+ * MultiExponentiation.java
+ */
+package paillierp;
+
+import java.math.BigInteger;
+
+/**
+ * Simultaneous multi-exponentiation
+ * &prod;<sub><i>i</i></sub> <i>c<sub>i</sub></i><sup><i>a<sub>i</sub></i></sup>
+ * mod <i>N</i>.  For ciphertexts this is the homomorphic linear combination
+ * <i>E</i>(&Sigma;<sub><i>i</i></sub> <i>a<sub>i</sub>m<sub>i</sub></i>).
+ * <p>
+ * Computing every power on its own costs one squaring per exponent bit and
+ * base.  The two methods here share the squarings between all bases:
+ * <ul>
+ *   <li><b>Straus</b> (interleaved fixed windows) keeps a table of the first
+ *       2<sup><i>w</i></sup> powers of every base and needs one squaring per
+ *       exponent bit plus one multiplication per base and window;
+ *   <li><b>Pippenger</b> (buckets) sorts the bases of every window into
+ *       2<sup><i>c</i></sup> buckets by their digit and needs one
+ *       multiplication per base and window, plus 2<sup><i>c</i>+1</sup> per
+ *       window to sum the buckets.  For many bases it allows much wider
+ *       windows than Straus.
+ * </ul>
+ * Both run on the {@link Montgomery} engine.  A multiplication there is
+ * slower than a step of {@link BigInteger#modPow(BigInteger, BigInteger)},
+ * which the JVM implements with intrinsics, so sharing the squarings only pays
+ * off when it saves enough of them.
+ * {@link #linearCombination(BigInteger[], BigInteger[], BigInteger)}
+ * estimates the cost of the three approaches and takes the cheapest;
+ * small batches and short exponents stay with one {@code modPow} per term.
+ * <p>
+ * Negative exponents are handled by inverting the base.
+ *
+ * @see AbstractPaillier#linearCombination(BigInteger[], BigInteger[])
+ */
+public class MultiExponentiation {
+
+	/*
+	 *
+	 * Fields
+	 *
+	 */
+
+	/**
+	 * Estimated cost of a multiplication on the {@link Montgomery} engine
+	 * relative to a squaring or multiplication inside
+	 * {@link BigInteger#modPow(BigInteger, BigInteger)}.
+	 */
+	private static final double ENGINE_COST = 3.5;
+
+	/** Window size in bits used by Straus' method. */
+	private static final int STRAUS_WINDOW = 4;
+
+	/** Largest window size in bits tried for Pippenger's method. */
+	private static final int MAX_BUCKET_BITS = 16;
+
+	/*
+	 *
+	 * Methods
+	 *
+	 */
+
+	/**
+	 * Computes &prod;<sub><i>i</i></sub>
+	 * {@code bases[i]}<sup>{@code exponents[i]}</sup> mod {@code modulus},
+	 * choosing between one {@code modPow} per term, Straus' method and
+	 * Pippenger's method by their estimated cost.
+	 *
+	 * @param bases         the bases; each must be invertible mod
+	 *                      {@code modulus} if its exponent is negative
+	 * @param exponents     the exponents, of the same length as
+	 *                      {@code bases}; may be negative
+	 * @param modulus       an odd modulus, such as <i>n</i><sup><i>s</i>+1</sup>
+	 * @return              the product of the powers mod {@code modulus}
+	 */
+	public static BigInteger linearCombination(BigInteger[] bases, BigInteger[] exponents, BigInteger modulus) {
+		if (bases.length != exponents.length) {
+			throw new IllegalArgumentException("There must be one exponent for every base");
+		}
+		if (!modulus.testBit(0)) {
+			throw new IllegalArgumentException("The modulus must be odd");
+		}
+
+		// Make all exponents non-negative and drop the terms which are 1
+		BigInteger[] b = new BigInteger[bases.length];
+		BigInteger[] e = new BigInteger[bases.length];
+		int k = 0;
+		int maxBits = 0;
+		long totalBits = 0;
+		for (int i = 0; i < bases.length; i++) {
+			if (exponents[i].signum() == 0) continue;
+			b[k] = bases[i].mod(modulus);
+			e[k] = exponents[i];
+			if (e[k].signum() < 0) {
+				b[k] = b[k].modInverse(modulus);
+				e[k] = e[k].negate();
+			}
+			maxBits = Math.max(maxBits, e[k].bitLength());
+			totalBits += e[k].bitLength();
+			k++;
+		}
+
+		if (k == 0) return BigInteger.ONE.mod(modulus);
+
+		// modPow: a squaring per bit, and a multiplication for every few bits
+		double direct = 1.2 * totalBits;
+		double straus = ENGINE_COST * strausCost(k, maxBits);
+		int c = bestBucketBits(k, maxBits);
+		double pippenger = ENGINE_COST * pippengerCost(k, maxBits, c);
+
+		if (direct <= straus && direct <= pippenger) {
+			return direct(b, e, k, modulus);
+		} else if (straus <= pippenger) {
+			return straus(b, e, k, maxBits, new Montgomery(modulus));
+		} else {
+			return pippenger(b, e, k, maxBits, c, new Montgomery(modulus));
+		}
+	}
+
+	/**
+	 * Computes the product with one {@code modPow} per term.
+	 *
+	 * @param b             the bases
+	 * @param e             the non-negative exponents
+	 * @param k             the number of terms to use
+	 * @param modulus       the modulus
+	 * @return              the product of the powers mod {@code modulus}
+	 */
+	static BigInteger direct(BigInteger[] b, BigInteger[] e, int k, BigInteger modulus) {
+		BigInteger result = BigInteger.ONE;
+		for (int i = 0; i < k; i++) {
+			result = result.multiply(b[i].modPow(e[i], modulus)).mod(modulus);
+		}
+		return result;
+	}
+
+	/**
+	 * Computes the product with Straus' method: a table of the powers
+	 * 0..2<sup><i>w</i></sup>-1 of every base, and a single chain of
+	 * squarings where each window multiplies in one table entry per base.
+	 *
+	 * @param b             the bases, less than the modulus
+	 * @param e             the non-negative exponents
+	 * @param k             the number of terms to use
+	 * @param maxBits       the length of the longest exponent
+	 * @param engine        an engine for the modulus
+	 * @return              the product of the powers
+	 */
+	static BigInteger straus(BigInteger[] b, BigInteger[] e, int k, int maxBits, Montgomery engine) {
+		int size = 1 << STRAUS_WINDOW;
+		long[][][] table = new long[k][size][];
+		for (int i = 0; i < k; i++) {
+			table[i][1] = engine.newElement();
+			engine.encode(b[i], table[i][1]);
+			for (int j = 2; j < size; j++) {
+				table[i][j] = engine.newElement();
+				engine.multiply(table[i][j-1], table[i][1], table[i][j]);
+			}
+		}
+
+		long[] acc = engine.newElement();
+		engine.setOne(acc);
+		int top = ((maxBits + STRAUS_WINDOW - 1) / STRAUS_WINDOW) * STRAUS_WINDOW;
+		for (int bit = top - STRAUS_WINDOW; bit >= 0; bit -= STRAUS_WINDOW) {
+			for (int j = 0; j < STRAUS_WINDOW; j++) {
+				engine.square(acc, acc);
+			}
+			for (int i = 0; i < k; i++) {
+				int digit = digit(e[i], bit, STRAUS_WINDOW);
+				if (digit != 0) {
+					engine.accumulate(acc, table[i][digit]);
+				}
+			}
+		}
+
+		return engine.decode(acc);
+	}
+
+	/**
+	 * Computes the product with Pippenger's bucket method.  For every window
+	 * of {@code c} bits, starting from the top, each base is multiplied into
+	 * the bucket of its digit, and the buckets are combined into
+	 * &prod;<sub><i>d</i></sub> <i>B<sub>d</sub><sup>d</sup></i> with
+	 * running products.
+	 *
+	 * @param b             the bases, less than the modulus
+	 * @param e             the non-negative exponents
+	 * @param k             the number of terms to use
+	 * @param maxBits       the length of the longest exponent
+	 * @param c             the window size in bits
+	 * @param engine        an engine for the modulus
+	 * @return              the product of the powers
+	 */
+	static BigInteger pippenger(BigInteger[] b, BigInteger[] e, int k, int maxBits, int c, Montgomery engine) {
+		long[][] base = new long[k][];
+		for (int i = 0; i < k; i++) {
+			base[i] = engine.newElement();
+			engine.encode(b[i], base[i]);
+		}
+
+		int size = 1 << c;
+		long[][] bucket = new long[size][];
+		boolean[] used = new boolean[size];
+		for (int d = 1; d < size; d++) {
+			bucket[d] = engine.newElement();
+		}
+		long[] running = engine.newElement();
+		long[] window = engine.newElement();
+		long[] acc = engine.newElement();
+		engine.setOne(acc);
+
+		int top = ((maxBits + c - 1) / c) * c;
+		for (int bit = top - c; bit >= 0; bit -= c) {
+			for (int j = 0; j < c; j++) {
+				engine.square(acc, acc);
+			}
+
+			for (int d = 1; d < size; d++) {
+				used[d] = false;
+			}
+			for (int i = 0; i < k; i++) {
+				int digit = digit(e[i], bit, c);
+				if (digit == 0) continue;
+				if (used[digit]) {
+					engine.accumulate(bucket[digit], base[i]);
+				} else {
+					engine.copy(base[i], bucket[digit]);
+					used[digit] = true;
+				}
+			}
+
+			// running = B_{size-1} * ... * B_d, window = prod of the running values
+			boolean runningSet = false;
+			boolean windowSet = false;
+			for (int d = size - 1; d >= 1; d--) {
+				if (used[d]) {
+					if (runningSet) {
+						engine.accumulate(running, bucket[d]);
+					} else {
+						engine.copy(bucket[d], running);
+						runningSet = true;
+					}
+				}
+				if (runningSet) {
+					if (windowSet) {
+						engine.accumulate(window, running);
+					} else {
+						engine.copy(running, window);
+						windowSet = true;
+					}
+				}
+			}
+			if (windowSet) {
+				engine.accumulate(acc, window);
+			}
+		}
+
+		return engine.decode(acc);
+	}
+
+	/**
+	 * Returns the {@code width} bits of {@code e} starting at bit
+	 * {@code from}.
+	 *
+	 * @param e             a non-negative integer
+	 * @param from          the lowest bit of the digit
+	 * @param width         the number of bits
+	 * @return              the digit
+	 */
+	private static int digit(BigInteger e, int from, int width) {
+		int digit = 0;
+		for (int j = width - 1; j >= 0; j--) {
+			digit = (digit << 1) | (e.testBit(from + j) ? 1 : 0);
+		}
+		return digit;
+	}
+
+	/**
+	 * Estimates the number of engine multiplications of Straus' method.
+	 *
+	 * @param k             the number of bases
+	 * @param maxBits       the length of the longest exponent
+	 * @return              the estimated number of multiplications
+	 */
+	private static double strausCost(int k, int maxBits) {
+		int windows = (maxBits + STRAUS_WINDOW - 1) / STRAUS_WINDOW;
+		return (double)k * ((1 << STRAUS_WINDOW) - 1) + (double)windows * STRAUS_WINDOW
+				+ (double)k * windows * (1 - 1.0 / (1 << STRAUS_WINDOW));
+	}
+
+	/**
+	 * Estimates the number of engine multiplications of Pippenger's method.
+	 *
+	 * @param k             the number of bases
+	 * @param maxBits       the length of the longest exponent
+	 * @param c             the window size in bits
+	 * @return              the estimated number of multiplications
+	 */
+	private static double pippengerCost(int k, int maxBits, int c) {
+		int windows = (maxBits + c - 1) / c;
+		return (double)k + (double)windows * (c + k + 2.0 * (1 << c));
+	}
+
+	/**
+	 * Returns the window size minimizing the cost of Pippenger's method.
+	 *
+	 * @param k             the number of bases
+	 * @param maxBits       the length of the longest exponent
+	 * @return              the best window size in bits
+	 */
+	private static int bestBucketBits(int k, int maxBits) {
+		int best = 1;
+		for (int c = 2; c <= MAX_BUCKET_BITS; c++) {
+			if (pippengerCost(k, maxBits, c) < pippengerCost(k, maxBits, best)) {
+				best = c;
+			}
+		}
+		return best;
+	}
+}
@@ -9,10 +9,11 @@ import paillierp.key.*;
 
 /**
  * A simple implementation of the generalized Paillier encryption scheme
- * <i>CS</i><sub>1</sub>.  This is based on the gernarlization given in
+ * <i>CS</i><sub><i>s</i></sub>.  This is based on the gernarlization given in
  * <i>Generalization of Paillier's Public-Key System with Applications to
- * Electronic Voting</i> by Damg&aring;rd et al. with the parameter <b><i>s</i> fixed
- * at 1.</b>
+ * Electronic Voting</i> by Damg&aring;rd et al. with the parameter <i>s</i>
+ * taken from the key ({@link paillierp.key.PaillierKey#getS()}); keys created
+ * without a degree use <i>s</i>=1.
  * <p>
  * With most of the methods already defined in {@link AbstractPaillier}, this
  * class provides the essential methods of encryption and decryption in the
@@ -29,15 +30,15 @@ import paillierp.key.*;
  * size of the encryption independently of the size of the public key.
  * Whereas Paillier's original scheme created plaintexts less than <i>n</i>,
  * this generalized version allows plaintexts to be less than
- * <i>n<sup>s</sup></i>.  This implementation is of Paillier's original scheme
- * as expressed in the generalized version of Damg&aring;rd et al. (i.e.
- * <i>s</i> fixed to 1).
+ * <i>n<sup>s</sup></i>.  With <i>s</i>=1 this implementation is Paillier's
+ * original scheme as expressed in the generalized version of Damg&aring;rd et
+ * al.
  * <p>
  * <b>The Math:</b> The simplified Paillier encryption scheme takes a
  * {@link paillierp.key.PaillierKey PaillierKey} <i>n</i> to encrypt a plaintext
  *  <i>i</i> in <i>Z<sub>n<sup>s</sup></sub></i> by choosing a random
  * <i>r</i>&isin;<i>Z<sub>n</sub></i><sup>*</sup> by simply computing
- * (<i>n</i>+1)<i><sup>i</sup>r<sup>n</sup></i> mod <i>n</i><sup><i>s</i>+1</sup>.
+ * (<i>n</i>+1)<i><sup>i</sup>r<sup>n<sup>s</sup></sup></i> mod <i>n</i><sup><i>s</i>+1</sup>.
  * If given a {@link paillierp.key.PaillierPrivateKey PaillierPrivateKey}
  * <i>d</i>, raising a ciphertext <i>c</i> to the power <i>d</i> gives a value
  * (1+<i>n</i>)<sup><i>id</i></sup>, and by using a method in the paper, can
@@ -175,7 +176,8 @@ public class Paillier extends AbstractPaillier{
 	}
 
 	/**
-	 * Decrypts the given ciphertext.
+	 * Decrypts the given ciphertext.  If the private key holds the factors
+	 * of <i>n</i>, the decryption is done by the Chinese Remainder Theorem.
 	 * 
 	 * @param c     Ciphertext as BigInteger c
 	 * @return      Decrypted value D(c) as BigInteger
@@ -184,18 +186,20 @@ public class Paillier extends AbstractPaillier{
 	{
 		//Check whether everything is set for doing decryption
 		if(decryptMode==false) throw new IllegalStateException(this.notReadyForDecryption);
-		if(!(key.inModNSPlusOne(c))) throw new IllegalArgumentException("c must be less than n^2");
+		if(!(key.inModNSPlusOne(c))) throw new IllegalArgumentException("c must be less than n^(s+1)");
+
+		// Work mod p^2 and q^2 separately when the factors of n are known
+		if(deckey.hasFactors() && deckey.getS() == 1) return deckey.decryptCRT(c);
 
 		BigInteger c1=null;
 
-		//first we calculate c^d mod n^2		
+		//first we calculate c^d mod n^(s+1)
 		c1= c.modPow(deckey.getD(),deckey.getNSPlusOne());
 
-		//after we calculate c1=c^d mod n^2 = (1+n)^(m*d mod n)
-		// we now find (c1-1)/n=m*d mod n
-		//therefore m= d^-1*(c1-1)/n mod n
-		// TODO: Is this true?
-		return (deckey.getDInvs().multiply((c1.subtract(BigInteger.ONE)).divide(deckey.getN()))).mod(deckey.getN());
+		//after we calculate c1=c^d mod n^(s+1) = (1+n)^(m*d mod n^s)
+		// we now extract m*d mod n^s (for s=1 this is (c1-1)/n)
+		//therefore m= d^-1*(m*d) mod n^s
+		return (deckey.getDInvs().multiply(discreteLogOfG(c1, deckey.getN(), deckey.getS()))).mod(deckey.getNS());
 	}
 
 	/*
@@ -353,5 +357,200 @@ public class Paillier extends AbstractPaillier{
 				+ ((stop-start)/numberOfTests));
 
 	}
-}
 
+	/**
+	 * Compares the running time of encryption using
+	 * {@link AbstractPaillier#powerOfG(BigInteger, BigInteger, BigInteger, BigInteger)}
+	 * against computing (<i>n</i>+1)<sup><i>m</i></sup> with a full
+	 * exponentiation mod <i>n</i><sup>2</sup>.  Both bit plaintexts (as in the
+	 * encrypted Bloom filters) and full size plaintexts (as in the encrypted
+	 * polynomial coefficients) are measured.
+	 */
+	public static void testEncryptionSpeed()
+	{
+		// Number of encryptions per measurement
+		int numberOfTests=2000;
+		//Length of the p, note that n=p.q
+		int lengthp=256;
+
+		Random rd=new Random();
+		PaillierPrivateKey key=KeyGen.PaillierKey(lengthp,122333356);
+		BigInteger n=key.getN();
+		BigInteger ns=key.getNS();
+		BigInteger nSPlusOne=key.getNSPlusOne();
+
+		BigInteger[] bits=new BigInteger[numberOfTests];
+		BigInteger[] full=new BigInteger[numberOfTests];
+		BigInteger[] r=new BigInteger[numberOfTests];
+		for(int i=0; i<numberOfTests; i++)
+		{
+			bits[i]=BigInteger.valueOf(rd.nextInt(2));
+			full[i]=key.getRandomModN();
+			r[i]=key.getRandomModNStar();
+		}
+
+		BigInteger[][] messages={bits, full};
+		String[] names={"bit plaintexts", "full plaintexts"};
+		for(int t=0; t<messages.length; t++)
+		{
+			BigInteger[] m=messages[t];
+
+			long start=System.nanoTime();
+			for(int i=0; i<numberOfTests; i++)
+			{
+				n.add(BigInteger.ONE).modPow(m[i], nSPlusOne).multiply(r[i].modPow(ns, nSPlusOne)).mod(nSPlusOne);
+			}
+			long modPowTime=System.nanoTime()-start;
+
+			start=System.nanoTime();
+			for(int i=0; i<numberOfTests; i++)
+			{
+				encrypt(m[i], r[i], n, ns, nSPlusOne);
+			}
+			long fastTime=System.nanoTime()-start;
+
+			for(int i=0; i<numberOfTests; i++)
+			{
+				BigInteger expected=n.add(BigInteger.ONE).modPow(m[i], nSPlusOne).multiply(r[i].modPow(ns, nSPlusOne)).mod(nSPlusOne);
+				if(!expected.equals(encrypt(m[i], r[i], n, ns, nSPlusOne)))
+					System.out.println("PROBLEM with "+m[i]);
+			}
+
+			System.out.println("Encryption of "+numberOfTests+" "+names[t]+":");
+			System.out.println("  (n+1)^m by exponentiation: "+(modPowTime/1000)/numberOfTests+" us per encryption");
+			System.out.println("  (n+1)^m = 1+mn:            "+(fastTime/1000)/numberOfTests+" us per encryption");
+			System.out.println("  speedup:                   "+String.format("%.2f", (double)modPowTime/fastTime));
+		}
+	}
+
+	/**
+	 * Measures {@link #linearCombination(BigInteger[], BigInteger[])} against
+	 * one exponentiation per term for batches of ciphertexts of different
+	 * sizes, both with short scalars (as the Lagrange coefficients used when
+	 * combining shares) and with full size scalars.  The chosen method falls
+	 * back to one exponentiation per term when it does not expect to win.
+	 */
+	public static void testLinearCombinationSpeed()
+	{
+		//Length of the p, note that n=p.q
+		int lengthp=256;
+		int[] batchSizes={2, 8, 64, 512};
+		int[] scalarBits={16, 512};
+
+		Random rd=new Random();
+		PaillierPrivateKey key=KeyGen.PaillierKey(lengthp,122333356);
+		Paillier esystem=new Paillier(key);
+		BigInteger nSPlusOne=key.getNSPlusOne();
+
+		for(int b=0; b<scalarBits.length; b++)
+		{
+			for(int s=0; s<batchSizes.length; s++)
+			{
+				int k=batchSizes[s];
+				BigInteger[] c=new BigInteger[k];
+				BigInteger[] a=new BigInteger[k];
+				for(int i=0; i<k; i++)
+				{
+					c[i]=esystem.encrypt(key.getRandomModN());
+					a[i]=new BigInteger(scalarBits[b], rd);
+				}
+				int repetitions=Math.max(1, 256/k);
+
+				long start=System.nanoTime();
+				BigInteger expected=null;
+				for(int j=0; j<repetitions; j++)
+				{
+					expected=BigInteger.ONE;
+					for(int i=0; i<k; i++)
+						expected=expected.multiply(c[i].modPow(a[i], nSPlusOne)).mod(nSPlusOne);
+				}
+				long modPowTime=System.nanoTime()-start;
+
+				start=System.nanoTime();
+				BigInteger result=null;
+				for(int j=0; j<repetitions; j++)
+				{
+					result=esystem.linearCombination(c, a);
+				}
+				long combinationTime=System.nanoTime()-start;
+
+				if(!expected.equals(result))
+					System.out.println("PROBLEM with the linear combination of "+k+" ciphertexts");
+
+				System.out.println(k+" ciphertexts, "+scalarBits[b]+" bit scalars:");
+				System.out.println("  one modPow per term:  "+(modPowTime/1000)/repetitions+" us");
+				System.out.println("  linearCombination:    "+(combinationTime/1000)/repetitions+" us");
+				System.out.println("  speedup:              "+String.format("%.2f", (double)modPowTime/combinationTime));
+			}
+		}
+	}
+
+	/**
+	 * Measures the exponentiations by the cached exponents of a key: the
+	 * randomizer <i>r</i><sup><i>n</i></sup> of every encryption, with and
+	 * without the factors of <i>n</i>, and the partial decryption
+	 * <i>c</i><sup>2&Delta;<i>s<sub>i</sub></i></sup>, against a plain
+	 * exponentiation recomputing the exponent every time.  Without the
+	 * factors no speedup beyond the saved exponent arithmetic is expected.
+	 */
+	public static void testCachedExponentSpeed()
+	{
+		// Number of exponentiations per measurement
+		int numberOfTests=500;
+		//Length of the p, note that n=p.q
+		int lengthp=256;
+
+		PaillierPrivateKey key=KeyGen.PaillierKey(lengthp,122333356);
+		BigInteger nSPlusOne=key.getNSPlusOne();
+		BigInteger[] r=new BigInteger[numberOfTests];
+		for(int i=0; i<numberOfTests; i++)
+			r[i]=key.getRandomModNStar();
+
+		CachedExponent[] exponents={key.getPublicKey().getEncryptionExponent(), key.getEncryptionExponent()};
+		String[] names={"public key", "private key"};
+		for(int t=0; t<exponents.length; t++)
+		{
+			long start=System.nanoTime();
+			for(int i=0; i<numberOfTests; i++)
+				r[i].modPow(key.getN().pow(key.getS()), nSPlusOne);
+			long modPowTime=System.nanoTime()-start;
+
+			start=System.nanoTime();
+			for(int i=0; i<numberOfTests; i++)
+				exponents[t].pow(r[i]);
+			long cachedTime=System.nanoTime()-start;
+
+			for(int i=0; i<numberOfTests; i++)
+			{
+				if(!r[i].modPow(key.getNS(), nSPlusOne).equals(exponents[t].pow(r[i])))
+					System.out.println("PROBLEM with "+r[i]);
+			}
+
+			System.out.println("Randomizer r^n with the "+names[t]+":");
+			System.out.println("  modPow:         "+(modPowTime/1000)/numberOfTests+" us");
+			System.out.println("  CachedExponent: "+(cachedTime/1000)/numberOfTests+" us");
+			System.out.println("  speedup:        "+String.format("%.2f", (double)modPowTime/cachedTime));
+		}
+
+		PaillierPrivateThresholdKey[] keys=KeyGen.PaillierThresholdKey(lengthp, 5, 3, 122333356);
+		PaillierPrivateThresholdKey tkey=keys[0];
+		BigInteger[] c=new BigInteger[numberOfTests];
+		for(int i=0; i<numberOfTests; i++)
+			c[i]=encrypt(tkey.getRandomModN(), tkey);
+
+		long start=System.nanoTime();
+		for(int i=0; i<numberOfTests; i++)
+			c[i].modPow(tkey.getSi().multiply(BigInteger.valueOf(2).multiply(tkey.getDelta())), tkey.getNSPlusOne());
+		long modPowTime=System.nanoTime()-start;
+
+		start=System.nanoTime();
+		for(int i=0; i<numberOfTests; i++)
+			new PartialDecryption(tkey, c[i]);
+		long cachedTime=System.nanoTime()-start;
+
+		System.out.println("Partial decryption:");
+		System.out.println("  modPow:         "+(modPowTime/1000)/numberOfTests+" us");
+		System.out.println("  CachedExponent: "+(cachedTime/1000)/numberOfTests+" us");
+		System.out.println("  speedup:        "+String.format("%.2f", (double)modPowTime/cachedTime));
+	}
+}
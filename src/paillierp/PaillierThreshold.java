@@ -4,17 +4,22 @@
 package paillierp;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import paillierp.key.*;
 import paillierp.zkp.*;
 
 /**
  * A simple implementation of the threshold Paillier encryption scheme
- * <i>CS</i><sub>1</sub>.  This is based on the scheme given in
+ * <i>CS</i><sub><i>s</i></sub>.  This is based on the scheme given in
  * <i>Generalization of Paillier's Public-Key System with Applications to
- * Electronic Voting</i> by Damg&aring;rd et al. with the parameter <b><i>s</i> 
- * fixed at 1.</b>
+ * Electronic Voting</i> by Damg&aring;rd et al. with the parameter <i>s</i>
+ * taken from the key ({@link paillierp.key.PaillierKey#getS()}); keys created
+ * without a degree use <i>s</i>=1.  The zero-knowledge proofs in
+ * {@link paillierp.zkp} still assume <i>s</i>=1.
  * <p>
  * With most of the methods already defined in {@link AbstractPaillier}, this
  * class provides the essential methods of encryption and decryption in the
@@ -36,7 +41,7 @@ import paillierp.zkp.*;
  * {@link paillierp.key.PaillierKey PaillierKey} <i>n</i> to encrypt a plaintext
  *  <i>i</i> in <i>Z<sub>n<sup>s</sup></sub></i> by choosing a random
  * <i>r</i>&isin;<i>Z<sub>n</sub></i><sup>*</sup> by simply computing
- * (<i>n</i>+1)<i><sup>i</sup>r<sup>n</sup></i> mod <i>n</i><sup><i>s</i>+1</sup>.
+ * (<i>n</i>+1)<i><sup>i</sup>r<sup>n<sup>s</sup></sup></i> mod <i>n</i><sup><i>s</i>+1</sup>.
  * If decryption server <i>i</i> is given a
  * {@link paillierp.key.PaillierPrivateThresholdKey PaillierPrivateThresholdKey}
  * <i>s<sub>i</sub></i>, raising a ciphertext <i>c</i> to the power
@@ -61,6 +66,10 @@ import paillierp.zkp.*;
  * generator is included in the key object.  (The default is
  * {@link java.security.SecureRandom}.)
  * <p>
+ * As described in {@link AbstractPaillier}, an instance whose keys are set
+ * may be shared between threads; this includes partial decryption and
+ * combining shares, whose cache of Lagrange coefficients is concurrent.
+ * <p>
  * Future expansions will include support for encrypting arbitrary length
  * strings/byte arrays to avoid padding issues, and support for padding.
  * 
@@ -78,6 +87,13 @@ public class PaillierThreshold extends AbstractPaillier{
 	/** Private Key allowing decryption; should be same as public key. */
 	protected PaillierPrivateThresholdKey deckey = null;
 
+	/**
+	 * The exponents 2&lambda;<sub>0,<i>i</i></sub> used to combine shares,
+	 * by the sequence of decryption server IDs they were computed for.
+	 */
+	private final ConcurrentHashMap<List<Integer>, BigInteger[]> lagrangeCache =
+			new ConcurrentHashMap<List<Integer>, BigInteger[]>();
+
 	/*
 	 * 
 	 * Constructors
@@ -187,6 +203,8 @@ public class PaillierThreshold extends AbstractPaillier{
 	{
 		this.key = key;
 		this.deckey = key;
+		// The coefficients depend on the l and w of the key
+		this.lagrangeCache.clear();
 
 		// enable the decryption mode now
 		this.decryptMode=true;
@@ -302,39 +320,152 @@ public class PaillierThreshold extends AbstractPaillier{
 			throw new IllegalArgumentException("You must call this method with at least w shares");
 		}
 
-		// TODO check to make sure no share is duplicated.
-		
-		int w = deckey.getW();
-		BigInteger delta = deckey.getDelta();
-		BigInteger n = deckey.getN();
-		BigInteger nSquare = deckey.getNSPlusOne();
+		return combine(shares, lagrangeExponents(shares));
+	}
+
+	/**
+	 * Combines the shares of many ciphertexts at once, assuming that the
+	 * shares are valid.  Row {@code j} of {@code shares} holds at least
+	 * <i>w</i> partial decryptions of the <i>j</i>th ciphertext.  The
+	 * Lagrange coefficients are computed once for every distinct set of
+	 * decryption server IDs, so when all rows come from the same servers in
+	 * the same order they are only computed once.  The rows are combined in
+	 * parallel by the {@linkplain BatchExecutor#getDefault() shared
+	 * executor}.
+	 * 
+	 * @param shares    for each ciphertext, a collection of at least
+	 *                  <i>w</i> partial decryptions of it
+	 * @return          the decrypted values, in the order of the rows
+	 */
+	public BigInteger[] combineShares(final PartialDecryption[][] shares)
+	{
+		if(this.decryptMode == false) throw new IllegalStateException(this.notReadyForDecryption);
+		for (int j = 0; j < shares.length; j++) {
+			if(shares[j].length < deckey.getW()) {
+				throw new IllegalArgumentException("You must call this method with at least w shares");
+			}
+		}
 
-		BigInteger cprime = BigInteger.ONE;
-		BigInteger L = null;
-		BigInteger res = null;
+		final BigInteger[] res = new BigInteger[shares.length];
+		BatchExecutor.getDefault().run(shares.length, new BatchExecutor.Range() {
+			public void run(int from, int to) {
+				for (int j = from; j < to; j++) {
+					res[j] = combine(shares[j], lagrangeExponents(shares[j]));
+				}
+			}
+		});
+		return res;
+	}
 
-		//System.out.print("c' = ");
-		for(int i = 0; i < w; i++) {
+	/**
+	 * Computes <i>c'</i> from the first <i>w</i> shares and the exponents
+	 * 2&lambda;<sub>0,<i>i</i></sub>, and extracts the plaintext from it.
+	 * 
+	 * @param shares    at least <i>w</i> partial decryptions of the same
+	 *                  ciphertext
+	 * @param exponents the exponents 2&lambda;<sub>0,<i>i</i></sub> for the
+	 *                  first <i>w</i> shares
+	 * @return          the decrypted value combined using the shares
+	 */
+	private BigInteger combine(PartialDecryption[] shares, BigInteger[] exponents)
+	{
+		BigInteger[] values = new BigInteger[exponents.length];
+		for(int i = 0; i < exponents.length; i++) {
+			values[i] = shares[i].getDecryptedValue();
+		}
+		return extract(MultiExponentiation.linearCombination(values, exponents, deckey.getNSPlusOne()));
+	}
+
+	/**
+	 * Extracts the plaintext <i>m</i> from
+	 * <i>c'</i>=&prod;<sub><i>i</i></sub> <i>c<sub>i</sub></i><sup>2&lambda;<sub>0,<i>i</i></sub></sup>.
+	 * 
+	 * @param cprime    the combined shares <i>c'</i>
+	 * @return          the decrypted value
+	 */
+	BigInteger extract(BigInteger cprime)
+	{
+		// c' = (1+n)^(4*delta^2*m) mod n^(s+1)
+		BigInteger L = discreteLogOfG(cprime, deckey.getN(), deckey.getS());
+		return L.multiply(deckey.getCombineSharesConstant()).mod(deckey.getNS());
+	}
+
+	/**
+	 * Creates an accumulator which combines the shares of {@code count}
+	 * ciphertexts as they arrive, one decryption server at a time, using the
+	 * shares of the servers in {@code quorum}.
+	 * 
+	 * @param count     number of ciphertexts
+	 * @param quorum    IDs of the decryption servers whose shares are
+	 *                  combined; at least <i>w</i> distinct IDs
+	 * @return          an empty accumulator
+	 * @see ShareAccumulator
+	 */
+	public ShareAccumulator newShareAccumulator(int count, int... quorum)
+	{
+		if(this.decryptMode == false) throw new IllegalStateException(this.notReadyForDecryption);
+		if(quorum.length < deckey.getW()) {
+			throw new IllegalArgumentException("The quorum must have at least w decryption servers");
+		}
+
+		return new ShareAccumulator(this, count, quorum);
+	}
+
+	/**
+	 * Returns the exponents 2&lambda;<sub>0,<i>i</i></sub> for the IDs of the
+	 * first <i>w</i> of {@code shares}.
+	 * 
+	 * @param shares    at least <i>w</i> partial decryptions
+	 * @return          the exponents for the first <i>w</i> shares
+	 * @see #lagrangeExponents(int[])
+	 */
+	private BigInteger[] lagrangeExponents(PartialDecryption[] shares)
+	{
+		int[] ids = new int[deckey.getW()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = shares[i].getID();
+		}
+		return lagrangeExponents(ids);
+	}
+
+	/**
+	 * Returns the exponents 2&lambda;<sub>0,<i>i</i></sub> for the
+	 * decryption servers {@code ids}, where
+	 * &lambda;<sub>0,<i>i</i></sub>=&Delta;&prod;<sub><i>i'</i>&ne;<i>i</i></sub>
+	 * -<i>i'</i>/(<i>i</i>-<i>i'</i>).  The exponents only depend on the
+	 * IDs, so they are cached for every sequence of IDs seen before.
+	 * 
+	 * @param ids       distinct IDs of decryption servers
+	 * @return          the exponents, in the order of {@code ids}
+	 */
+	BigInteger[] lagrangeExponents(int[] ids)
+	{
+		List<Integer> key = new ArrayList<Integer>(ids.length);
+		for (int i = 0; i < ids.length; i++) {
+			key.add(ids[i]);
+		}
+
+		BigInteger[] exponents = lagrangeCache.get(key);
+		if (exponents != null) return exponents;
+
+		BigInteger delta = deckey.getDelta();
+		exponents = new BigInteger[ids.length];
+		for(int i = 0; i < ids.length; i++) {
 			BigInteger lambda = delta;
-			for(int iprime = 0; iprime < w; iprime++) {
+			for(int iprime = 0; iprime < ids.length; iprime++) {
 				
 				if(iprime != i) {
-					if (shares[i].getID()-shares[iprime].getID() != 0)
-						lambda = lambda.multiply(BigInteger.valueOf(-shares[iprime].getID())).divide(BigInteger.valueOf(shares[i].getID()-shares[iprime].getID()));
+					if (ids[i]-ids[iprime] != 0)
+						lambda = lambda.multiply(BigInteger.valueOf(-ids[iprime])).divide(BigInteger.valueOf(ids[i]-ids[iprime]));
 					else
 						throw new IllegalArgumentException("You cannot have repeated shares.");
 				}
 			}
-			cprime = cprime.multiply(shares[i].getDecryptedValue().modPow(BigInteger.valueOf(2).multiply(lambda), nSquare)).mod(nSquare);
-
-			
-			//System.out.print(shares[i]+"^(2*"+lambda+") + ");
+			exponents[i] = BigInteger.valueOf(2).multiply(lambda);
 		}
 
-		L = cprime.subtract(BigInteger.ONE).divide(n);
-		res = L.multiply(deckey.getCombineSharesConstant()).mod(n);
-
-		return res;
+		lagrangeCache.putIfAbsent(key, exponents);
+		return exponents;
 	}
 
 	/**
@@ -84,7 +84,7 @@ public class PartialDecryption implements Serializable {
 		//Check whether everything is set for doing decryption
 		if(!key.inModNSPlusOne(ciphertext)) throw new IllegalArgumentException("c must be less than n^2");
 
-		this.decryption = ciphertext.modPow(key.getSi().multiply(BigInteger.valueOf(2).multiply(key.getDelta())), key.getNSPlusOne());
+		this.decryption = key.getDecryptionExponent().pow(ciphertext);
 		this.id = key.getID();
 	}
 	
@@ -0,0 +1,239 @@
+/**
+ * ShareAccumulator.java
+ */
+package paillierp;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Combines the partial decryptions of a batch of ciphertexts while they
+ * arrive, so that the shares of a decryption server can be dropped as soon as
+ * they are received.  The quorum, the decryption servers whose shares are
+ * used, is fixed in advance, which fixes their Lagrange exponents
+ * 2&lambda;<sub>0,<i>i</i></sub>.  For every ciphertext the accumulator then
+ * keeps a single running product
+ * &prod;<sub><i>i</i></sub> <i>c<sub>i</sub></i><sup>2&lambda;<sub>0,<i>i</i></sub></sup>
+ * over the servers received so far, instead of one share per server; once
+ * every server of the quorum has been added, {@link #decrypt()} extracts the
+ * plaintexts from the products just as
+ * {@link PaillierThreshold#combineShares(PartialDecryption...)} does.
+ * <p>
+ * The shares of servers outside the quorum are ignored.  Adding shares is
+ * synchronized, so servers may be added from several threads.
+ *
+ * @see PaillierThreshold#newShareAccumulator(int, int...)
+ */
+public class ShareAccumulator {
+
+	/*
+	 *
+	 * Fields
+	 *
+	 */
+
+	/** The cryptosystem extracting the plaintexts. */
+	private final PaillierThreshold paillier;
+
+	/** The modulus <i>n</i><sup><i>s</i>+1</sup>. */
+	private final BigInteger nSPlusOne;
+
+	/** IDs of the decryption servers whose shares are combined. */
+	private final int[] quorum;
+
+	/** Exponents 2&lambda;<sub>0,<i>i</i></sub>, in the order of {@link #quorum}. */
+	private final BigInteger[] exponents;
+
+	/** Whether the shares of each server of the quorum were added. */
+	private final boolean[] received;
+
+	/** Number of servers of the quorum not added yet. */
+	private int remaining;
+
+	/** The running products, one per ciphertext. */
+	private final BigInteger[] products;
+
+	/*
+	 *
+	 * Constructors
+	 *
+	 */
+
+	/**
+	 * Creates an empty accumulator.
+	 *
+	 * @param paillier      a threshold cryptosystem set up for decryption
+	 * @param count         number of ciphertexts
+	 * @param quorum        distinct IDs of the decryption servers whose shares
+	 *                      are combined
+	 */
+	ShareAccumulator(PaillierThreshold paillier, int count, int[] quorum) {
+		this.paillier = paillier;
+		this.nSPlusOne = paillier.getPrivateKey().getNSPlusOne();
+		this.quorum = quorum.clone();
+		this.exponents = paillier.lagrangeExponents(this.quorum);
+		this.received = new boolean[quorum.length];
+		this.remaining = quorum.length;
+		this.products = new BigInteger[count];
+		for (int j = 0; j < count; j++) {
+			products[j] = BigInteger.ONE;
+		}
+	}
+
+	/*
+	 *
+	 * Methods
+	 *
+	 */
+
+	/**
+	 * Folds the shares of one decryption server into the running products.
+	 * Element {@code j} of {@code shares} must be the partial decryption of
+	 * the <i>j</i>th ciphertext.
+	 *
+	 * @param shares        partial decryptions of every ciphertext by the
+	 *                      same decryption server
+	 * @return              'true' if the server is part of the quorum and its
+	 *                      shares were used; 'false' if they were ignored
+	 */
+	public synchronized boolean add(final PartialDecryption[] shares) {
+		if (shares.length != products.length) {
+			throw new IllegalArgumentException("Expected " + products.length + " shares, got " + shares.length);
+		}
+		if (shares.length == 0) {
+			return false;
+		}
+
+		int id = shares[0].getID();
+		int index = -1;
+		for (int i = 0; i < quorum.length; i++) {
+			if (quorum[i] == id) index = i;
+		}
+		if (index < 0) {
+			return false;
+		}
+		if (received[index]) {
+			throw new IllegalArgumentException("You cannot have repeated shares.");
+		}
+		for (int j = 0; j < shares.length; j++) {
+			if (shares[j].getID() != id) {
+				throw new IllegalArgumentException("All shares must come from the same decryption server");
+			}
+		}
+
+		final BigInteger exponent = exponents[index];
+		BatchExecutor.getDefault().run(shares.length, new BatchExecutor.Range() {
+			public void run(int from, int to) {
+				for (int j = from; j < to; j++) {
+					// A negative exponent inverts the share
+					BigInteger power = shares[j].getDecryptedValue().modPow(exponent, nSPlusOne);
+					products[j] = products[j].multiply(power).mod(nSPlusOne);
+				}
+			}
+		});
+
+		received[index] = true;
+		remaining--;
+		return true;
+	}
+
+	/**
+	 * Folds the running products of another accumulator into this one, as if
+	 * the shares added to {@code other} had been added here.  Because the
+	 * products of one quorum are plain products of powers of the shares,
+	 * partial products can be combined in any order, e.g. along a tree of
+	 * relaying servers.
+	 *
+	 * @param other         an accumulator for the same ciphertexts and quorum,
+	 *                      with shares of other servers
+	 */
+	public void merge(ShareAccumulator other) {
+		if (other == this) {
+			throw new IllegalArgumentException("You cannot merge an accumulator with itself.");
+		}
+		if (!nSPlusOne.equals(other.nSPlusOne) || !Arrays.equals(quorum, other.quorum)
+				|| products.length != other.products.length) {
+			throw new IllegalArgumentException("The accumulators must use the same key, quorum and ciphertexts");
+		}
+
+		final BigInteger[] partial;
+		final boolean[] added;
+		synchronized (other) {
+			partial = other.products.clone();
+			added = other.received.clone();
+		}
+
+		synchronized (this) {
+			for (int i = 0; i < quorum.length; i++) {
+				if (added[i] && received[i]) {
+					throw new IllegalArgumentException("You cannot have repeated shares.");
+				}
+			}
+
+			BatchExecutor.getDefault().run(products.length, new BatchExecutor.Range() {
+				public void run(int from, int to) {
+					for (int j = from; j < to; j++) {
+						products[j] = products[j].multiply(partial[j]).mod(nSPlusOne);
+					}
+				}
+			});
+
+			for (int i = 0; i < quorum.length; i++) {
+				if (added[i]) {
+					received[i] = true;
+					remaining--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the running products, which is what a relaying server forwards
+	 * instead of the shares themselves.
+	 *
+	 * @return              a copy of the running products, one per ciphertext
+	 */
+	public synchronized BigInteger[] getProducts() {
+		return products.clone();
+	}
+
+	/**
+	 * Describes if the shares of every server of the quorum were added.
+	 *
+	 * @return              'true' if {@link #decrypt()} can be called
+	 */
+	public synchronized boolean isComplete() {
+		return remaining == 0;
+	}
+
+	/**
+	 * Returns the IDs of the decryption servers whose shares are combined.
+	 *
+	 * @return              the quorum
+	 */
+	public int[] getQuorum() {
+		return quorum.clone();
+	}
+
+	/**
+	 * Extracts the plaintexts from the running products.
+	 *
+	 * @return              the decrypted values, in the order of the
+	 *                      ciphertexts
+	 */
+	public synchronized BigInteger[] decrypt() {
+		if (remaining > 0) {
+			throw new IllegalStateException(remaining + " decryption servers of the quorum are missing");
+		}
+
+		final BigInteger[] res = new BigInteger[products.length];
+		BatchExecutor.getDefault().run(products.length, new BatchExecutor.Range() {
+			public void run(int from, int to) {
+				for (int j = from; j < to; j++) {
+					res[j] = paillier.extract(products[j]);
+				}
+			}
+		});
+		return res;
+	}
+}
@@ -8,6 +8,7 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*;
 
 /**
@@ -95,6 +96,24 @@ public class KeyGen {
 	 * @return      Private key for the generalized Paillier cryptosystem
 	 */
 	public static PaillierPrivateKey PaillierKey(int s, long seed) {
+		return PaillierKey(s, 1, seed);
+	}
+
+	/**
+	 * This function return the keys for the Damg&aring;rd&ndash;Jurik
+	 * cryptosystem <i>CS</i><sub><code>degree</code></sub> given the number
+	 * of bits required for the construction.  Plaintexts are taken modulo
+	 * <i>n</i><sup><code>degree</code></sup> and ciphertexts modulo
+	 * <i>n</i><sup><code>degree</code>+1</sup>.
+	 * 
+	 * @param s       Specifies the number of bits required for the prime
+	 *                factor of n.
+	 * @param degree  The degree <i>s</i>&ge;1 of the cryptosystem; 1 gives
+	 *                the original Paillier scheme.
+	 * @param seed    Specifies the seed for the random number generator used.  
+	 * @return        Private key for the generalized Paillier cryptosystem
+	 */
+	public static PaillierPrivateKey PaillierKey(int s, int degree, long seed) {
 	/* TODO Should this method be incorporated into PaillierKey as another
 	 * constructor? */
 		if (s<=0) {
@@ -139,7 +158,7 @@ public class KeyGen {
 		//Note that phi(n)=gcd(p-1,q-1)*lcm(p-1,q-1)
 		d=phin.divide((p.subtract(BigInteger.ONE)).gcd(q.subtract(BigInteger.ONE)));
 		
-		return new PaillierPrivateKey(n, d, seed);
+		return new PaillierPrivateKey(p, q, d, degree, seed);
 	}
 
 	/**
@@ -161,10 +180,95 @@ public class KeyGen {
 	 */
 	public static PaillierPrivateThresholdKey[]
 	                        PaillierThresholdKey(int s, int l, int w, long seed)
+	{
+		return PaillierThresholdKey(s, l, w, 1, seed);
+	}
+
+	/**
+	 * This function generates keys for the threshold version of the
+	 * Damg&aring;rd&ndash;Jurik cryptosystem
+	 * <i>CS</i><sub><code>degree</code></sub>.  As for
+	 * {@link #PaillierThresholdKey(int, int, int, long)}, but the master
+	 * key <i>d</i> is chosen with <i>d</i>=1 mod
+	 * <i>n</i><sup><code>degree</code></sup> and the shares are taken modulo
+	 * <i>n</i><sup><code>degree</code></sup><i>m</i>.
+	 * 
+	 * @param s      Specifies the number of bits required for the prime factor 
+	 *               of n.
+	 * @param l      Number of decryption servers.
+	 * @param w      Threshold number of decryption servers.  Must be
+	 *               &le;&frac12;<code>l</code>
+	 * @param degree The degree <i>s</i>&ge;1 of the cryptosystem; 1 gives
+	 *               the original Paillier scheme.
+	 * @param seed   Specifies the seed for the random number generator used.  
+	 * @return       An array of <code>l</code> private threshold keys.
+	 * @see          KeyGen
+	 */
+	public static PaillierPrivateThresholdKey[]
+	                        PaillierThresholdKey(int s, int l, int w, int degree, long seed)
 	{
 		if (s<=0) {
 			throw new IllegalArgumentException("Number of bits set is less than 0");
 		}
+		if (degree<1) {
+			throw new IllegalArgumentException("The degree must be at least 1");
+		}
+
+		//Initialize the random number generator
+		SecureRandom rnd= new SecureRandom(BigInteger.valueOf(seed).toByteArray());
+
+		return thresholdKeysFromPrimes(thresholdPrimes(s, rnd), l, w, degree, rnd);
+	}
+
+	/**
+	 * Generates the four primes of a threshold key: the safe primes
+	 * <i>p</i>=2<i>p</i><sub>1</sub>+1 and <i>q</i>=2<i>q</i><sub>1</sub>+1,
+	 * all distinct.
+	 * 
+	 * @param s    Specifies the number of bits required for the prime factor 
+	 *             of n.
+	 * @param rnd  Random number generator.
+	 * @return     the array {<i>p</i><sub>1</sub>, <i>p</i>,
+	 *             <i>q</i><sub>1</sub>, <i>q</i>}
+	 */
+	static BigInteger[] thresholdPrimes(int s, Random rnd)
+	{
+		//First we need to generate p1,q1,p,q all are prime
+		//p1 and q1 are s-1 bit long 
+		//p=2*p1+1, q=2*q1+1
+		System.out.println("Generating p and p1");
+		BigInteger[] primes=KeyGen.genSafePrimes(s,rnd);
+		BigInteger p1=primes[0];
+		BigInteger p=primes[1];
+		BigInteger q1;
+		BigInteger q;
+		System.out.println("Generating q and q1");
+		do {
+			primes=KeyGen.genSafePrimes(s,rnd);
+			q1=primes[0];
+			q =primes[1];
+		} while(p.equals(q)||p.equals(q1)||q.equals(p1));
+
+		return new BigInteger[] {p1, p, q1, q};
+	}
+
+	/**
+	 * Generates the threshold keys of degree {@code degree} for the given
+	 * primes.  A new master key <i>d</i>, verification value <i>v</i> and
+	 * polynomial are chosen, so the same primes can be used for any
+	 * <i>l</i> and <i>w</i>.
+	 * 
+	 * @param primes the array {<i>p</i><sub>1</sub>, <i>p</i>,
+	 *               <i>q</i><sub>1</sub>, <i>q</i>} as returned by
+	 *               {@link #thresholdPrimes(int, Random)}
+	 * @param l      Number of decryption servers.
+	 * @param w      Threshold number of decryption servers.
+	 * @param degree The degree <i>s</i>&ge;1 of the cryptosystem
+	 * @param rnd    Random number generator.
+	 * @return       An array of <code>l</code> private threshold keys.
+	 */
+	static PaillierPrivateThresholdKey[] thresholdKeysFromPrimes(BigInteger[] primes, int l, int w, int degree, Random rnd)
+	{
 		//Both p1 and q1 is prime size s-1;
 		BigInteger p1=null;
 		BigInteger q1=null;
@@ -181,10 +285,13 @@ public class KeyGen {
 		//n=p*q
 		BigInteger n=null;
 	   
-		//n*n
-		BigInteger nSquare=null;
+		//n^degree
+		BigInteger ns=null;
 	   
-		//n*m
+		//n^(degree+1)
+		BigInteger nSPlusOne=null;
+	   
+		//n^degree*m
 		BigInteger nm=null;
 	   
 		//v is the generator of $Z^*_{ }$
@@ -193,22 +300,10 @@ public class KeyGen {
 		//d=1 mod n and d=0 mod m
 		BigInteger d=null;
 	   
-		//Initialize the random number generator
-		SecureRandom rnd= new SecureRandom(BigInteger.valueOf(seed).toByteArray());
-
-		//First we need to generate p1,q1,p,q all are prime
-		//p1 and q1 are s-1 bit long 
-		//p=2*p1+1, q=2*q1+1
-		System.out.println("Generating p and p1");
-		BigInteger[] primes=KeyGen.genSafePrimes(s,rnd);
 		p1=primes[0];
 		p=primes[1];
-		System.out.println("Generating q and q1");
-		do {
-			primes=KeyGen.genSafePrimes(s,rnd);
-			q1=primes[0];
-			q =primes[1];
-		} while(p.equals(q)||p.equals(q1)||q.equals(p1));
+		q1=primes[2];
+		q=primes[3];
 
 		//Note n= p*q
 		n=p.multiply(q);
@@ -216,22 +311,23 @@ public class KeyGen {
 		//Note m=p1*q1
 		m=p1.multiply(q1);
 
-		//Note nm=n*m
-		nm=n.multiply(m);
+		//ns=n^degree, nSPlusOne=n^(degree+1)
+		ns=n.pow(degree);
+		nSPlusOne=ns.multiply(n);
 
-		//nSquare=n*n
-		nSquare=n.multiply(n);
+		//Note nm=n^degree*m
+		nm=ns.multiply(m);
 
 		// next d need to be chosen such that
-		// d=0 mod m and d=1 mod n, using Chinese remainder thm
+		// d=0 mod m and d=1 mod n^degree, using Chinese remainder thm
 		// we can find d using Chinese remainder thm
-		// note that $d=(m. (m^-1 mod n))$
+		// note that $d=(m. (m^-1 mod n^degree))$
 		System.out.println("Generating d");
-		d=m.multiply(m.modInverse(n));
+		d=m.multiply(m.modInverse(ns));
 
 		//a[0] is equal to d
 		//a[i] is the random number used for generating the polynomial
-		//between 0... n*m-1, for 0 < i < w 
+		//between 0... n^degree*m-1, for 0 < i < w 
 		BigInteger[] a = new BigInteger[w];
 		a[0] = d;
 		for(int i = 1; i < w; i++) {
@@ -242,10 +338,10 @@ public class KeyGen {
 		}
 
 		//We need to generate v
-		//Although v needs to be the generator of the squares in Z^*_{n^2}
+		//Although v needs to be the generator of the squares in Z^*_{n^(degree+1)}
 		//I will use a heuristic which gives a generator with high prob.
-		//get a random element r such that gcd(r,nSquare) is one
-		//set v=r*r mod nSquare. This heuristic is used in the Victor Shoup
+		//get a random element r such that gcd(r,nSPlusOne) is one
+		//set v=r*r mod nSPlusOne. This heuristic is used in the Victor Shoup
 		//threshold signature paper.
 		BigInteger r=null;
 		boolean ok=false;
@@ -253,12 +349,12 @@ public class KeyGen {
 		do
 		{
 			//generate r such that gcd(r,n)=1
-			r=new BigInteger(4*s,rnd);  
+			r=new BigInteger(4*p.bitLength(),rnd);  
 			if(((BigInteger.ONE).compareTo(r.gcd(n)))==0)
 				ok=true;
 		}while(ok==false);
-		// we can now set v to r*r mod nSquare
-		v=(r.multiply(r)).mod(nSquare);
+		// we can now set v to r*r mod nSPlusOne
+		v=(r.multiply(r)).mod(nSPlusOne);
 
 		System.out.println("p :" + p.toString());
 		System.out.println("p1:" + p1.toString());
@@ -273,7 +369,7 @@ public class KeyGen {
 
 		//delta = l!
 		BigInteger delta = KeyGen.factorial(l);
-		BigInteger combineSharesConstant = BigInteger.valueOf(4).multiply(delta.multiply(delta)).modInverse(n);
+		BigInteger combineSharesConstant = BigInteger.valueOf(4).multiply(delta.multiply(delta)).modInverse(ns);
 
 		for(int index = 0; index < l; index++) {
 			shares[index] = BigInteger.ZERO;
@@ -283,12 +379,12 @@ public class KeyGen {
 			}
 			shares[index] = shares[index].mod(nm);
 
-			viarray[index] = v.modPow(shares[index].multiply(delta), nSquare);
+			viarray[index] = v.modPow(shares[index].multiply(delta), nSPlusOne);
 		}
 
 		PaillierPrivateThresholdKey[] res = new PaillierPrivateThresholdKey[l];
 		for(int i = 0; i < l; i++) {
-			res[i] = new PaillierPrivateThresholdKey(n, l, combineSharesConstant, w, v, 
+			res[i] = new PaillierPrivateThresholdKey(n, degree, l, combineSharesConstant, w, v, 
 					viarray, shares[i], i+1, rnd.nextLong());
 		}
 
@@ -544,8 +640,10 @@ public class KeyGen {
 	 * and <i>p</i><sub>1</sub> (<code>s</code>-1 bits long)
 	 * such that <i>p</i>=2<i>p</i><sub>1</sub>+1.
 	 * <p>
-	 * This function implements Algorithm 4.86 of <i>Handbook of
-	 * Applied Cryptography</i>
+	 * This function follows Algorithm 4.86 of <i>Handbook of
+	 * Applied Cryptography</i>, but searches incrementally from a random
+	 * start and uses all available processors.  See
+	 * {@link #genSafePrimes(int, Random, int)}.
 	 * 
 	 * @param s     Specifies the number of bits required for the prime
 	 *              factor p and q 
@@ -557,26 +655,231 @@ public class KeyGen {
 	 */
 	private static BigInteger[] genSafePrimes(int s, Random rnd)
 	{
-		BigInteger p1=null;
-		BigInteger p=null;
-		BigInteger[] res= new BigInteger[2];
-		boolean ok=false;
-		System.out.println("Trying prime");
-		do 
-		{    
+		return genSafePrimes(s, rnd, Runtime.getRuntime().availableProcessors());
+	}
 
-			p1=BigInteger.probablePrime(s-1,rnd);
-			p=(p1.shiftLeft(1)).add(BigInteger.ONE);
-			if(p.isProbablePrime(50))
-				ok=true;
-			//else
-				//	  System.out.println("Unsuccessful try");
-		}while(ok==false);
+	/**
+	 * This function returns 2 safe primes <i>p</i> (<code>s</code> bits long)
+	 * and <i>p</i><sub>1</sub> (<code>s</code>-1 bits long)
+	 * such that <i>p</i>=2<i>p</i><sub>1</sub>+1, testing candidates on
+	 * {@code threads} threads.
+	 * <p>
+	 * The search proceeds in rounds.  Each round draws a random odd start
+	 * <i>x</i> of <code>s</code>-1 bits from {@code rnd} and considers the
+	 * candidates <i>p</i><sub>1</sub>=<i>x</i>+2<i>j</i> for
+	 * 0&le;<i>j</i>&lt;{@value #SIEVE_WINDOW}.  A sieve first strikes out every
+	 * <i>j</i> for which a small prime divides <i>p</i><sub>1</sub> or
+	 * 2<i>p</i><sub>1</sub>+1, which leaves only a small fraction of the
+	 * candidates.  The survivors are handed out to the threads in increasing
+	 * order and tested by a Fermat test followed by
+	 * {@link BigInteger#isProbablePrime(int)} on both numbers.  The result
+	 * is the <i>smallest</i> surviving <i>j</i> which gives a safe prime, so
+	 * it depends only on {@code rnd} and not on the number of threads or
+	 * their timing.
+	 * 
+	 * @param s       Specifies the number of bits required for the prime
+	 *                factor p and q; at least 3
+	 * @param rnd     Random number generator.  
+	 * @param threads Number of threads testing candidates
+	 * @return        returns a BigInteger array where 
+	 *                BigInteger[0] is <i>p</i><sub>1</sub>,
+	 *                BigInteger[1] is <i>p</i>
+	 */
+	static BigInteger[] genSafePrimes(int s, Random rnd, int threads)
+	{
+		if (s < 3) {
+			throw new IllegalArgumentException("Safe primes need at least 3 bits");
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("There must be at least one thread");
+		}
+		
+		System.out.println("Trying prime");
+		BigInteger[] res = null;
+		while (res == null) {
+			// Random odd start of exactly s-1 bits
+			BigInteger x = new BigInteger(s-1, rnd).setBit(s-2).setBit(0);
+			res = searchSafePrime(x, s-1, threads);
+		}
 		System.out.println("Finally a good pair");
-		res[0]=p1;
-		res[1]=p;
 		return res;
 	}
+	
+	/** Number of candidates <i>p</i><sub>1</sub> sieved per round. */
+	private static final int SIEVE_WINDOW = 1 << 15;
+	
+	/** Bound on the small primes used for sieving. */
+	private static final int SIEVE_BOUND = 1 << 16;
+	
+	/** The odd primes below {@link #SIEVE_BOUND}. */
+	private static final int[] SMALL_PRIMES = smallPrimes(SIEVE_BOUND);
+	
+	/**
+	 * One round of {@link #genSafePrimes(int, Random, int)}: sieves the
+	 * candidates <code>x</code>+2<i>j</i> and tests the survivors.
+	 * 
+	 * @param x       the odd start of the window
+	 * @param bits    the required length of <i>p</i><sub>1</sub>
+	 * @param threads number of threads testing candidates
+	 * @return        {<i>p</i><sub>1</sub>, <i>p</i>} for the smallest
+	 *                <i>j</i> giving a safe prime; {@code null} if the
+	 *                window holds none
+	 */
+	private static BigInteger[] searchSafePrime(final BigInteger x, int bits, int threads)
+	{
+		// Candidates must stay below 2^bits
+		BigInteger room = BigInteger.ONE.shiftLeft(bits).subtract(x).shiftRight(1);
+		int window = room.compareTo(BigInteger.valueOf(SIEVE_WINDOW)) < 0 ? room.intValue() : SIEVE_WINDOW;
+		
+		// composite[j] is set if a small prime q divides x+2j or 2(x+2j)+1
+		boolean[] composite = new boolean[window];
+		for (int i = 0; i < SMALL_PRIMES.length; i++) {
+			long q = SMALL_PRIMES[i];
+			// Only primes smaller than the candidates prove them composite
+			if (x.bitLength() <= 32 && x.longValue() <= q) break;
+			long r = x.mod(BigInteger.valueOf(q)).longValue();
+			long inv2 = (q + 1) / 2;
+			long inv4 = inv2 * inv2 % q;
+			// x+2j = 0 mod q  <=>  j = -r/2 mod q
+			long j1 = (q - r) % q * inv2 % q;
+			// 2(x+2j)+1 = 0 mod q  <=>  j = -(2r+1)/4 mod q
+			long j2 = (q - (2 * r + 1) % q) % q * inv4 % q;
+			for (long j = j1; j < window; j += q) composite[(int)j] = true;
+			for (long j = j2; j < window; j += q) composite[(int)j] = true;
+		}
+		
+		int count = 0;
+		final int[] survivors = new int[window];
+		for (int j = 0; j < window; j++) {
+			if (!composite[j]) survivors[count++] = j;
+		}
+		final int numSurvivors = count;
+		
+		// Survivors are handed out in increasing order; the smallest index
+		// found is the result, whichever thread finds it
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger best = new AtomicInteger(Integer.MAX_VALUE);
+		Runnable worker = new Runnable() {
+			public void run() {
+				for (int i = next.getAndIncrement(); i < numSurvivors && i < best.get(); i = next.getAndIncrement()) {
+					BigInteger p1 = x.add(BigInteger.valueOf(2L * survivors[i]));
+					if (isSafePrime(p1)) {
+						int current = best.get();
+						while (i < current && !best.compareAndSet(current, i)) {
+							current = best.get();
+						}
+					}
+				}
+			}
+		};
+		
+		Thread[] workers = new Thread[Math.max(Math.min(threads, numSurvivors) - 1, 0)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(worker, "genSafePrimes-" + i);
+			workers[i].start();
+		}
+		worker.run();
+		for (int i = 0; i < workers.length; i++) {
+			try {
+				workers[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while generating safe primes", e);
+			}
+		}
+		
+		if (best.get() == Integer.MAX_VALUE) return null;
+		
+		BigInteger p1 = x.add(BigInteger.valueOf(2L * survivors[best.get()]));
+		return new BigInteger[] {p1, p1.shiftLeft(1).add(BigInteger.ONE)};
+	}
+	
+	/**
+	 * Tests if both {@code p1} and 2{@code p1}+1 are prime.  A Fermat test to
+	 * the base 2 on each rejects almost all composites before the full tests.
+	 * 
+	 * @param p1      an odd candidate
+	 * @return        'true' if {@code p1} and 2{@code p1}+1 are probably prime
+	 */
+	private static boolean isSafePrime(BigInteger p1)
+	{
+		BigInteger two = BigInteger.valueOf(2);
+		BigInteger p = p1.shiftLeft(1).add(BigInteger.ONE);
+		return two.modPow(p1.subtract(BigInteger.ONE), p1).equals(BigInteger.ONE)
+				&& two.modPow(p.subtract(BigInteger.ONE), p).equals(BigInteger.ONE)
+				&& p1.isProbablePrime(50)
+				&& p.isProbablePrime(50);
+	}
+	
+	/**
+	 * Lists the odd primes below {@code bound} with the sieve of Eratosthenes.
+	 * 
+	 * @param bound   exclusive upper bound
+	 * @return        the odd primes less than {@code bound}, in increasing
+	 *                order
+	 */
+	private static int[] smallPrimes(int bound)
+	{
+		boolean[] composite = new boolean[bound];
+		List<Integer> primes = new ArrayList<Integer>();
+		for (int i = 3; i < bound; i += 2) {
+			if (composite[i]) continue;
+			primes.add(i);
+			for (long j = (long)i * i; j < bound; j += 2 * i) {
+				composite[(int)j] = true;
+			}
+		}
+		int[] res = new int[primes.size()];
+		for (int i = 0; i < res.length; i++) {
+			res[i] = primes.get(i);
+		}
+		return res;
+	}
+	
+	/**
+	 * Measures the time to generate threshold keys for several sizes of the
+	 * primes, and the time of the safe prime search on one thread and on all
+	 * available processors.  The safe primes found are the same in both cases.
+	 * Larger sizes can take minutes on a single thread.
+	 */
+	public static void testKeyGenSpeed()
+	{
+		int[] sizes={128, 256, 512, 1024};
+		int numberOfTests=3;
+		int processors=Runtime.getRuntime().availableProcessors();
+		
+		StringBuilder report=new StringBuilder();
+		for(int i=0; i<sizes.length; i++)
+		{
+			long single=0;
+			long parallel=0;
+			long key=0;
+			for(int j=0; j<numberOfTests; j++)
+			{
+				long seed=j+1;
+				
+				long start=System.nanoTime();
+				BigInteger[] a=genSafePrimes(sizes[i], new Random(seed), 1);
+				single+=System.nanoTime()-start;
+				
+				start=System.nanoTime();
+				BigInteger[] b=genSafePrimes(sizes[i], new Random(seed), processors);
+				parallel+=System.nanoTime()-start;
+				
+				if(!a[1].equals(b[1]))
+					report.append("PROBLEM: different safe primes for seed "+seed+"\n");
+				
+				start=System.nanoTime();
+				PaillierThresholdKey(sizes[i], 4, 3, seed);
+				key+=System.nanoTime()-start;
+			}
+			report.append(sizes[i]+" bit primes ("+2*sizes[i]+" bit n):\n");
+			report.append("  safe prime, 1 thread:   "+(single/1000000)/numberOfTests+" ms\n");
+			report.append("  safe prime, "+processors+" threads:  "+(parallel/1000000)/numberOfTests+" ms\n");
+			report.append("  threshold key (l=4,w=3): "+(key/1000000)/numberOfTests+" ms\n");
+		}
+		System.out.print(report);
+	}
 
 	/**
 	 * Computes the factorial of {@code n}.
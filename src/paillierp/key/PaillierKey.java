@@ -6,13 +6,22 @@ package paillierp.key;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.util.Random;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+
+import paillierp.ByteUtils;
+import paillierp.CachedExponent;
 
 /** 
  * A simple public key for the generalized Paillier cryptosystem
- * <i>CS</i><sub>1</sub>.  This public key is intended to be extended for other
- * private keys and for the Paillier Threshold scheme <b>with the degree <i>s</i>
- * to be fixed as 1.</b>
+ * <i>CS<sub>s</sub></i>.  This public key is intended to be extended for other
+ * private keys and for the Paillier Threshold scheme.  The degree <i>s</i>
+ * defaults to 1, which is the original Paillier cryptosystem; a larger
+ * <i>s</i> gives the Damg&aring;rd&ndash;Jurik scheme, whose plaintext space
+ * <i>Z<sub>n<sup>s</sup></sub></i> grows faster than its ciphertext space
+ * <i>Z</i><sub><i>n</i><sup><i>s</i>+1</sup></sub>, lowering the ciphertext
+ * expansion to (<i>s</i>+1)/<i>s</i>.
  * <p>
  * The public key for the generalized Paillier cryptosystem
  * <i>CS<sub>s</sub></i> constructed in Damg&aring;rd et al. requires an
@@ -41,6 +50,14 @@ import java.security.SecureRandom;
  * generator with it.  This is to facilitate the choosing of random numbers
  * modulo <i>n</i>.  The user has full freedom to change the random number
  * generator to be as secure (or insecure) as one chooses.
+ * <p>
+ * The generator given to the key is only used to draw one seed, from which
+ * a {@value #STREAM_ALGORITHM} stream per thread is derived with the index
+ * of the stream, so a key may be used by several threads at once without
+ * them contending for the same generator.  Apart
+ * from {@link #setRnd(Random)} and
+ * {@link #setRandomnessPool(RandomnessPool)}, which should be called before
+ * the key is shared, all methods of this class are thread-safe.
  * 
  * @author James Garrity
  * @author Sean Hall
@@ -59,10 +76,24 @@ public class PaillierKey implements Serializable {
 	 * This Serial ID
 	 */
 	private static final long serialVersionUID = 6257110251194073448L;
+	
+	/**
+	 * Algorithm of the random streams of the threads.  Unlike the default
+	 * {@link SecureRandom}, whose instances may share a global lock and mix in
+	 * entropy of the operating system, an instance is only seeded by the seed
+	 * it is given and shares no state with other instances.
+	 */
+	public static final String STREAM_ALGORITHM = "SHA1PRNG";
+	
+	/** Number of bytes drawn from the key's generator to seed the streams. */
+	private static final int STREAM_SEED_BYTES = 32;
 
 	/** The modulus <i>n</i>, an RSA number. */
 	protected BigInteger n=null;
 	
+	/** The degree <i>s</i> of the cryptosystem <i>CS<sub>s</sub></i>. */
+	protected int s=1;
+	
 	/** The cached value of <i>n<sup>s</sup></i>.*/
 	protected BigInteger ns=null;
 	
@@ -78,14 +109,29 @@ public class PaillierKey implements Serializable {
 	 */
 	protected BigInteger nPlusOne=null;
 	
-	/** Random number generator. */
+	/** Random number generator seeding the streams of the threads. */
 	protected Random rnd=null;
 	
+	/** Random number generator of each thread using this key; not serialized. */
+	protected transient volatile ThreadLocal<Random> streams=null;
+	
+	/** Seed from which the streams are derived; drawn on first use. */
+	private transient byte[] streamSeed=null;
+	
+	/** Number of streams derived from {@link #streamSeed}. */
+	private transient int streamCount=0;
+	
+	/** Optional pool of precomputed randomizers; not serialized. */
+	protected transient RandomnessPool pool=null;
+	
+	/** Exponentiation by <i>n<sup>s</sup></i>; created on first use, not serialized. */
+	protected transient CachedExponent encryptionExponent=null;
+	
 	/** Bit size of n. */
 	protected int k=0;
 	
 	/** Maximum number of bits allowed for keysize. */
-	protected static final int MAX_KEY_SIZE = 512;
+	protected static final int MAX_KEY_SIZE = 4096;
 	
 	/*
 	 * 
@@ -102,17 +148,63 @@ public class PaillierKey implements Serializable {
 	 * @param rnd       a specified random number generator
 	 */
 	public PaillierKey(BigInteger n, Random rnd) {
+		this(n, 1, rnd);
+	}
+	
+	/**
+	 * Creates a new public key for the cryptosystem <i>CS<sub>s</sub></i>
+	 * when given the modulus <i>n</i>, the degree <i>s</i> and a specified
+	 * random number generator.
+	 * 
+	 * @param n         a RSA modulus.  That is, the product of two
+	 *                  different odd primes
+	 * @param s         the degree <i>s</i>&ge;1; plaintexts are taken
+	 *                  modulo <i>n<sup>s</sup></i>
+	 * @param rnd       a specified random number generator
+	 */
+	public PaillierKey(BigInteger n, int s, Random rnd) {
 		if (n.bitLength() > MAX_KEY_SIZE) {
 			throw new IllegalArgumentException("n must be at most "+MAX_KEY_SIZE
 					+ " bits long");
 		}
+		if (s < 1) {
+			throw new IllegalArgumentException("s must be at least 1");
+		}
 		this.n = n;
+		this.s = s;
 		//TODO Do we want to test n to make sure it is an RSA modulus?
-		this.ns = n;
-		this.nSPlusOne = this.n.multiply(this.n);
+		this.ns = n.pow(s);
+		this.nSPlusOne = this.ns.multiply(this.n);
 		this.nPlusOne = this.n.add(BigInteger.ONE);
 		this.k = this.n.bitLength();
 		this.rnd = rnd;
+		this.streams = new ThreadLocal<Random>();
+	}
+	
+	/**
+	 * Creates a copy of {@code key} sharing its precomputed values, its
+	 * random number generator and its {@link RandomnessPool}.  This avoids
+	 * seeding a new {@link SecureRandom} and recomputing the powers of
+	 * <i>n</i> for every public key handed out by a private key.
+	 * 
+	 * @param key       the key to copy
+	 */
+	protected PaillierKey(PaillierKey key) {
+		this.n = key.n;
+		this.s = key.s;
+		this.ns = key.ns;
+		this.nSPlusOne = key.nSPlusOne;
+		this.nPlusOne = key.nPlusOne;
+		this.k = key.k;
+		this.rnd = key.rnd;
+		this.streams = new ThreadLocal<Random>();
+		this.pool = key.pool;
+		
+		// The exponent of a private key may hold the factors of n
+		CachedExponent exponent = key.encryptionExponent;
+		if (exponent != null && !exponent.usesFactors()) {
+			this.encryptionExponent = exponent;
+		}
 	}
 	
 	/** 
@@ -127,7 +219,24 @@ public class PaillierKey implements Serializable {
 	 */
 	public PaillierKey(BigInteger n, long seed)
 	{
-		 this(n, new SecureRandom(BigInteger.valueOf(seed).toByteArray()));
+		 this(n, 1, seed);
+	}
+	
+	/** 
+	 * Creates a new public key for the cryptosystem <i>CS<sub>s</sub></i>
+	 * when given the modulus <i>n</i> and the degree <i>s</i>.  This
+	 * constructor will use the <code>seed</code> to create the public
+	 * key with a {@link SecureRandom} random number generator.
+	 * 
+	 * @param n         a RSA modulus.  That is, the product of two
+	 *                  different odd primes.
+	 * @param s         the degree <i>s</i>&ge;1
+	 * @param seed      a long integer needed to start a random
+	 *                  number generator
+	 */
+	public PaillierKey(BigInteger n, int s, long seed)
+	{
+		 this(n, s, new SecureRandom(BigInteger.valueOf(seed).toByteArray()));
 	}
 	
 	/**
@@ -143,7 +252,24 @@ public class PaillierKey implements Serializable {
 	 *                  number generator
 	 */
 	public PaillierKey(BigInteger p, BigInteger q, long seed) {
-		this(p.multiply(p), seed);
+		this(p, q, 1, seed);
+	}
+	
+	/**
+	 * Creates a new public key for the cryptosystem <i>CS<sub>s</sub></i>
+	 * from a given two odd primes <i>p</i> and <i>q</i>.  This constructor
+	 * will use the <code>seed</code> to create the public key with a
+	 * {@link SecureRandom} random number generator.
+	 * 
+	 * @param p         an odd prime
+	 * @param q         another odd prime different from
+	 *                  <code>p</code>
+	 * @param s         the degree <i>s</i>&ge;1
+	 * @param seed      a long integer needed to start a random
+	 *                  number generator
+	 */
+	public PaillierKey(BigInteger p, BigInteger q, int s, long seed) {
+		this(p.multiply(q), s, seed);
 		//TODO Check to see if p and q are of same length, for security purposes (?)
 		if (p.compareTo(q) == 0)
 			throw new IllegalArgumentException("p and q must be different primes");
@@ -159,7 +285,8 @@ public class PaillierKey implements Serializable {
 	 * @see #toByteArray()
 	 */
 	public PaillierKey(byte[] b, long seed) {
-		this(new BigInteger(b), seed);
+		this(new BigInteger(Arrays.copyOf(b, b.length-4)), 
+				ByteUtils.getInt(b, b.length-4), seed);
 	}
 	
 	/*
@@ -174,10 +301,10 @@ public class PaillierKey implements Serializable {
 	 * with the private key.
 	 * 
 	 * @return          the Paillier public key corresponding to this
-	 *                  key
+	 *                  key, sharing its {@link RandomnessPool} if any
 	 */
 	public PaillierKey getPublicKey() {
-		return new PaillierKey(n, rnd.nextLong());
+		return new PaillierKey(this);
 	}
 	
 	/**
@@ -200,6 +327,17 @@ public class PaillierKey implements Serializable {
 	public BigInteger getN() {
 		return n;
 	}
+	
+	/**
+	 * Returns the degree <i>s</i> of the cryptosystem
+	 * <i>CS<sub>s</sub></i> this key belongs to.
+	 * 
+	 * @return          the degree <i>s</i>; 1 for the original Paillier
+	 *                  cryptosystem
+	 */
+	public int getS() {
+		return s;
+	}
 
 	/**
 	 * Returns the cached value of <i>n<sup>s</sup></i>, to be used frequently
@@ -235,12 +373,67 @@ public class PaillierKey implements Serializable {
 	}
 
 	/**
-	 * Returns the random number generator used for this key.
+	 * Returns the random number generator of the calling thread for this
+	 * key.  On the first call of every thread a new
+	 * {@value #STREAM_ALGORITHM} stream is derived from the key's seed and
+	 * the index of the stream; later calls of the same thread return the same
+	 * stream, so no locking is needed.
 	 * 
-	 * @return          the random number generator
+	 * @return          the random number generator of the calling thread
 	 */
 	public Random getRnd() {
-		return rnd;
+		ThreadLocal<Random> streams = this.streams;
+		if (streams == null) {
+			// Only after deserialization, as the streams are not serialized
+			synchronized (this) {
+				if (this.streams == null) {
+					this.streams = new ThreadLocal<Random>();
+				}
+				streams = this.streams;
+			}
+		}
+		Random stream = streams.get();
+		if (stream == null) {
+			stream = newStream();
+			streams.set(stream);
+		}
+		return stream;
+	}
+	
+	/**
+	 * Derives the next stream from the key's seed, which is drawn from the
+	 * key's generator for the first stream.  The <i>i</i>th stream is seeded
+	 * with the key's seed followed by <i>i</i>, so that the streams are
+	 * independent of each other and reproducible for a deterministic
+	 * generator.  Which thread gets which stream depends on the order of
+	 * their first calls.
+	 * 
+	 * @return          a new random number generator
+	 */
+	private synchronized Random newStream() {
+		if (streamSeed == null) {
+			streamSeed = new byte[STREAM_SEED_BYTES];
+			Random rnd = this.rnd;
+			// Copies of a key share its generator
+			synchronized (rnd) {
+				rnd.nextBytes(streamSeed);
+			}
+		}
+		byte[] seed = Arrays.copyOf(streamSeed, STREAM_SEED_BYTES + 4);
+		int index = streamCount++;
+		for (int i = 0; i < 4; i++) {
+			seed[STREAM_SEED_BYTES + i] = (byte) (index >>> (8 * i));
+		}
+		
+		SecureRandom stream;
+		try {
+			stream = SecureRandom.getInstance(STREAM_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(STREAM_ALGORITHM + " is not available", e);
+		}
+		// Seeding before the first draw makes the seed the only input
+		stream.setSeed(seed);
+		return stream;
 	}
 	
 	/**
@@ -248,7 +441,7 @@ public class PaillierKey implements Serializable {
 	 * a generated random number as the seed. 
 	 */
 	public void updateRnd() {
-		setRnd(rnd.nextLong());
+		setRnd(getRnd().nextLong());
 	}
 	
 	/**
@@ -269,8 +462,11 @@ public class PaillierKey implements Serializable {
 	 * 
 	 * @param rnd       a specified random number generator
 	 */
-	public void setRnd(Random rnd) {
+	public synchronized void setRnd(Random rnd) {
 		this.rnd = rnd;
+		this.streams = new ThreadLocal<Random>();
+		this.streamSeed = null;
+		this.streamCount = 0;
 	}
 	
 	/**
@@ -316,6 +512,7 @@ public class PaillierKey implements Serializable {
 	 * @return          a random integer less than <i>n</i>
 	 */
 	public BigInteger getRandomModN() {
+		Random rnd = getRnd();
 		BigInteger r;
 		do {
 			r = new BigInteger(k,rnd);
@@ -330,17 +527,94 @@ public class PaillierKey implements Serializable {
 	 * cryptosystem, this is used to generate the random number
 	 * for encryption.
 	 * 
+	 * <p>
+	 * Only zero is rejected, without computing a gcd for every draw.  A
+	 * nonzero <i>r</i>&lt;<i>n</i> shares a factor with <i>n</i> with
+	 * probability less than 2/min(<i>p</i>,<i>q</i>), and finding one
+	 * would factor <i>n</i>.
+	 * 
 	 * @return          a random integer less than <i>n</i> and
 	 *                  relatively prime to <i>n</i>
 	 */
 	public BigInteger getRandomModNStar() {
+		Random rnd = getRnd();
 		BigInteger r;
 		do {
 			r = new BigInteger(k,rnd);
-		} while (!inModNStar(r, n));
+		} while (r.signum() == 0 || r.compareTo(n) >= 0);
 		return r;
 	}
 
+	/**
+	 * Returns a randomizer <i>r</i><sup><i>n<sup>s</sup></i></sup> mod
+	 * <i>n</i><sup><i>s</i>+1</sup> for a random
+	 * <i>r</i>&isin;<i>Z</i><sup>*</sup><sub><i>n</i></sub>.  This is the
+	 * random factor of an encryption and of a rerandomization.  If a
+	 * {@link RandomnessPool} is attached to this key the value is taken from
+	 * the pool, otherwise it is computed on the spot.
+	 * 
+	 * @return          <i>r</i><sup><i>n<sup>s</sup></i></sup> mod
+	 *                  <i>n</i><sup><i>s</i>+1</sup> for a random <i>r</i>
+	 * @see #setRandomnessPool(RandomnessPool)
+	 */
+	public BigInteger getRandomizer() {
+		RandomnessPool pool = this.pool;
+		if (pool != null) {
+			return pool.next();
+		}
+		return getEncryptionExponent().pow(getRandomModNStar());
+	}
+	
+	/**
+	 * Returns the exponentiation <i>x</i> &#8614; <i>x</i><sup><i>n<sup>s</sup></i></sup>
+	 * mod <i>n</i><sup><i>s</i>+1</sup> which turns a random
+	 * <i>r</i>&isin;<i>Z</i><sup>*</sup><sub><i>n</i></sub> into a randomizer.
+	 * It is prepared on the first call and reused by every encryption and
+	 * rerandomization with this key.
+	 * 
+	 * @return          the exponentiation by <i>n<sup>s</sup></i>
+	 */
+	public CachedExponent getEncryptionExponent() {
+		CachedExponent exponent = encryptionExponent;
+		if (exponent == null) {
+			// CachedExponent is immutable, so a race only prepares it twice
+			exponent = newEncryptionExponent();
+			encryptionExponent = exponent;
+		}
+		return exponent;
+	}
+	
+	/**
+	 * Prepares the exponentiation returned by {@link #getEncryptionExponent()}.
+	 * Keys knowing the factorization of <i>n</i> override this.
+	 * 
+	 * @return          a new exponentiation by <i>n<sup>s</sup></i>
+	 */
+	protected CachedExponent newEncryptionExponent() {
+		return new CachedExponent(ns, nSPlusOne);
+	}
+	
+	/**
+	 * Attaches a pool of precomputed randomizers to this key, which
+	 * will be used by {@link #getRandomizer()} from now on.  Public keys
+	 * derived from this key afterwards share the same pool.  Passing
+	 * {@code null} detaches the current pool without shutting it down.
+	 * 
+	 * @param pool      a pool created for this key, or {@code null}
+	 */
+	public void setRandomnessPool(RandomnessPool pool) {
+		this.pool = pool;
+	}
+	
+	/**
+	 * Returns the pool of precomputed randomizers attached to this key.
+	 * 
+	 * @return          the attached pool; {@code null} if there is none
+	 */
+	public RandomnessPool getRandomnessPool() {
+		return pool;
+	}
+
 	/**
 	 * A special random number generator to find <i>r</i> in
 	 * <i>Z</i><sup>*</sup><sub><i>n</i><sup>2</sup></sub>.  In the Paillier
@@ -352,6 +626,7 @@ public class PaillierKey implements Serializable {
 	 *                  relatively prime to <i>n</i><sup>2</sup>
 	 */
 	public BigInteger getRandomModNSPlusOneStar() {
+		Random rnd = getRnd();
 		BigInteger r;
 		do {
 			r = new BigInteger(k,rnd);
@@ -452,8 +727,8 @@ public class PaillierKey implements Serializable {
 	
 	/**
 	 * Encodes this key into a byte array.  As this is a public key,
-	 * the public modulo {@code n} will be encoded. The size of {@code n} is
-	 * not recorded.
+	 * the public modulo {@code n} will be encoded, followed by the 4-byte
+	 * degree {@code s}. The size of {@code n} is not recorded.
 	 * 
 	 * @return			a byte array containing the most necessary values
 	 * 					of this key.
@@ -464,10 +739,9 @@ public class PaillierKey implements Serializable {
 	public byte[] toByteArray() {
 		// The encoding would be
 		// [ n ]
+		// [ s ]
 		
-		int size = n.toByteArray().length;
-		byte[] r = new byte[size];
-		System.arraycopy(n.toByteArray(), 0, r, 4, size);
+		byte[] r = ByteUtils.appendInt(n.toByteArray(), s);
 		return r;
 	}
 }
@@ -6,6 +6,7 @@ package paillierp.key;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import paillierp.ByteUtils;
+import paillierp.CachedExponent;
 
 /** 
  * A simple private key for the generalized Paillier cryptosystem
@@ -21,6 +22,10 @@ import paillierp.ByteUtils;
  *       and <i>d</i> = 0 mod &lambda; where
  *       &lambda;=lcm(<i>p</i>-1,<i>q</i>-1).
  * </ul>
+ * If the key is created from the primes <i>p</i> and <i>q</i>, it keeps
+ * them together with precomputed constants so that ciphertexts can be
+ * decrypted mod <i>p</i><sup>2</sup> and <i>q</i><sup>2</sup> separately
+ * (see {@link #decryptCRT(BigInteger)}).
  * 
  * 
  * @author James Garrity
@@ -54,6 +59,41 @@ public class PaillierPrivateKey extends PaillierKey {
 	 */
 	protected BigInteger dInvs = null;
 	
+	/**
+	 * The prime factor <i>p</i> of <i>n</i>; {@code null} if this key was
+	 * created from <i>n</i> alone, in which case CRT decryption is not
+	 * available.
+	 */
+	protected BigInteger p = null;
+	
+	/** The prime factor <i>q</i> of <i>n</i>; see {@link #p}. */
+	protected BigInteger q = null;
+	
+	/** Cached <i>p</i><sup>2</sup>. */
+	protected BigInteger pSquare = null;
+	
+	/** Cached <i>q</i><sup>2</sup>. */
+	protected BigInteger qSquare = null;
+	
+	/** Cached <i>p</i>-1, the exponent used mod <i>p</i><sup>2</sup>. */
+	protected BigInteger pMinusOne = null;
+	
+	/** Cached <i>q</i>-1, the exponent used mod <i>q</i><sup>2</sup>. */
+	protected BigInteger qMinusOne = null;
+	
+	/**
+	 * <i>h<sub>p</sub></i> = <i>L<sub>p</sub></i>(<i>g</i><sup><i>p</i>-1</sup>
+	 * mod <i>p</i><sup>2</sup>)<sup>-1</sup> mod <i>p</i>, where
+	 * <i>L<sub>p</sub></i>(<i>x</i>)=(<i>x</i>-1)/<i>p</i>.
+	 */
+	protected BigInteger hp = null;
+	
+	/** <i>h<sub>q</sub></i>, defined as {@link #hp} for <i>q</i>. */
+	protected BigInteger hq = null;
+	
+	/** <i>q</i><sup>-1</sup> mod <i>p</i>, used to recombine the halves. */
+	protected BigInteger qInvModP = null;
+	
 	/*
 	 * 
 	 * Constructors
@@ -75,7 +115,27 @@ public class PaillierPrivateKey extends PaillierKey {
 	 * 					number generator
 	 */
 	public PaillierPrivateKey(BigInteger n, BigInteger d, long seed){
-		super(n, seed);
+		this(n, d, 1, seed);
+	}
+	
+	/** 
+	 * Creates a new private key for the cryptosystem <i>CS<sub>s</sub></i>
+	 * when given the modulus <i>n</i>, the secret value <i>d</i> and the
+	 * degree <i>s</i>.  This constructor will use the <code>seed</code> to
+	 * create the public key with a {@link SecureRandom} random number
+	 * generator.
+	 * 
+	 * @param n			a RSA modulus.  That is, the product of two
+	 * 					different odd primes <i>p, q</i>.
+	 * @param d			an integer that should be a multiple of the least
+	 * 					common multiple of <i>p</i>-1 and <i>q</i>-1, and
+	 * 					relatively prime to <code>n</code>
+	 * @param s			the degree <i>s</i>&ge;1
+	 * @param seed		a long integer needed to start a random
+	 * 					number generator
+	 */
+	public PaillierPrivateKey(BigInteger n, BigInteger d, int s, long seed){
+		super(n, s, seed);
 		//checks to see that d mod n is relatively prime to n
 		if (!(inModNStar(d.mod(n))))
 			throw new IllegalArgumentException("d must be relatively prime to n");
@@ -99,7 +159,28 @@ public class PaillierPrivateKey extends PaillierKey {
 	 * 					number generator
 	 */
 	public PaillierPrivateKey(BigInteger p, BigInteger q, BigInteger d, long seed) {
-		super(p,q,seed);
+		this(p, q, d, 1, seed);
+	}
+	
+	/**
+	 * Creates a new private key for the cryptosystem <i>CS<sub>s</sub></i>
+	 * when given the primes <i>p</i> and <i>q</i>, the secret value
+	 * <i>d</i> and the degree <i>s</i>.  This constructor will use the
+	 * <code>seed</code> to create the public key with a
+	 * {@link SecureRandom} random number generator.
+	 * 
+	 * @param p			one allowable prime for our modulus
+	 * @param q			another prime for our modulus, different from 
+	 * @param d			an integer that should be a multiple of the least
+	 * 					common multiple of <code>p-1</code> and 
+	 * 					<code>q-1</code>, and relatively prime to
+	 * 					<code>p*q</code>
+	 * @param s			the degree <i>s</i>&ge;1
+	 * @param seed		a long integer needed to start a random
+	 * 					number generator
+	 */
+	public PaillierPrivateKey(BigInteger p, BigInteger q, BigInteger d, int s, long seed) {
+		super(p,q,s,seed);
 		
 		//!!!!Additional checks on d now that we know p and q!!!!
 		
@@ -121,6 +202,7 @@ public class PaillierPrivateKey extends PaillierKey {
 		
 		this.d = d;
 		this.dInvs = this.d.modInverse(ns);
+		setFactors(p, q);
 	}
 	
 	/**
@@ -135,7 +217,20 @@ public class PaillierPrivateKey extends PaillierKey {
 		super(ByteUtils.getLowerLayer(b), seed);
 		int offset = ByteUtils.getInt(b, b.length-4); // start of this layer's data
 		
-		this.d = ByteUtils.getBigInt(b, offset+4, ByteUtils.getInt(b, offset));
+		int length = ByteUtils.getInt(b, offset);
+		this.d = ByteUtils.getBigInt(b, offset+4, length);
+		this.dInvs = this.d.modInverse(ns);
+		offset += 4 + length;
+		
+		// The factors are only present if the encoded key had them
+		if (offset < b.length-4) {
+			length = ByteUtils.getInt(b, offset);
+			BigInteger p = ByteUtils.getBigInt(b, offset+4, length);
+			offset += 4 + length;
+			length = ByteUtils.getInt(b, offset);
+			BigInteger q = ByteUtils.getBigInt(b, offset+4, length);
+			setFactors(p, q);
+		}
 	}
 	
 	/*
@@ -144,6 +239,111 @@ public class PaillierPrivateKey extends PaillierKey {
 	 * 
 	 */
 	
+	/**
+	 * Stores the factors of <i>n</i> and precomputes the constants for
+	 * decryption by the Chinese Remainder Theorem.
+	 * 
+	 * @param p			one prime factor of <i>n</i>
+	 * @param q			the other prime factor of <i>n</i>
+	 */
+	private void setFactors(BigInteger p, BigInteger q) {
+		if (!p.multiply(q).equals(n))
+			throw new IllegalArgumentException("p*q must be equal to n");
+		
+		this.p = p;
+		this.q = q;
+		this.pSquare = p.multiply(p);
+		this.qSquare = q.multiply(q);
+		this.pMinusOne = p.subtract(BigInteger.ONE);
+		this.qMinusOne = q.subtract(BigInteger.ONE);
+		this.hp = hConstant(p, pSquare, pMinusOne);
+		this.hq = hConstant(q, qSquare, qMinusOne);
+		this.qInvModP = q.modInverse(p);
+	}
+	
+	/**
+	 * Computes <i>L<sub>p</sub></i>(<i>g</i><sup><i>p</i>-1</sup> mod
+	 * <i>p</i><sup>2</sup>)<sup>-1</sup> mod <i>p</i> for <i>g</i>=<i>n</i>+1.
+	 * 
+	 * @param p			prime factor of <i>n</i>
+	 * @param pSquare	<i>p</i><sup>2</sup>
+	 * @param pMinusOne	<i>p</i>-1
+	 * @return			the constant <i>h<sub>p</sub></i>
+	 */
+	private BigInteger hConstant(BigInteger p, BigInteger pSquare, BigInteger pMinusOne) {
+		BigInteger gp = nPlusOne.mod(pSquare).modPow(pMinusOne, pSquare);
+		return gp.subtract(BigInteger.ONE).divide(p).modInverse(p);
+	}
+	
+	/**
+	 * Prepares the exponentiation by <i>n<sup>s</sup></i> with the Chinese
+	 * Remainder Theorem if the factors of <i>n</i> are known.
+	 * 
+	 * @return		a new exponentiation by <i>n<sup>s</sup></i>
+	 */
+	@Override
+	protected CachedExponent newEncryptionExponent() {
+		if (!hasFactors())
+			return super.newEncryptionExponent();
+		return new CachedExponent(ns, p, q, s+1);
+	}
+	
+	/**
+	 * Describes if this key holds the factors <i>p</i> and <i>q</i> of
+	 * <i>n</i>, allowing decryption by the Chinese Remainder Theorem.
+	 * 
+	 * @return		'true' if the factors are known
+	 * @see			#decryptCRT(BigInteger)
+	 */
+	public boolean hasFactors() {
+		return p != null;
+	}
+	
+	/**
+	 * Returns the prime factor <i>p</i> of <i>n</i>.
+	 * 
+	 * @return		<i>p</i>; {@code null} if the factors are not known
+	 */
+	public BigInteger getP() {
+		return p;
+	}
+	
+	/**
+	 * Returns the prime factor <i>q</i> of <i>n</i>.
+	 * 
+	 * @return		<i>q</i>; {@code null} if the factors are not known
+	 */
+	public BigInteger getQ() {
+		return q;
+	}
+	
+	/**
+	 * Decrypts {@code c} by working mod <i>p</i><sup>2</sup> and mod
+	 * <i>q</i><sup>2</sup> separately.  Each half computes
+	 * <i>m<sub>p</sub></i> = <i>L<sub>p</sub></i>(<i>c</i><sup><i>p</i>-1</sup>
+	 * mod <i>p</i><sup>2</sup>)<i>h<sub>p</sub></i> mod <i>p</i>, with an
+	 * exponent and a modulus half the size of those in the plain decryption,
+	 * and the message is recombined by the Chinese Remainder Theorem.  This
+	 * is only available for keys of degree <i>s</i>=1.
+	 * 
+	 * @param c		a ciphertext less than <i>n</i><sup>2</sup>
+	 * @return		the plaintext of {@code c}
+	 */
+	public BigInteger decryptCRT(BigInteger c) {
+		if (!hasFactors())
+			throw new IllegalStateException("The factors of n are needed for CRT decryption");
+		if (s != 1)
+			throw new IllegalStateException("CRT decryption is only implemented for s=1");
+		
+		BigInteger mp = c.mod(pSquare).modPow(pMinusOne, pSquare)
+				.subtract(BigInteger.ONE).divide(p).multiply(hp).mod(p);
+		BigInteger mq = c.mod(qSquare).modPow(qMinusOne, qSquare)
+				.subtract(BigInteger.ONE).divide(q).multiply(hq).mod(q);
+		
+		// m = mq + q*((mp-mq)*q^-1 mod p)
+		return mp.subtract(mq).multiply(qInvModP).mod(p).multiply(q).add(mq);
+	}
+	
 	/**
 	 * Describes if this key can be used to encrypt
 	 * 
@@ -192,9 +392,10 @@ public class PaillierPrivateKey extends PaillierKey {
 	
 	/**
 	 * Encodes this key into a byte array.  As this is a public key,
-	 * the public modulo {@code n}, {@code d} will be encoded in that order.
-	 * Further, before {@code d} is the 4-byte equivalent to the size of
-	 * the BigInteger for later parsing.
+	 * the public modulo {@code n}, {@code d} will be encoded in that order,
+	 * followed by the factors {@code p} and {@code q} if they are known.
+	 * Further, before {@code d}, {@code p} and {@code q} is the 4-byte
+	 * equivalent to the size of the BigInteger for later parsing.
 	 * 
 	 * @return			a byte array containing the most necessary values
 	 * 					of this key.  A byte array of size 0 is returned
@@ -208,11 +409,18 @@ public class PaillierPrivateKey extends PaillierKey {
 		// [ prev. layer ]
 		// [ size of d ]
 		// [ d ]
+		// [ size of p ]   (only if the factors are known)
+		// [ p ]
+		// [ size of q ]
+		// [ q ]
 		// [ length of previous layer ]
 		
 		byte[] p = super.toByteArray(); // previous layer
 		
 		byte[] r = ByteUtils.appendBigInt(p, this.d);
+		if (hasFactors()) {
+			r = ByteUtils.appendBigInt(r, this.p, this.q);
+		}
 		r = ByteUtils.appendInt(r, p.length);
 		
 		return r;
@@ -6,6 +6,7 @@ package paillierp.key;
 import java.math.BigInteger;
 
 import paillierp.ByteUtils;
+import paillierp.CachedExponent;
 
 /**
  * A private key for the threshold Paillier scheme <i>CS</i><sub>1</sub>.  This
@@ -57,6 +58,12 @@ public class PaillierPrivateThresholdKey extends PaillierThresholdKey {
 	 */
 	protected int id;
 	
+	/**
+	 * Exponentiation by 2&Delta;<i>s<sub>i</sub></i>; created on first use,
+	 * not serialized.
+	 */
+	protected transient CachedExponent decryptionExponent = null;
+	
 	/*
 	 * 
 	 * Constructors
@@ -133,7 +140,34 @@ public class PaillierPrivateThresholdKey extends PaillierThresholdKey {
 	public PaillierPrivateThresholdKey(BigInteger n, int l,
 			BigInteger combineSharesConstant, int w, BigInteger v,
 			BigInteger[] viarray, BigInteger si, int i, long seed) {
-		super(n, l, combineSharesConstant, w, v, viarray, seed);
+		this(n, 1, l, combineSharesConstant, w, v, viarray, si, i, seed);
+	}
+
+	/**
+	 * Creates a new private key for the threshold scheme on the cryptosystem
+	 * <i>CS<sub>s</sub></i> of degree <code>s</code>.  The remaining values
+	 * are as in
+	 * {@link #PaillierPrivateThresholdKey(BigInteger, int, BigInteger, int, BigInteger, BigInteger[], BigInteger, int, long)}.
+	 * 
+	 * @param n        a safe prime product of <i>p</i> and <i>q</i>
+	 * @param s        the degree <i>s</i>&ge;1
+	 * @param l        number of decryption servers
+	 * @param combineSharesConstant
+	 *                 precomputed value (4<code>*l</code>!)<sup>-1</sup>
+	 *                 mod <code>n</code><sup><i>s</i></sup>
+	 * @param w        threshold of servers needed to successfully decrypt any
+	 *                 ciphertext created by this public key
+	 * @param v        a generator of a cyclic group of squares in
+	 *                 <i>Z</i><sup>*</sup><sub><code>n</code><sup><i>s</i>+1</sup></sub>
+	 * @param viarray  array of verification keys
+	 * @param si       secret share for this server
+	 * @param i        ID of the decryption server (from 1 to {@code l})
+	 * @param seed     a long integer needed to start a random number generator
+	 */
+	public PaillierPrivateThresholdKey(BigInteger n, int s, int l,
+			BigInteger combineSharesConstant, int w, BigInteger v,
+			BigInteger[] viarray, BigInteger si, int i, long seed) {
+		super(n, s, l, combineSharesConstant, w, v, viarray, seed);
 		this.si = si;
 		this.id = i;
 	}
@@ -181,6 +215,25 @@ public class PaillierPrivateThresholdKey extends PaillierThresholdKey {
 		return si;
 	}
 	
+	/**
+	 * Returns the exponentiation <i>c</i> &#8614;
+	 * <i>c</i><sup>2&Delta;<i>s<sub>i</sub></i></sup> mod
+	 * <i>n</i><sup><i>s</i>+1</sup> of a partial decryption.  The exponent
+	 * is computed on the first call and reused afterwards.
+	 * 
+	 * @return		the exponentiation by 2&Delta;<i>s<sub>i</sub></i>
+	 * @see paillierp.PartialDecryption
+	 */
+	public CachedExponent getDecryptionExponent() {
+		CachedExponent exponent = decryptionExponent;
+		if (exponent == null) {
+			// CachedExponent is immutable, so a race only prepares it twice
+			exponent = new CachedExponent(si.multiply(delta).shiftLeft(1), nSPlusOne);
+			decryptionExponent = exponent;
+		}
+		return exponent;
+	}
+	
 	/**
 	 * Returns the id of this private key.  Mostly used to identify
 	 * which verification key in {@link #vi} corresponds with this
@@ -44,7 +44,9 @@ import paillierp.ByteUtils;
  * decrypt a ciphertext <i>c</i>, <i>given the k&ge;w partial decryptions
  * c<sub>1</sub>,...,c<sub>k</sub></i>.
  * <p>
- * <b>NOTE:</b> This is for the implementation where <i>s</i>=1.
+ * <b>NOTE:</b> The threshold decryption works for any degree <i>s</i>, but
+ * the zero knowledge proofs in {@link paillierp.zkp} still assume
+ * <i>s</i>=1.
  * 
  * @author James Garrity
  * @author Sean Hall
@@ -95,8 +97,6 @@ public class PaillierThresholdKey extends PaillierKey {
 	 */
 	private BigInteger combineSharesConstant;
 	
-	//TODO add the value s in the public key (if s is anything else but 1)
-	
 	/*
 	 * 
 	 * Constructors
@@ -168,7 +168,32 @@ public class PaillierThresholdKey extends PaillierKey {
 	public PaillierThresholdKey(BigInteger n, int l,
 			BigInteger combineSharesConstant, int w, BigInteger v,
 			BigInteger[] viarray, long seed) {
-		super(n, seed);
+		this(n, 1, l, combineSharesConstant, w, v, viarray, seed);
+	}
+
+	/**
+	 * Creates a new public key for the threshold scheme on the cryptosystem
+	 * <i>CS<sub>s</sub></i> of degree <code>s</code>.  The remaining values
+	 * are as in
+	 * {@link #PaillierThresholdKey(BigInteger, int, BigInteger, int, BigInteger, BigInteger[], long)}.
+	 * 
+	 * @param n          a safe prime product of <i>p</i> and <i>q</i>
+	 * @param s          the degree <i>s</i>&ge;1
+	 * @param l          number of decryption servers
+	 * @param combineSharesConstant
+	 *                   precomputed value (4<code>*l</code>!)<sup>-1</sup>
+	 *                   mod <code>n</code><sup><i>s</i></sup>
+	 * @param w          threshold of servers needed to successfully decrypt any
+	 *                   ciphertext created by this public key
+	 * @param v          a generator of a cyclic group of squares in
+	 *                   <i>Z</i><sup>*</sup><sub><code>n</code><sup><i>s</i>+1</sup></sub>
+	 * @param viarray    array of verification keys
+	 * @param seed	a long integer needed to start a random number generator
+	 */
+	public PaillierThresholdKey(BigInteger n, int s, int l,
+			BigInteger combineSharesConstant, int w, BigInteger v,
+			BigInteger[] viarray, long seed) {
+		super(n, s, seed);
 		this.l = l;
 		this.delta = KeyGen.factorial(l);
 		this.combineSharesConstant = combineSharesConstant;
@@ -177,6 +202,22 @@ public class PaillierThresholdKey extends PaillierKey {
 		this.vi = viarray;
 	}
 
+	/**
+	 * Creates a copy of {@code key} sharing its public values, its random
+	 * number generator and its {@link RandomnessPool}.
+	 * 
+	 * @param key       the key to copy
+	 */
+	protected PaillierThresholdKey(PaillierThresholdKey key) {
+		super(key);
+		this.l = key.l;
+		this.delta = key.delta;
+		this.combineSharesConstant = key.combineSharesConstant;
+		this.w = key.w;
+		this.v = key.v;
+		this.vi = key.vi;
+	}
+
 	/**
 	 * Creates a new public threshold key using a byte encoding of a key.
 	 * 
@@ -207,6 +248,9 @@ public class PaillierThresholdKey extends PaillierKey {
 			this.vi[i] = ByteUtils.getBigInt(b, offset+4, length);
 			offset += length + 4;
 		}
+		
+		this.delta = KeyGen.factorial(l);
+		this.combineSharesConstant = BigInteger.valueOf(4).multiply(delta.multiply(delta)).modInverse(ns);
 	}
 	
 	/*
@@ -224,8 +268,7 @@ public class PaillierThresholdKey extends PaillierKey {
 	 *         with the public verification values.
 	 */
 	public PaillierThresholdKey getThresholdKey(){
-		return new PaillierThresholdKey(n, l, combineSharesConstant, w, 
-				v, vi, rnd.nextLong());
+		return new PaillierThresholdKey(this);
 	}
 
 	/**
@@ -278,10 +321,11 @@ public class PaillierThresholdKey extends PaillierKey {
 	}
 
 	/**
-	 * Returns a cached value of (4*&Delta;)<sup>-1</sup> mod <i>n</i>.
-	 * This value is heavily used for decryption.
+	 * Returns a cached value of (4*&Delta;<sup>2</sup>)<sup>-1</sup> mod
+	 * <i>n<sup>s</sup></i>.  This value is heavily used for decryption.
 	 * 
-	 * @return		the inverse of (4&Delta;) in <i>Z<sub>n</sub></i>
+	 * @return		the inverse of (4&Delta;<sup>2</sup>) in
+	 * 				<i>Z<sub>n<sup>s</sup></sub></i>
 	 */
 	public BigInteger getCombineSharesConstant() {
 		return this.combineSharesConstant;
@@ -319,9 +363,9 @@ public class PaillierThresholdKey extends PaillierKey {
 		
 		byte[] r = ByteUtils.appendInt(p, l, w);
 		if (r.length == 0) { return r; }
-		r = ByteUtils.appendBigInt(p, v);
+		r = ByteUtils.appendBigInt(r, v);
 		if (r.length == 0) { return r; }
-		r = ByteUtils.appendBigInt(p, vi);
+		r = ByteUtils.appendBigInt(r, vi);
 		if (r.length == 0) { return r; }
 		r = ByteUtils.appendInt(r, p.length);
 		
@@ -0,0 +1,262 @@
+/**
+ * RandomnessPool.java
+ */
+package paillierp.key;
+
+import java.math.BigInteger;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of precomputed randomizers
+ * <i>r</i><sup><i>n<sup>s</sup></i></sup> mod <i>n</i><sup><i>s</i>+1</sup>
+ * for a {@link PaillierKey}.
+ * <p>
+ * Every encryption and every rerandomization of a ciphertext needs a fresh
+ * random <i>r</i>&isin;<i>Z</i><sup>*</sup><sub><i>n</i></sub> raised to the
+ * power <i>n<sup>s</sup></i>, which is by far the most expensive part of
+ * either operation.  As this value does not depend on the message, it can be
+ * computed ahead of time.  A pool starts a number of producer threads which
+ * keep a queue of at most <code>depth</code> randomizers filled, so that an
+ * online encryption or rerandomization is reduced to a single modular
+ * multiplication.
+ * <p>
+ * A pool is attached to a key with
+ * {@link PaillierKey#setRandomnessPool(RandomnessPool)}.  When the queue is
+ * empty the {@link ExhaustionPolicy} decides whether the caller waits for a
+ * producer or computes the randomizer itself.  The number of requests served
+ * from the queue and the number of requests which found it empty are
+ * available through {@link #getHits()} and {@link #getMisses()}.
+ * <p>
+ * The producer threads are daemon threads; {@link #shutdown()} stops them
+ * once the pool is no longer needed.
+ *
+ * @see PaillierKey#getRandomizer()
+ */
+public class RandomnessPool {
+
+	/**
+	 * What to do when a randomizer is requested while the pool is empty.
+	 */
+	public enum ExhaustionPolicy {
+		/**
+		 * Wait until a producer thread has computed a randomizer.  Once the
+		 * pool is shut down or no producer is left, compute it on the calling
+		 * thread.
+		 */
+		BLOCK,
+		/** Compute the randomizer on the calling thread. */
+		COMPUTE_INLINE
+	}
+
+	/*
+	 *
+	 * Fields
+	 *
+	 */
+
+	/**
+	 * Milliseconds a blocked request waits before it checks again that the
+	 * pool is running and has a live producer.
+	 */
+	private static final long POLL_INTERVAL = 100;
+
+	/** The key whose randomizers are precomputed. */
+	private final PaillierKey key;
+
+	/** Precomputed values <i>r<sup>n<sup>s</sup></sup></i>. */
+	private final BlockingQueue<BigInteger> queue;
+
+	/** Threads filling the queue. */
+	private final Thread[] producers;
+
+	/** Behaviour when the queue is empty. */
+	private final ExhaustionPolicy policy;
+
+	/** Number of randomizers taken directly from the queue. */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** Number of requests which found the queue empty. */
+	private final AtomicLong misses = new AtomicLong();
+
+	/** Cleared when the pool is shut down. */
+	private volatile boolean running = true;
+
+	/*
+	 *
+	 * Constructors
+	 *
+	 */
+
+	/**
+	 * Creates a pool for {@code key} and starts its producer threads.
+	 *
+	 * @param key          the key for which the randomizers are computed
+	 * @param depth        maximum number of precomputed randomizers
+	 * @param producers    number of producer threads
+	 * @param policy       behaviour when the pool is empty
+	 */
+	public RandomnessPool(PaillierKey key, int depth, int producers, ExhaustionPolicy policy) {
+		if (depth <= 0) {
+			throw new IllegalArgumentException("depth must be positive");
+		}
+		if (producers <= 0) {
+			throw new IllegalArgumentException("There must be at least one producer");
+		}
+
+		this.key = key;
+		this.queue = new ArrayBlockingQueue<BigInteger>(depth);
+		this.policy = policy;
+		this.producers = new Thread[producers];
+
+		for (int i = 0; i < producers; i++) {
+			this.producers[i] = new Thread(new Runnable() {
+				public void run() {
+					produce();
+				}
+			}, "RandomnessPool-" + i);
+			this.producers[i].setDaemon(true);
+			this.producers[i].start();
+		}
+	}
+
+	/**
+	 * Creates a pool for {@code key} with one producer per available
+	 * processor which computes randomizers inline when exhausted.
+	 *
+	 * @param key          the key for which the randomizers are computed
+	 * @param depth        maximum number of precomputed randomizers
+	 */
+	public RandomnessPool(PaillierKey key, int depth) {
+		this(key, depth, Runtime.getRuntime().availableProcessors(), ExhaustionPolicy.COMPUTE_INLINE);
+	}
+
+	/*
+	 *
+	 * Methods
+	 *
+	 */
+
+	/**
+	 * Body of the producer threads.
+	 */
+	private void produce() {
+		try {
+			while (running) {
+				queue.put(compute());
+			}
+		} catch (InterruptedException e) {
+			// shutdown() interrupts the producers
+		}
+	}
+
+	/**
+	 * Computes a new randomizer on the calling thread.
+	 *
+	 * @return          <i>r</i><sup><i>n<sup>s</sup></i></sup> mod
+	 *                  <i>n</i><sup><i>s</i>+1</sup> for a random <i>r</i>
+	 */
+	private BigInteger compute() {
+		return key.getEncryptionExponent().pow(key.getRandomModNStar());
+	}
+
+	/**
+	 * Returns a randomizer
+	 * <i>r</i><sup><i>n<sup>s</sup></i></sup> mod <i>n</i><sup><i>s</i>+1</sup>
+	 * for a random <i>r</i>&isin;<i>Z</i><sup>*</sup><sub><i>n</i></sub>.
+	 * Each randomizer is handed out only once.
+	 *
+	 * @return          a fresh randomizer
+	 */
+	public BigInteger next() {
+		BigInteger r = queue.poll();
+		if (r != null) {
+			hits.incrementAndGet();
+			return r;
+		}
+
+		misses.incrementAndGet();
+		if (policy == ExhaustionPolicy.BLOCK) {
+			// Wait in steps, so that a shutdown or the death of every producer
+			// falls back to computing the randomizer instead of waiting forever
+			try {
+				while (running && producing()) {
+					r = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+					if (r != null) {
+						return r;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return compute();
+	}
+
+	/**
+	 * Checks whether any producer thread is still alive.  A producer dies
+	 * when it is shut down or when computing a randomizer throws.
+	 *
+	 * @return          true if a producer can still fill the queue
+	 */
+	private boolean producing() {
+		for (int i = 0; i < producers.length; i++) {
+			if (producers[i].isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stops the producer threads.  Randomizers still in the queue are
+	 * discarded and any later request is computed inline, including
+	 * requests already waiting with {@link ExhaustionPolicy#BLOCK}.
+	 */
+	public void shutdown() {
+		running = false;
+		for (int i = 0; i < producers.length; i++) {
+			producers[i].interrupt();
+		}
+		queue.clear();
+	}
+
+	/**
+	 * Returns the number of randomizers currently precomputed.
+	 *
+	 * @return          the number of randomizers in the queue
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the number of requests served directly from the pool.
+	 *
+	 * @return          the number of hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of requests which found the pool empty and either
+	 * waited for a producer or computed the randomizer inline.
+	 *
+	 * @return          the number of misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the behaviour of this pool when it is empty.
+	 *
+	 * @return          the exhaustion policy
+	 */
+	public ExhaustionPolicy getPolicy() {
+		return policy;
+	}
+}
@@ -0,0 +1,315 @@
+/**
+ * ThresholdKeyStore.java
+ */
+package paillierp.key;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.Random;
+
+/**
+ * A persistent store of threshold keys in a directory, used to avoid
+ * generating the same keys again in every run of a benchmark sweep.
+ * <p>
+ * Finding the safe primes is by far the most expensive part of generating
+ * threshold keys, while the keys for a given number of decryption servers
+ * <i>l</i> and threshold <i>w</i> can be derived from the primes quickly.
+ * The store therefore keeps two kinds of files:
+ * <ul>
+ *   <li>{@code primes-<bits>.bin} with the primes
+ *       <i>p</i><sub>1</sub>, <i>p</i>, <i>q</i><sub>1</sub>, <i>q</i> of
+ *       a modulus with <i>bits</i>-bit prime factors; and
+ *   <li>{@code keys-<bits>-<l>-<w>-s<degree>.bin} with the <i>l</i> private
+ *       threshold keys derived from them, as encoded by
+ *       {@link PaillierPrivateThresholdKey#toByteArray()}.
+ * </ul>
+ * Every file starts with a magic number and a format version, followed by
+ * length-prefixed records.  Files are read by mapping them into memory, and
+ * written to a temporary file which is then moved into place, so a reader
+ * never sees a partly written file.  Files of an unknown version are
+ * ignored and overwritten.
+ * <p>
+ * The files contain the factorization of the modulus and must be kept as
+ * secret as the private keys themselves.
+ *
+ * @see KeyGen#PaillierThresholdKey(int, int, int, int, long)
+ */
+public class ThresholdKeyStore {
+
+	/*
+	 *
+	 * Fields
+	 *
+	 */
+
+	/** Magic number at the start of every file ("PTKS"). */
+	private static final int MAGIC = 0x50544B53;
+
+	/** Current version of the file format. */
+	private static final int VERSION = 1;
+
+	/** Directory holding the files. */
+	private final File directory;
+
+	/*
+	 *
+	 * Constructors
+	 *
+	 */
+
+	/**
+	 * Creates a store keeping its files in the given directory.  The
+	 * directory is created when the first file is written.
+	 *
+	 * @param directory		the directory of the files
+	 */
+	public ThresholdKeyStore(File directory) {
+		this.directory = directory;
+	}
+
+	/*
+	 *
+	 * Methods
+	 *
+	 */
+
+	/**
+	 * Returns the stored threshold keys with the given parameters, deriving
+	 * and storing them if necessary.  If not even the primes are stored, new
+	 * primes are generated and stored as well.
+	 *
+	 * @param bits		number of bits of the prime factors of <i>n</i>
+	 * @param l			number of decryption servers
+	 * @param w			threshold number of decryption servers
+	 * @param degree	the degree <i>s</i>&ge;1 of the cryptosystem
+	 * @param seed		seed for the random number generators of the keys,
+	 * 					and for generating missing primes and keys
+	 * @return			the <code>l</code> private threshold keys
+	 */
+	public synchronized PaillierPrivateThresholdKey[] getOrCreate(int bits, int l, int w, int degree, long seed) {
+		PaillierPrivateThresholdKey[] keys = load(bits, l, w, degree, seed);
+		if (keys != null) {
+			return keys;
+		}
+
+		Random rnd = new SecureRandom(BigInteger.valueOf(seed).toByteArray());
+		BigInteger[] primes = loadPrimes(bits);
+		if (primes == null) {
+			primes = KeyGen.thresholdPrimes(bits, rnd);
+			storePrimes(bits, primes);
+		}
+
+		keys = KeyGen.thresholdKeysFromPrimes(primes, l, w, degree, rnd);
+		store(bits, degree, keys);
+		return keys;
+	}
+
+	/**
+	 * Loads the stored threshold keys of degree 1.
+	 *
+	 * @param bits		number of bits of the prime factors of <i>n</i>
+	 * @param l			number of decryption servers
+	 * @param w			threshold number of decryption servers
+	 * @param seed		seed for the random number generators of the keys
+	 * @return			the private threshold keys, or {@code null} if they
+	 * 					are not stored
+	 */
+	public PaillierPrivateThresholdKey[] load(int bits, int l, int w, long seed) {
+		return load(bits, l, w, 1, seed);
+	}
+
+	/**
+	 * Loads the stored threshold keys.
+	 *
+	 * @param bits		number of bits of the prime factors of <i>n</i>
+	 * @param l			number of decryption servers
+	 * @param w			threshold number of decryption servers
+	 * @param degree	the degree <i>s</i>&ge;1 of the cryptosystem
+	 * @param seed		seed for the random number generators of the keys
+	 * @return			the private threshold keys, or {@code null} if they
+	 * 					are not stored
+	 */
+	public PaillierPrivateThresholdKey[] load(int bits, int l, int w, int degree, long seed) {
+		byte[][] records = read(keysFile(bits, l, w, degree));
+		if (records == null || records.length != l) {
+			return null;
+		}
+
+		PaillierPrivateThresholdKey[] keys = new PaillierPrivateThresholdKey[l];
+		for (int i = 0; i < l; i++) {
+			keys[i] = new PaillierPrivateThresholdKey(records[i], seed + i);
+		}
+		return keys;
+	}
+
+	/**
+	 * Stores threshold keys, replacing any keys with the same parameters.
+	 *
+	 * @param bits		number of bits of the prime factors of <i>n</i>
+	 * @param degree	the degree <i>s</i> of the keys
+	 * @param keys		all <i>l</i> private threshold keys of one modulus
+	 */
+	public void store(int bits, int degree, PaillierPrivateThresholdKey[] keys) {
+		if (keys.length == 0) {
+			throw new IllegalArgumentException("There must be at least one key");
+		}
+		if (keys[0].getS() != degree) {
+			throw new IllegalArgumentException("The keys are not of degree " + degree);
+		}
+
+		byte[][] records = new byte[keys.length][];
+		for (int i = 0; i < keys.length; i++) {
+			records[i] = keys[i].toByteArray();
+		}
+		write(keysFile(bits, keys[0].getL(), keys[0].getW(), degree), records);
+	}
+
+	/**
+	 * Loads the stored primes.
+	 *
+	 * @param bits		number of bits of the primes <i>p</i> and <i>q</i>
+	 * @return			the array {<i>p</i><sub>1</sub>, <i>p</i>,
+	 * 					<i>q</i><sub>1</sub>, <i>q</i>}, or {@code null} if
+	 * 					they are not stored
+	 */
+	public BigInteger[] loadPrimes(int bits) {
+		byte[][] records = read(primesFile(bits));
+		if (records == null || records.length != 4) {
+			return null;
+		}
+
+		BigInteger[] primes = new BigInteger[4];
+		for (int i = 0; i < 4; i++) {
+			primes[i] = new BigInteger(records[i]);
+		}
+		return primes;
+	}
+
+	/**
+	 * Stores primes, replacing any primes of the same size.
+	 *
+	 * @param bits		number of bits of the primes <i>p</i> and <i>q</i>
+	 * @param primes	the array {<i>p</i><sub>1</sub>, <i>p</i>,
+	 * 					<i>q</i><sub>1</sub>, <i>q</i>}
+	 */
+	public void storePrimes(int bits, BigInteger[] primes) {
+		if (primes.length != 4) {
+			throw new IllegalArgumentException("Four primes are required");
+		}
+
+		byte[][] records = new byte[4][];
+		for (int i = 0; i < 4; i++) {
+			records[i] = primes[i].toByteArray();
+		}
+		write(primesFile(bits), records);
+	}
+
+	/**
+	 * Returns the file of the primes of the given size.
+	 *
+	 * @param bits		number of bits of the primes
+	 * @return			the file
+	 */
+	private File primesFile(int bits) {
+		return new File(directory, "primes-" + bits + ".bin");
+	}
+
+	/**
+	 * Returns the file of the keys with the given parameters.
+	 *
+	 * @param bits		number of bits of the prime factors of <i>n</i>
+	 * @param l			number of decryption servers
+	 * @param w			threshold number of decryption servers
+	 * @param degree	the degree <i>s</i> of the cryptosystem
+	 * @return			the file
+	 */
+	private File keysFile(int bits, int l, int w, int degree) {
+		return new File(directory, "keys-" + bits + "-" + l + "-" + w + "-s" + degree + ".bin");
+	}
+
+	/**
+	 * Reads the records of a file by mapping it into memory.
+	 *
+	 * @param file		the file
+	 * @return			the records, or {@code null} if the file does not
+	 * 					exist, or is not a complete file of the current
+	 * 					version
+	 */
+	private static byte[][] read(File file) {
+		if (!file.isFile()) {
+			return null;
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+				FileChannel channel = raf.getChannel()) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < 12 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				return null;
+			}
+
+			int count = buffer.getInt();
+			if (count < 0) {
+				return null;
+			}
+			byte[][] records = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				if (buffer.remaining() < 4) {
+					return null;
+				}
+				int size = buffer.getInt();
+				if (size < 0 || size > buffer.remaining()) {
+					return null;
+				}
+				records[i] = new byte[size];
+				buffer.get(records[i]);
+			}
+			return records;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot read " + file, e);
+		}
+	}
+
+	/**
+	 * Writes records to a temporary file and moves it into place.
+	 *
+	 * @param file		the file
+	 * @param records	the records
+	 */
+	private void write(File file, byte[][] records) {
+		int size = 12;
+		for (byte[] record : records) {
+			size += 4 + record.length;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(records.length);
+		for (byte[] record : records) {
+			buffer.putInt(record.length).put(record);
+		}
+
+		try {
+			Files.createDirectories(directory.toPath());
+			File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+			try {
+				try (FileOutputStream out = new FileOutputStream(tmp)) {
+					out.write(buffer.array());
+				}
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot write " + file, e);
+		}
+	}
+}